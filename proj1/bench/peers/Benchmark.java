@@ -0,0 +1,140 @@
+package peers;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+
+/**
+ * Minimal benchmark harness
+ * Runs an operation for a number of warmup and measurement iterations of fixed duration
+ * on the calling thread, and reports its throughput and allocation rate
+ */
+class Benchmark {
+
+    /**
+     * Number of warmup and measurement iterations, and their duration, in milliseconds
+     */
+    static final int WARMUP_ITERATIONS = Integer.getInteger("bench.warmup", 3);
+    static final int ITERATIONS = Integer.getInteger("bench.iterations", 5);
+    static final long ITERATION_TIME = Long.getLong("bench.time", 1000);
+
+    /**
+     * Operation being measured
+     */
+    interface Operation {
+        void run() throws Exception;
+    }
+
+    /**
+     * Throughput and allocation of a benchmark
+     */
+    static final class Result {
+        final String name;
+        final double opsPerSecond;
+        final double error;
+        final double bytesPerOp;
+
+        private Result(String name, double opsPerSecond, double error, double bytesPerOp) {
+            this.name = name;
+            this.opsPerSecond = opsPerSecond;
+            this.error = error;
+            this.bytesPerOp = bytesPerOp;
+        }
+
+        /**
+         * @return allocation rate, in MB/s
+         */
+        double allocationRate() {
+            return bytesPerOp * opsPerSecond / 1e6;
+        }
+
+        String toCsv() {
+            return String.format(Locale.ROOT, "%s,%.3f,%.3f,%.1f,%.3f", name, opsPerSecond, error, bytesPerOp, allocationRate());
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%-48s %14.2f +- %10.2f ops/s %14.1f B/op %10.2f MB/s",
+                    name, opsPerSecond, error, bytesPerOp, allocationRate());
+        }
+    }
+
+    private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    /**
+     * Runs a benchmark
+     *
+     * @param name      name of the benchmark
+     * @param setup     run before every operation and not measured, may be null
+     * @param operation operation to measure
+     * @return throughput and allocation of the operation
+     * @throws Exception if the operation fails
+     */
+    static Result run(String name, Operation setup, Operation operation) throws Exception {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++)
+            iteration(setup, operation);
+
+        double[] throughput = new double[ITERATIONS];
+        long totalOps = 0, totalBytes = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            long[] iteration = iteration(setup, operation);
+            throughput[i] = iteration[0] * 1e9 / iteration[1];
+            totalOps += iteration[0];
+            totalBytes += iteration[2];
+        }
+
+        double mean = 0;
+        for (double value : throughput)
+            mean += value / ITERATIONS;
+        double variance = 0;
+        for (double value : throughput)
+            variance += (value - mean) * (value - mean) / Math.max(1, ITERATIONS - 1);
+
+        return new Result(name, mean, Math.sqrt(variance), (double) totalBytes / totalOps);
+    }
+
+    /**
+     * Runs the operation until the iteration time elapses, at least once
+     *
+     * @return number of operations, measured time in nanoseconds and bytes allocated by the operations
+     */
+    private static long[] iteration(Operation setup, Operation operation) throws Exception {
+        long threadId = Thread.currentThread().getId();
+        long ops = 0, measuredTime = 0, allocated = 0;
+        long deadline = System.nanoTime() + ITERATION_TIME * 1000000;
+
+        if (setup == null) {
+            long startBytes = THREADS.getThreadAllocatedBytes(threadId);
+            long startTime = System.nanoTime();
+            do {
+                operation.run();
+                ops++;
+            } while (System.nanoTime() < deadline);
+            measuredTime = System.nanoTime() - startTime;
+            allocated = THREADS.getThreadAllocatedBytes(threadId) - startBytes;
+        } else {
+            do {
+                setup.run();
+                long startBytes = THREADS.getThreadAllocatedBytes(threadId);
+                long startTime = System.nanoTime();
+                operation.run();
+                measuredTime += System.nanoTime() - startTime;
+                allocated += THREADS.getThreadAllocatedBytes(threadId) - startBytes;
+                ops++;
+            } while (System.nanoTime() < deadline);
+        }
+
+        return new long[]{ops, measuredTime, allocated};
+    }
+
+    /**
+     * Checks that the running JVM can measure allocations
+     *
+     * @return true if the allocation counters are available
+     */
+    static boolean allocationSupported() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        return threads instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported();
+    }
+}
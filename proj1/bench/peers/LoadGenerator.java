@@ -0,0 +1,405 @@
+package peers;
+
+import common.InitiatorInterface;
+import common.JobStatus;
+import common.PeerState;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Load generator of a cluster of peers running in this JVM over a LoopbackBus
+ * Every worker backs up a new file from a random peer, restores it and, with the configured
+ * probabilities, deletes it and makes a random peer reclaim space, all through InitiatorInterface,
+ * waiting for the backups and restores on their jobs
+ * <p>
+ * Properties:
+ * load.peers       number of peers (default 5)
+ * load.version     protocol version of the peers (default 2.0)
+ * load.workers     number of concurrent workers (default 4)
+ * load.duration    duration of the run, in seconds (default 60)
+ * load.sizes       sizes of the files, in bytes (default 64000,1000000,4000000)
+ * load.degrees     desired replication degrees of the files (default 1,2,3)
+ * load.delete      probability of deleting a file after restoring it (default 0.5)
+ * load.reclaim     probability of a reclaim after every file (default 0.05)
+ * load.capacity    space every peer has for chunks, in Kb (default 1000000)
+ * load.timeout     time to wait for an operation to complete, in milliseconds (default 60000)
+ * load.loss        probability of a message being lost (default 0), or of every packet of it if load.mtu is set
+ * load.mtu         size of the packets a message is split in by IP, 0 to lose whole messages (default 0)
+ * load.latency     latency of the bus, in milliseconds (default 1)
+ * load.bandwidth   bandwidth of every channel, in bytes per second, 0 if unlimited (default 0)
+ * load.seed        seed of the workload and of the losses (default 1)
+ * load.output      file where the results are written as JSON (default load-results.json)
+ */
+class LoadGenerator {
+
+    private static final int PEERS = Integer.getInteger("load.peers", 5);
+    private static final String VERSION = System.getProperty("load.version", "2.0");
+    private static final int WORKERS = Integer.getInteger("load.workers", 4);
+    private static final long DURATION = Long.getLong("load.duration", 60);
+    private static final int[] SIZES = parseInts(System.getProperty("load.sizes", "64000,1000000,4000000"));
+    private static final int[] DEGREES = parseInts(System.getProperty("load.degrees", "1,2,3"));
+    private static final double DELETE_RATE = Double.parseDouble(System.getProperty("load.delete", "0.5"));
+    private static final double RECLAIM_RATE = Double.parseDouble(System.getProperty("load.reclaim", "0.05"));
+    private static final int CAPACITY = Integer.getInteger("load.capacity", 1000000);
+    private static final long TIMEOUT = Long.getLong("load.timeout", 60000);
+    private static final double LOSS = Double.parseDouble(System.getProperty("load.loss", "0"));
+    private static final int MTU = Integer.getInteger("load.mtu", 0);
+    private static final long LATENCY = Long.getLong("load.latency", 1);
+    private static final long BANDWIDTH = Long.getLong("load.bandwidth", 0);
+    private static final long SEED = Long.getLong("load.seed", 1);
+    private static final String OUTPUT = System.getProperty("load.output", "load-results.json");
+
+    /**
+     * Interval between two checks of the state of an operation, in milliseconds
+     */
+    private static final long POLL_INTERVAL = 50;
+    /**
+     * Time given to the cluster to settle before its replication health is read, in milliseconds
+     */
+    private static final long SETTLE_TIME = 5000;
+
+    private static final PrintStream REPORT = System.err;
+
+    private final PeerService[] peers;
+    private final InitiatorInterface[] links;
+    /**
+     * latency of the completed operations, by operation
+     * key = <operation>, or <operation>.<size>.r<degree> for backups and restores
+     */
+    private final ConcurrentHashMap<String, LatencyHistogram> latencies;
+    /**
+     * number of operations that completed and that failed or timed out, by operation
+     */
+    private final ConcurrentHashMap<String, LongAdder> completed;
+    private final ConcurrentHashMap<String, LongAdder> failed;
+    private final AtomicLong bytesBackedUp;
+    private final AtomicLong bytesRestored;
+
+    private LoadGenerator(PeerService[] peers, InitiatorInterface[] links) {
+        this.peers = peers;
+        this.links = links;
+        latencies = new ConcurrentHashMap<>();
+        completed = new ConcurrentHashMap<>();
+        failed = new ConcurrentHashMap<>();
+        bytesBackedUp = new AtomicLong();
+        bytesRestored = new AtomicLong();
+    }
+
+    public static void main(String[] args) throws Exception {
+        /* Peers log every message, keep the report readable */
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+
+        LoopbackBus bus = new LoopbackBus(LOSS, LATENCY, BANDWIDTH, SEED, MTU);
+        PeerService[] peers = new PeerService[PEERS];
+        InitiatorInterface[] links = new InitiatorInterface[PEERS];
+        for (int i = 0; i < PEERS; i++) {
+            String serverId = Integer.toString(i + 1);
+            deleteDirectory(new File(PeerService.PEER_DIRECTORY + serverId));
+            new File(PeerService.PEER_DIRECTORY).mkdirs();
+
+            peers[i] = new PeerService(serverId, VERSION, null, bus.join("MC"),
+                    FragmentingTransport.wrap(bus.join("MDB"), true), FragmentingTransport.wrap(bus.join("MDR"), false), 0);
+            links[i] = new PeerClientLink(peers[i]);
+            links[i].reclaim(CAPACITY);
+        }
+
+        /* let the peers find each other */
+        Thread.sleep(2000);
+
+        REPORT.format("Running %d workers on %d peers for %d s\n", WORKERS, PEERS, DURATION);
+        LoadGenerator generator = new LoadGenerator(peers, links);
+        long elapsed = generator.run();
+
+        Thread.sleep(SETTLE_TIME);
+        String results = generator.results(elapsed);
+        try (Writer writer = new FileWriter(OUTPUT)) {
+            writer.write(results);
+        }
+        REPORT.println(results);
+        REPORT.println("Results written to " + OUTPUT);
+
+        for (PeerService peer : peers)
+            peer.shutdown();
+        bus.close();
+        System.exit(0);
+    }
+
+    /**
+     * Runs the workers until the duration elapses
+     *
+     * @return time the workers ran, in nanoseconds
+     */
+    private long run() throws InterruptedException {
+        ExecutorService workers = Executors.newFixedThreadPool(WORKERS);
+        long startTime = System.nanoTime();
+        long deadline = startTime + TimeUnit.SECONDS.toNanos(DURATION);
+
+        for (int i = 0; i < WORKERS; i++) {
+            int worker = i;
+            workers.execute(() -> {
+                Random random = new Random(SEED * 31 + worker);
+                for (int n = 0; System.nanoTime() < deadline; n++) {
+                    try {
+                        cycle(random, "load-" + worker + '-' + n + ".bin");
+                    } catch (IOException | InterruptedException e) {
+                        System.err.println("Worker " + worker + " failed: " + e);
+                    }
+                }
+            });
+        }
+
+        workers.shutdown();
+        workers.awaitTermination(DURATION + TIMEOUT * 4 / 1000 + 60, TimeUnit.SECONDS);
+        return System.nanoTime() - startTime;
+    }
+
+    /**
+     * Backs up a new file, restores it and, with the configured probabilities, deletes it and reclaims space
+     *
+     * @param random   random of the worker
+     * @param filename name of the new file
+     */
+    private void cycle(Random random, String filename) throws IOException, InterruptedException {
+        int initiator = random.nextInt(PEERS);
+        int size = SIZES[random.nextInt(SIZES.length)];
+        int degree = Math.min(DEGREES[random.nextInt(DEGREES.length)], Math.max(1, PEERS - 1));
+        String suffix = "." + size + ".r" + degree;
+
+        byte[] content = new byte[size];
+        random.nextBytes(content);
+        String path = peers[initiator].getMyFilesPath() + '/' + filename;
+        Files.write(Paths.get(path), content);
+
+        /* BACKUP */
+        long startTime = System.nanoTime();
+        JobStatus backup = awaitJob(links[initiator], links[initiator].backupAsync(filename, degree));
+        if (!record("backup" + suffix, startTime, backup.state == JobStatus.State.COMPLETED))
+            return;
+        bytesBackedUp.addAndGet(size);
+        String fileID = links[initiator].state(filename, 0, 1).files.get(0).fileID;
+
+        /* RESTORE */
+        File restored = new File(peers[initiator].getRestoredFilesPath() + '/' + filename);
+        startTime = System.nanoTime();
+        JobStatus restore = awaitJob(links[initiator], links[initiator].restoreAsync(filename));
+        boolean restoredOk = restore.state == JobStatus.State.COMPLETED
+                && Arrays.equals(Files.readAllBytes(restored.toPath()), content);
+        if (record("restore" + suffix, startTime, restoredOk))
+            bytesRestored.addAndGet(size);
+        restored.delete();
+
+        /* DELETE */
+        if (random.nextDouble() < DELETE_RATE) {
+            startTime = System.nanoTime();
+            links[initiator].delete(filename);
+            record("delete", startTime, awaitCondition(() -> storedChunks(fileID) == 0));
+            new File(path).delete();
+        }
+
+        /* RECLAIM */
+        if (random.nextDouble() < RECLAIM_RATE) {
+            int peer = random.nextInt(PEERS);
+            long usedKb = links[peer].state(null, 0, 0).bytesUsed / 1000;
+            startTime = System.nanoTime();
+            links[peer].reclaim((int) (usedKb / 2));
+            record("reclaim", startTime, true);
+            links[peer].reclaim(CAPACITY);
+        }
+    }
+
+    /**
+     * Waits for a job to finish
+     *
+     * @param link  peer running the job
+     * @param jobID id of the job
+     * @return final status of the job, or its status when the timeout elapsed
+     */
+    private JobStatus awaitJob(InitiatorInterface link, String jobID) throws IOException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        JobStatus status = link.awaitJob(jobID, -1, 0);
+        while (!status.isDone() && System.currentTimeMillis() < deadline)
+            status = link.awaitJob(jobID, status.version, deadline - System.currentTimeMillis());
+        return status;
+    }
+
+    /**
+     * @return number of chunks of the file stored by all the peers
+     */
+    private long storedChunks(String fileID) throws IOException {
+        long chunks = 0;
+        for (InitiatorInterface link : links)
+            chunks += link.state(fileID, 0, 0).totalChunks;
+        return chunks;
+    }
+
+    private interface Condition {
+        boolean check() throws IOException;
+    }
+
+    /**
+     * Polls a condition until it holds or the timeout elapses
+     *
+     * @return true if the condition holds
+     */
+    private boolean awaitCondition(Condition condition) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (!condition.check()) {
+            if (System.currentTimeMillis() > deadline)
+                return false;
+            Thread.sleep(POLL_INTERVAL);
+        }
+        return true;
+    }
+
+    /**
+     * Records the outcome of an operation
+     *
+     * @param operation name of the operation
+     * @param startTime instant the operation started, as returned by System.nanoTime()
+     * @param success   true if the operation completed
+     * @return success
+     */
+    private boolean record(String operation, long startTime, boolean success) {
+        if (success) {
+            latencies.computeIfAbsent(operation, k -> new LatencyHistogram()).recordSince(startTime);
+            completed.computeIfAbsent(operation, k -> new LongAdder()).increment();
+        } else
+            failed.computeIfAbsent(operation, k -> new LongAdder()).increment();
+        return success;
+    }
+
+    /**
+     * Builds the results of the run, as JSON
+     *
+     * @param elapsed time the workers ran, in nanoseconds
+     * @return results
+     */
+    private String results(long elapsed) throws IOException {
+        double seconds = elapsed / 1e9;
+        StringBuilder json = new StringBuilder("{\n");
+
+        json.append("  \"config\": {");
+        json.append(String.format(Locale.ROOT, "\"peers\": %d, \"version\": \"%s\", \"workers\": %d, \"duration_s\": %d, "
+                        + "\"sizes\": %s, \"degrees\": %s, \"delete_rate\": %s, \"reclaim_rate\": %s, \"loss\": %s, "
+                        + "\"mtu\": %d, \"fragment_size\": %d, \"fec\": %b, \"latency_ms\": %d, \"bandwidth\": %d, \"seed\": %d},\n",
+                PEERS, VERSION, WORKERS, DURATION, Arrays.toString(SIZES), Arrays.toString(DEGREES), DELETE_RATE,
+                RECLAIM_RATE, LOSS, MTU, FragmentingTransport.FRAGMENT_SIZE, FragmentingTransport.FEC, LATENCY, BANDWIDTH, SEED));
+
+        json.append(String.format(Locale.ROOT, "  \"elapsed_s\": %.3f,\n", seconds));
+        json.append(String.format(Locale.ROOT, "  \"backup_bytes\": %d,\n  \"backup_gb_per_hour\": %.4f,\n",
+                bytesBackedUp.get(), bytesBackedUp.get() / 1e9 / seconds * 3600));
+        json.append(String.format(Locale.ROOT, "  \"restore_bytes\": %d,\n  \"restore_gb_per_hour\": %.4f,\n",
+                bytesRestored.get(), bytesRestored.get() / 1e9 / seconds * 3600));
+
+        TreeMap<String, Object[]> operations = new TreeMap<>();
+        completed.forEach((operation, count) -> operations.put(operation, new Object[]{count.sum(), 0L}));
+        failed.forEach((operation, count) -> operations.computeIfAbsent(operation, k -> new Object[]{0L, 0L})[1] = count.sum());
+        json.append("  \"operations\": {");
+        String separator = "\n";
+        for (Map.Entry<String, Object[]> operation : operations.entrySet()) {
+            json.append(separator).append("    \"").append(operation.getKey()).append("\": {");
+            json.append("\"completed\": ").append(operation.getValue()[0]).append(", \"failed\": ").append(operation.getValue()[1]);
+            LatencyHistogram histogram = latencies.get(operation.getKey());
+            if (histogram != null) {
+                json.append(String.format(Locale.ROOT, ", \"mean_ms\": %.1f, \"p50_ms\": %.1f, \"p90_ms\": %.1f, \"p99_ms\": %.1f, \"max_ms\": %.1f",
+                        histogram.getMean() / 1e3, histogram.getPercentile(50) / 1e3, histogram.getPercentile(90) / 1e3,
+                        histogram.getPercentile(99) / 1e3, histogram.getMax() / 1e3));
+            }
+            json.append('}');
+            separator = ",\n";
+        }
+        json.append("\n  },\n");
+
+        long putchunkRetransmits = 0, getchunkRetransmits = 0, messagesSent = 0, messagesReceived = 0;
+        long repairsQueued = 0, repairsReplicated = 0, repairBytes = 0, repairsYielded = 0, duplicates = 0;
+        double duplicateHandlingMicros = 0;
+        for (PeerService peer : peers) {
+            Map<String, Long> metrics = peer.getMetrics().getSnapshot();
+            putchunkRetransmits += metrics.getOrDefault(PeerMetrics.PUTCHUNK_RETRANSMITS, 0L);
+            getchunkRetransmits += metrics.getOrDefault(PeerMetrics.GETCHUNK_RETRANSMITS, 0L);
+            messagesSent += peer.getMetrics().getMessagesSent();
+            messagesReceived += peer.getMetrics().getMessagesReceived();
+            repairsQueued += metrics.getOrDefault("repair.queued", 0L);
+            repairsReplicated += metrics.getOrDefault("repair.replicated", 0L);
+            repairBytes += metrics.getOrDefault("repair.bytes", 0L);
+            repairsYielded += metrics.getOrDefault("repair.yielded", 0L);
+            duplicates += metrics.getOrDefault("duplicates.dropped", 0L);
+            /* time the duplicates would have taken to handle, at the mean handling time of their type */
+            for (String type : new String[]{"DELETE", "REMOVED"}) {
+                duplicateHandlingMicros += metrics.getOrDefault("duplicates." + type.toLowerCase(), 0L)
+                        * metrics.getOrDefault(PeerMetrics.HANDLER_LATENCY + type + ".mean_us", 0L);
+            }
+        }
+        json.append(String.format(Locale.ROOT, "  \"retransmits\": {\"putchunk\": %d, \"getchunk\": %d},\n",
+                putchunkRetransmits, getchunkRetransmits));
+        json.append(String.format(Locale.ROOT, "  \"messages\": {\"sent\": %d, \"received\": %d, \"duplicates\": %d, "
+                        + "\"duplicate_handling_ms\": %.1f},\n",
+                messagesSent, messagesReceived, duplicates, duplicateHandlingMicros / 1e3));
+        json.append(String.format(Locale.ROOT, "  \"repair\": {\"queued\": %d, \"replicated\": %d, \"yielded\": %d, "
+                        + "\"bytes\": %d, \"bytes_per_s\": %.1f, \"chunks_per_s\": %.3f},\n",
+                repairsQueued, repairsReplicated, repairsYielded, repairBytes, repairBytes / seconds, repairsReplicated / seconds));
+
+        int files = 0, underReplicatedFiles = 0;
+        long chunks = 0, underReplicatedChunks = 0, chunksHeld = 0, bytesUsed = 0;
+        for (InitiatorInterface link : links) {
+            PeerState state = link.state(null, 0, Integer.MAX_VALUE);
+            chunksHeld += state.chunksHeld;
+            bytesUsed += state.bytesUsed;
+            for (PeerState.FileState file : state.files) {
+                files++;
+                int under = 0;
+                for (int degree : file.perceivedReplicationDegrees) {
+                    if (degree < file.desiredReplicationDegree)
+                        under++;
+                }
+                chunks += file.perceivedReplicationDegrees.length;
+                underReplicatedChunks += under;
+                if (under > 0)
+                    underReplicatedFiles++;
+            }
+        }
+        json.append(String.format(Locale.ROOT, "  \"replication\": {\"files\": %d, \"under_replicated_files\": %d, "
+                        + "\"chunks\": %d, \"under_replicated_chunks\": %d, \"chunks_held\": %d, \"bytes_used\": %d}\n",
+                files, underReplicatedFiles, chunks, underReplicatedChunks, chunksHeld, bytesUsed));
+
+        return json.append("}\n").toString();
+    }
+
+    private static int[] parseInts(String values) {
+        String[] fields = values.split(",");
+        int[] ints = new int[fields.length];
+        for (int i = 0; i < fields.length; i++)
+            ints[i] = Integer.parseInt(fields[i].trim());
+        return ints;
+    }
+
+    private static void deleteDirectory(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children)
+                deleteDirectory(child);
+        }
+        file.delete();
+    }
+}
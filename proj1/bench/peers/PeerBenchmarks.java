@@ -0,0 +1,488 @@
+package peers;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Benchmarks of the hot paths of a peer
+ * Usage: java peers.PeerBenchmarks [filter...]
+ * Only the benchmarks whose name contains one of the filters are run, all of them if none is given
+ * <p>
+ * Properties:
+ * bench.sizes      numbers of tracked chunks the chunk manager benchmarks run with (default 10000,100000,1000000)
+ * bench.csv        file where the results are written as CSV
+ * bench.warmup     number of warmup iterations (default 3)
+ * bench.iterations number of measurement iterations (default 5)
+ * bench.time       duration of every iteration, in milliseconds (default 1000)
+ */
+class PeerBenchmarks {
+
+    /**
+     * Chunks per file in the generated state
+     */
+    private static final int CHUNKS_PER_FILE = 1000;
+    /**
+     * Chunk files written to disk, read by getChunkData
+     */
+    private static final int CHUNKS_ON_DISK = 16;
+    private static final String PEER_ID = "900";
+    private static final String RECLAIM_PEER_ID = "901";
+
+    private static final PrintStream REPORT = System.out;
+
+    private final List<String> filters;
+    private final List<Benchmark.Result> results;
+    private final Random random;
+
+    private PeerBenchmarks(List<String> filters) {
+        this.filters = filters;
+        results = new ArrayList<>();
+        random = new Random(42);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (!Benchmark.allocationSupported())
+            System.err.println("This JVM does not report allocations, B/op will be 0");
+
+        /* Peers log every operation, keep the report readable */
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+
+        PeerBenchmarks benchmarks = new PeerBenchmarks(Arrays.asList(args));
+        benchmarks.headers();
+        for (String size : System.getProperty("bench.sizes", "10000,100000,1000000").split(","))
+            benchmarks.chunkManager(Integer.parseInt(size.trim()));
+        benchmarks.reclaimSpace();
+        benchmarks.contention();
+        benchmarks.fileRestorer();
+        benchmarks.durableWriter();
+        benchmarks.logging();
+
+        String csv = System.getProperty("bench.csv");
+        if (csv != null) {
+            try (PrintWriter writer = new PrintWriter(new FileWriter(csv))) {
+                writer.println("benchmark,ops_per_s,error,bytes_per_op,alloc_mb_per_s");
+                for (Benchmark.Result result : benchmarks.results)
+                    writer.println(result.toCsv());
+            }
+        }
+    }
+
+    /**
+     * Header parsing and building
+     */
+    private void headers() throws Exception {
+        String fileID = fileID(0);
+        byte[] header = PeerService.makeHeader("PUTCHUNK", "1.0", "1", fileID, "0", "2").getBytes(StandardCharsets.US_ASCII);
+        byte[] message = new byte[header.length + PeerService.CHUNK_SIZE];
+        System.arraycopy(header, 0, message, 0, header.length);
+
+        run("header.parse", null, () -> {
+            String[] fields = PeerService.readHeader(new ByteArrayInputStream(message)).split(" ");
+            if (fields.length != 6)
+                throw new IllegalStateException("Bad header");
+        });
+        run("header.make", null, () -> PeerService.makeHeader("PUTCHUNK", "1.0", "1", fileID, "0", "2"));
+    }
+
+    /**
+     * Chunk manager operations on a peer tracking the given number of chunks
+     *
+     * @param trackedChunks number of chunks in the state of the peer
+     */
+    private void chunkManager(int trackedChunks) throws Exception {
+        String prefix = "chunks." + trackedChunks + '.';
+        if (!selected(prefix, "hasChunk", "getChunkData", "storeChunk", "registerStorage", "saveState", "loadState",
+                "loadState.legacy"))
+            return;
+
+        File peerDirectory = resetPeer(PEER_ID);
+        writeState(peerDirectory, trackedChunks);
+        int files = Math.max(1, trackedChunks / CHUNKS_PER_FILE);
+
+        byte[] chunkData = new byte[PeerService.CHUNK_SIZE];
+        random.nextBytes(chunkData);
+        ChunkStore store = new ChunkStore(new File(peerDirectory, "chunks"), ChunkManager.CHUNK_FANOUT);
+        for (int i = 0; i < CHUNKS_ON_DISK; i++) {
+            try (FileOutputStream chunkFile = new FileOutputStream(store.prepare(fileID(0) + '_' + i))) {
+                chunkFile.write(chunkData);
+            }
+        }
+
+        ChunkManager chunkManager = new ChunkManager(PEER_ID, peerDirectory.getPath() + "/chunks", new PeerMetrics());
+        int chunksPerFile = Math.min(trackedChunks, CHUNKS_PER_FILE);
+
+        run(prefix + "hasChunk", null, () -> chunkManager.hasChunk(fileID(random.nextInt(files)), random.nextInt(chunksPerFile)));
+        run(prefix + "getChunkData", null, () -> chunkManager.getChunkData(fileID(0), Integer.toString(random.nextInt(CHUNKS_ON_DISK))));
+
+        /* chunks of a file the peer does not store, so they are always written */
+        String newFileID = fileID(-1);
+        int[] next = new int[1];
+        run(prefix + "storeChunk", null, () -> {
+            if (!chunkManager.storeChunk("1.0", newFileID, Integer.toString(next[0]++ % CHUNKS_ON_DISK), "2", chunkData, 0))
+                throw new IllegalStateException("Chunk not stored");
+        });
+
+        /* the other peer is removed from the chunk first, so the state does not grow with the throughput */
+        String[] storedChunk = new String[1];
+        run(prefix + "registerStorage", () -> {
+            storedChunk[0] = Integer.toString(next[0]++ % CHUNKS_PER_FILE);
+            chunkManager.registerRemoval("1.0", "2", newFileID, storedChunk[0]);
+        }, () -> chunkManager.registerStorage("1.0", "2", newFileID, storedChunk[0]));
+        run(prefix + "saveState", null, chunkManager::saveState);
+        /* saved as a binary snapshot, even if saveState was not selected */
+        chunkManager.saveState();
+        run(prefix + "loadState", null, () -> new ChunkManager(PEER_ID, peerDirectory.getPath() + "/chunks", new PeerMetrics()));
+        /* the state as saved before the binary snapshots, with Java serialization */
+        run(prefix + "loadState.legacy", () -> writeState(peerDirectory, trackedChunks),
+                () -> new ChunkManager(PEER_ID, peerDirectory.getPath() + "/chunks", new PeerMetrics()));
+
+        resetPeer(PEER_ID);
+    }
+
+    /**
+     * Space reclaim of a peer storing a few chunks, all of them deleted
+     */
+    private void reclaimSpace() throws Exception {
+        int chunks = 32;
+        if (!selected("reclaimSpace." + chunks))
+            return;
+
+        File peerDirectory = resetPeer(RECLAIM_PEER_ID);
+        ChunkManager chunkManager = new ChunkManager(RECLAIM_PEER_ID, peerDirectory.getPath() + "/chunks", new PeerMetrics());
+        String fileID = fileID(0);
+        byte[] chunkData = new byte[PeerService.CHUNK_SIZE];
+
+        run("reclaimSpace." + chunks, () -> {
+            for (int i = 0; i < chunks; i++) {
+                String chunkNo = Integer.toString(i);
+                chunkManager.storeChunk("1.0", fileID, chunkNo, "1", chunkData, 0);
+                chunkManager.registerChunk(fileID, chunkNo, "1", chunkData.length);
+                chunkManager.registerStorage("1.0", RECLAIM_PEER_ID, fileID, chunkNo);
+            }
+        }, () -> {
+            if (chunkManager.reclaimSpace(0).size() != chunks)
+                throw new IllegalStateException("Chunks not reclaimed");
+        });
+
+        resetPeer(RECLAIM_PEER_ID);
+    }
+
+    /**
+     * STORED messages handled by 1, 4 and 16 threads at once; an operation is 4096 messages split among the threads
+     * On sameChunk every thread registers another peer for the same chunks, so an update lost leaves a chunk under
+     * the number of threads and fails the run; on files every thread registers the chunks of its own file
+     */
+    private void contention() throws Exception {
+        int messages = 4096;
+        int[] threadCounts = {1, 4, 16};
+        for (int threads : threadCounts) {
+            String sameChunk = "contention.sameChunk." + threads;
+            String files = "contention.files." + threads;
+            if (!selected(sameChunk) && !selected(files))
+                continue;
+
+            File peerDirectory = resetPeer(PEER_ID);
+            ChunkManager chunkManager = new ChunkManager(PEER_ID, peerDirectory.getPath() + "/chunks", new PeerMetrics());
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            List<Future<?>> tasks = new ArrayList<>();
+            int chunks = messages / threads;
+            int[] round = new int[1];
+
+            /* a lost update fails the run, the pool must not keep the JVM alive */
+            try {
+                /* the chunks of the previous operation are forgotten, so the state does not grow */
+                run(sameChunk, () -> chunkManager.markForDeletion(fileID(-2 - round[0]++)), () -> {
+                    String fileID = fileID(-2 - round[0]);
+                    tasks.clear();
+                    for (int i = 0; i < threads; i++) {
+                        String senderID = Integer.toString(i + 2);
+                        tasks.add(pool.submit(() -> {
+                            for (int chunkNo = 0; chunkNo < chunks; chunkNo++)
+                                chunkManager.registerStorage("1.0", senderID, fileID, Integer.toString(chunkNo));
+                        }));
+                    }
+                    for (Future<?> task : tasks)
+                        task.get();
+
+                    for (int chunkNo = 0; chunkNo < chunks; chunkNo++) {
+                        if (chunkManager.getReplicationDegree(fileID, Integer.toString(chunkNo)) != threads)
+                            throw new IllegalStateException("Lost update on chunk " + chunkNo);
+                    }
+                });
+
+                run(files, () -> {
+                    for (int i = 0; i < threads; i++)
+                        chunkManager.markForDeletion(fileID(-1000000 - round[0] * threads - i));
+                    round[0]++;
+                }, () -> {
+                    tasks.clear();
+                    for (int i = 0; i < threads; i++) {
+                        String fileID = fileID(-1000000 - round[0] * threads - i);
+                        tasks.add(pool.submit(() -> {
+                            for (int chunkNo = 0; chunkNo < chunks; chunkNo++)
+                                chunkManager.registerStorage("1.0", "2", fileID, Integer.toString(chunkNo));
+                        }));
+                    }
+                    for (Future<?> task : tasks)
+                        task.get();
+
+                    for (int i = 0; i < threads; i++) {
+                        String fileID = fileID(-1000000 - round[0] * threads - i);
+                        if (chunkManager.getPeerHoldings("2", fileID).cardinality() != chunks)
+                            throw new IllegalStateException("Lost update on file " + fileID);
+                    }
+                });
+            } finally {
+                pool.shutdownNow();
+                chunkManager.close();
+            }
+            resetPeer(PEER_ID);
+        }
+    }
+
+    /**
+     * Assembly of a restored file from its chunks
+     */
+    private void fileRestorer() throws Exception {
+        int chunks = 16;
+        if (!selected("fileRestorer." + chunks))
+            return;
+
+        File peerDirectory = resetPeer(PEER_ID);
+        byte[][] chunkData = new byte[chunks][];
+        for (int i = 0; i < chunks; i++) {
+            chunkData[i] = new byte[i == chunks - 1 ? PeerService.CHUNK_SIZE / 2 : PeerService.CHUNK_SIZE];
+            random.nextBytes(chunkData[i]);
+        }
+        String restoredFilesPath = peerDirectory.getPath() + "/restored_files";
+        new File(restoredFilesPath).mkdirs();
+
+        boolean[] restored = new boolean[1];
+        run("fileRestorer." + chunks, () -> restored[0] = false, () -> {
+            FileRestorer fileRestorer = new FileRestorer("restored.bin", restoredFilesPath, fileID(0), null,
+                    fileID -> restored[0] = true);
+            for (int i = chunks - 1; i >= 0; i--)
+                fileRestorer.processRestoredChunks(Integer.toString(i), chunkData[i]);
+            if (!restored[0])
+                throw new IllegalStateException("File not restored");
+        });
+
+        resetPeer(PEER_ID);
+    }
+
+    /**
+     * Chunk writes of every durability, by a single writer and by concurrent ones that share the syncs;
+     * an operation is one new chunk written by every writer, as on PUTCHUNK
+     */
+    private void durableWriter() throws Exception {
+        int[] writerCounts = {1, 16};
+        for (DurableWriter.Mode mode : DurableWriter.Mode.values()) {
+            for (int writers : writerCounts) {
+                String name = "durableWriter." + mode.name().toLowerCase() + '.' + writers;
+                if (!selected(name))
+                    continue;
+
+                File peerDirectory = resetPeer(PEER_ID);
+                File chunks = new File(peerDirectory, "chunks");
+                chunks.mkdirs();
+                DurableWriter writer = new DurableWriter(new File(peerDirectory, "tmp"), mode, 2, new PeerMetrics());
+                ExecutorService pool = Executors.newFixedThreadPool(writers);
+                byte[] chunkData = new byte[PeerService.CHUNK_SIZE];
+                random.nextBytes(chunkData);
+
+                List<Future<?>> writes = new ArrayList<>();
+                int[] chunkNo = {0};
+                run(name, null, () -> {
+                    writes.clear();
+                    for (int i = 0; i < writers; i++) {
+                        File target = new File(chunks, fileID(0) + '_' + chunkNo[0]++);
+                        writes.add(pool.submit(() -> {
+                            writer.write(target, chunkData);
+                            return null;
+                        }));
+                    }
+                    for (Future<?> write : writes)
+                        write.get();
+                });
+
+                pool.shutdownNow();
+                writer.close();
+                resetPeer(PEER_ID);
+            }
+        }
+    }
+
+    /**
+     * Headers of received messages logged by 1, 4 and 16 handler threads at once, to a file opened like the standard
+     * output; an operation is 4096 headers split among the threads
+     * println writes them as printHeader did, peerLog through the log, waiting for them to be written
+     */
+    private void logging() throws Exception {
+        int messages = 4096;
+        int[] threadCounts = {1, 4, 16};
+        String header = PeerService.makeHeader("STORED", "1.0", "2", fileID(0), "0").trim();
+        for (int threads : threadCounts) {
+            String println = "logging.println." + threads;
+            String peerLog = "logging.peerLog." + threads;
+            if (!selected(println) && !selected(peerLog))
+                continue;
+
+            File peerDirectory = resetPeer(PEER_ID);
+            PrintStream discarded = System.out;
+            PrintStream output = new PrintStream(new BufferedOutputStream(
+                    new FileOutputStream(new File(peerDirectory, "log")), 128), true);
+            System.setOut(output);
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            List<Future<?>> tasks = new ArrayList<>();
+
+            run(println, null, () -> {
+                tasks.clear();
+                for (int i = 0; i < threads; i++) {
+                    tasks.add(pool.submit(() -> {
+                        for (int message = 0; message < messages / threads; message++)
+                            System.out.println("Message received:\n" + header);
+                    }));
+                }
+                for (Future<?> task : tasks)
+                    task.get();
+            });
+
+            run(peerLog, null, () -> {
+                tasks.clear();
+                for (int i = 0; i < threads; i++) {
+                    tasks.add(pool.submit(() -> {
+                        for (int message = 0; message < messages / threads; message++)
+                            PeerLog.message(header, false);
+                    }));
+                }
+                for (Future<?> task : tasks)
+                    task.get();
+                PeerLog.flush(10000);
+            });
+
+            pool.shutdownNow();
+            System.setOut(discarded);
+            output.close();
+            resetPeer(PEER_ID);
+        }
+    }
+
+    /**
+     * Writes the state of a peer tracking the given number of chunks, all of them stored
+     * by the peer and by one other peer, with Java serialization as the ChunkManager saved it before binary snapshots
+     *
+     * @param peerDirectory directory of the peer
+     * @param trackedChunks number of chunks
+     */
+    private static void writeState(File peerDirectory, int trackedChunks) throws IOException {
+        ConcurrentHashMap<String, Integer> numChunksFile = new ConcurrentHashMap<>();
+        ConcurrentHashMap<String, ArrayList<Integer>> chunkMap = new ConcurrentHashMap<>();
+        ConcurrentHashMap<String, String> perceivedChunkRepDeg = new ConcurrentHashMap<>();
+        ConcurrentHashMap<String, Integer> desiredFileReplicationDegrees = new ConcurrentHashMap<>();
+        ConcurrentHashMap<String, ArrayList<Integer>> storedChunks = new ConcurrentHashMap<>();
+
+        for (int chunk = 0; chunk < trackedChunks; chunk += CHUNKS_PER_FILE) {
+            String fileID = fileID(chunk / CHUNKS_PER_FILE);
+            int numChunks = Math.min(CHUNKS_PER_FILE, trackedChunks - chunk);
+            numChunksFile.put(fileID, numChunks);
+            desiredFileReplicationDegrees.put(fileID, 2);
+
+            ArrayList<Integer> fileChunks = new ArrayList<>(numChunks);
+            for (int chunkNo = 0; chunkNo < numChunks; chunkNo++) {
+                ArrayList<Integer> chunkPeers = new ArrayList<>();
+                chunkPeers.add(Integer.parseInt(PEER_ID));
+                chunkPeers.add(1);
+                chunkMap.put(fileID + '_' + chunkNo, chunkPeers);
+                perceivedChunkRepDeg.put(fileID + '_' + chunkNo, "2");
+                fileChunks.add(chunkNo);
+            }
+            storedChunks.put(fileID, fileChunks);
+        }
+
+        try (ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(new File(peerDirectory, ".peer_data"))))) {
+            oos.writeObject(numChunksFile);
+            oos.writeObject(chunkMap);
+            oos.writeObject(perceivedChunkRepDeg);
+            oos.writeObject(desiredFileReplicationDegrees);
+            oos.writeObject(storedChunks);
+            oos.writeObject(new ArrayList<String>());
+            oos.writeObject(new DeletionTracker());
+        }
+    }
+
+    /**
+     * Deletes the directory of a peer and creates it empty
+     *
+     * @param peerID id of the peer
+     * @return directory of the peer
+     */
+    private static File resetPeer(String peerID) {
+        File peerDirectory = new File(PeerService.PEER_DIRECTORY + peerID);
+        delete(peerDirectory);
+        new File(peerDirectory, "chunks").mkdirs();
+        return peerDirectory;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children)
+                delete(child);
+        }
+        file.delete();
+    }
+
+    /**
+     * @return file ID of the given file of the generated state
+     */
+    private static String fileID(int file) {
+        return String.format("%064x", file & 0xffffffffL);
+    }
+
+    /**
+     * Checks if any of the given benchmarks is selected by the filters
+     *
+     * @param prefix prefix of the names of the benchmarks
+     * @param names  names of the benchmarks, without the prefix
+     * @return true if at least one of them should run
+     */
+    private boolean selected(String prefix, String... names) {
+        if (names.length == 0)
+            names = new String[]{""};
+
+        for (String name : names) {
+            if (filters.isEmpty())
+                return true;
+            for (String filter : filters) {
+                if ((prefix + name).contains(filter))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    private void run(String name, Benchmark.Operation setup, Benchmark.Operation operation) throws Exception {
+        if (!selected(name))
+            return;
+
+        Benchmark.Result result = Benchmark.run(name, setup, operation);
+        REPORT.println(result);
+        results.add(result);
+    }
+}
@@ -0,0 +1,14 @@
+#!/bin/bash
+
+# Usage: scripts/bench.sh [filter...]
+# Runs the benchmarks whose name contains one of the filters, all of them if none is given
+# Results are printed and written to bench_bin/results.csv
+
+rm -rf bench_bin
+mkdir -p bench_bin/my_peers
+
+echo "Compiling..."
+javac --release 8 $(find src bench | grep .java) -d bench_bin || exit 1
+
+echo "Running..."
+cd bench_bin && java -Xms4g -Xmx4g -XX:+UseParallelGC $JAVA_OPTS -Dbench.csv=results.csv peers.PeerBenchmarks "$@"
@@ -2,7 +2,10 @@
 
 function usage {
 	echo "sh client.sh <peer> <operation> [<operand1> [<operand2>]]"
-	echo "Available operations: BACKUP, RESTORE, DELETE, RECLAIM and STATE"
+	echo "Available operations: BACKUP, RESTORE, BULKBACKUP, BULKRESTORE, DELETE, RECLAIM, STATE, METRICS, JOBS and JOB"
+	echo "BACKUP and RESTORE show the progress of the operation until it finishes, JOB <id> follows a job"
+	echo "BULKBACKUP <file|dir>... <replicationdegree> and BULKRESTORE <file|dir>... run on every file given or under the directories"
+	echo "STATE optionally takes <file|*> [<offset> [<limit>]] to return a page of the state"
 }
 
 
@@ -13,7 +16,7 @@ if [ "$#" -eq 0 ]; then
 fi
 
 
-if [ "$2" != "BACKUP" -a "$2" != "RESTORE"  -a "$2" != "DELETE"  -a "$2" != "RECLAIM"  -a "$2" != "STATE" ]; then
+if [ "$2" != "BACKUP" -a "$2" != "RESTORE" -a "$2" != "BULKBACKUP" -a "$2" != "BULKRESTORE" -a "$2" != "DELETE"  -a "$2" != "RECLAIM"  -a "$2" != "STATE"  -a "$2" != "METRICS" -a "$2" != "JOBS" -a "$2" != "JOB" ]; then
 	echo "Invalid operation! Usage:"
 	usage
 	exit 1;
@@ -35,6 +38,22 @@ if [ "$2" = "RESTORE" ]; then
 	fi
 fi
 
+if [ "$2" = "BULKBACKUP" ]; then
+	if [ "$#" -lt 4 ]; then
+		echo "Invalid number of arguments for BULKBACKUP"
+		echo "sh client.sh <peer> BULKBACKUP <file|dir>... <replicationdegree>"
+		exit 1;
+	fi
+fi
+
+if [ "$2" = "BULKRESTORE" ]; then
+	if [ "$#" -lt 3 ]; then
+		echo "Invalid number of arguments for BULKRESTORE"
+		echo "sh client.sh <peer> BULKRESTORE <file|dir>..."
+		exit 1;
+	fi
+fi
+
 if [ "$2" = "DELETE" ]; then
 	if [ "$#" -ne 3 ]; then
 		echo "Invalid number of arguments for RESTORE"
@@ -43,6 +62,14 @@ if [ "$2" = "DELETE" ]; then
 	fi
 fi
 
+if [ "$2" = "JOB" ]; then
+	if [ "$#" -ne 3 ]; then
+		echo "Invalid number of arguments for JOB"
+		echo "sh. client.sh <peer> JOB <job_id>"
+		exit 1;
+	fi
+fi
+
 if [ "$2" = "RECLAIM" ]; then
 	if [ "$#" -ne 3 ]; then
 		echo "Invalid number of arguments for RECLAIM"
@@ -53,6 +80,6 @@ fi
 
 #Client
 #java cli.ClientInterface <peer_access_point> <operation> <operands>*
-xterm -e "cd bin && java cli.ClientInterface $1 $2 $3 $4 2> /dev/null
+xterm -e "cd bin && java cli.ClientInterface $* 2> /dev/null
 $SHELL" &
 wait
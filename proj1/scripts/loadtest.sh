@@ -0,0 +1,15 @@
+#!/bin/bash
+
+# Usage: scripts/loadtest.sh
+# Runs a cluster of peers in a single JVM and drives a backup/restore/delete/reclaim workload on it
+# The workload is set with -Dload.* properties on JAVA_OPTS, see bench/peers/LoadGenerator.java
+# Results are printed and written to load_bin/load-results.json
+
+rm -rf load_bin
+mkdir -p load_bin/my_peers
+
+echo "Compiling..."
+javac --release 8 $(find src bench | grep .java) -d load_bin || exit 1
+
+echo "Running..."
+cd load_bin && java -Xmx4g $JAVA_OPTS peers.LoadGenerator
@@ -1,14 +1,28 @@
 package cli;
 
 import common.InitiatorInterface;
+import common.JobStatus;
 
 import java.io.IOException;
 import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
+import java.util.Arrays;
+import java.util.List;
 
 class ClientInterface {
 
+    /**
+     * Number of files and chunks shown by default when a page of the state is requested
+     */
+    private static final int STATE_PAGE_SIZE = 100;
+
+    /**
+     * Minimum interval between two progress lines of a job, in milliseconds
+     */
+    private static final long PROGRESS_INTERVAL = 1000;
+
     private static InitiatorInterface initiatorPeer;
 
     public static void main(String args[]) throws IOException, NotBoundException {
@@ -40,12 +54,23 @@ class ClientInterface {
                     filepath = args[2];
                     replicationDegree = Integer.parseInt(args[3]);
                     System.out.println("Requesting backup of file " + filepath + " with a replication degree of " + replicationDegree);
-                    initiatorPeer.backup(filepath, replicationDegree);
+                    followJob(initiatorPeer.backupAsync(filepath, replicationDegree));
                     break;
                 case "RESTORE":
                     filepath = args[2];
                     System.out.println("Requesting restore of file" + filepath);
-                    initiatorPeer.restore(filepath);
+                    followJob(initiatorPeer.restoreAsync(filepath));
+                    break;
+                case "BULKBACKUP":
+                    replicationDegree = Integer.parseInt(args[args.length - 1]);
+                    List<String> backupPaths = Arrays.asList(args).subList(2, args.length - 1);
+                    System.out.println("Requesting backup of " + backupPaths + " with a replication degree of " + replicationDegree);
+                    followJob(initiatorPeer.bulkBackup(backupPaths, replicationDegree));
+                    break;
+                case "BULKRESTORE":
+                    List<String> restorePaths = Arrays.asList(args).subList(2, args.length);
+                    System.out.println("Requesting restore of " + restorePaths);
+                    followJob(initiatorPeer.bulkRestore(restorePaths));
                     break;
                 case "DELETE":
                     filepath = args[2];
@@ -58,7 +83,23 @@ class ClientInterface {
                     initiatorPeer.reclaim(maxDiskSpace);
                     break;
                 case "STATE":
-                    System.out.println(initiatorPeer.state());
+                    if (args.length > 2) {
+                        String file = args[2].equals("*") ? null : args[2];
+                        int offset = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+                        int limit = args.length > 4 ? Integer.parseInt(args[4]) : STATE_PAGE_SIZE;
+                        System.out.println(initiatorPeer.state(file, offset, limit));
+                    } else
+                        System.out.println(initiatorPeer.state());
+                    break;
+                case "JOBS":
+                    for (JobStatus job : initiatorPeer.jobs())
+                        System.out.println(job);
+                    break;
+                case "JOB":
+                    followJob(args[2]);
+                    break;
+                case "METRICS":
+                    initiatorPeer.metrics().forEach((name, value) -> System.out.println(name + " = " + value));
                     break;
                 default:
                     break;
@@ -68,4 +109,25 @@ class ClientInterface {
         }
 
     }
+
+    /**
+     * Prints the progress of a job, at most once per interval, until it finishes
+     *
+     * @param jobID id of the job
+     * @throws RemoteException
+     */
+    private static void followJob(String jobID) throws RemoteException {
+        System.out.println("Job " + jobID + " started");
+
+        JobStatus status = initiatorPeer.awaitJob(jobID, -1, 0);
+        long lastPrinted = 0;
+        while (!status.isDone()) {
+            if (System.currentTimeMillis() - lastPrinted >= PROGRESS_INTERVAL) {
+                System.out.println(status);
+                lastPrinted = System.currentTimeMillis();
+            }
+            status = initiatorPeer.awaitJob(jobID, status.version, PROGRESS_INTERVAL);
+        }
+        System.out.println(status);
+    }
 }
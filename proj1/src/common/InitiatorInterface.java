@@ -3,6 +3,8 @@ package common;
 import java.io.IOException;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
+import java.util.Map;
 
 public interface InitiatorInterface extends Remote {
 
@@ -23,6 +25,76 @@ public interface InitiatorInterface extends Remote {
      */
     void restore(String pathname) throws IOException;
 
+    /**
+     * Starts the back-up of a file, without waiting for it
+     *
+     * @param pathname          name of the file to backup - should be in the peer's files directories
+     * @param replicationDegree desired replication degree for the file
+     * @return id of the job, used to follow its progress
+     * @throws IOException
+     */
+    String backupAsync(String pathname, int replicationDegree) throws IOException;
+
+    /**
+     * Starts the restore of a file, without waiting for it
+     *
+     * @param pathname name of the file to restore - should be in the peer's files directories
+     * @return id of the job, used to follow its progress
+     * @throws IOException
+     */
+    String restoreAsync(String pathname) throws IOException;
+
+    /**
+     * Starts the back-up of many files, that share the transfer budget of the peer
+     * The progress of every file is reported both by its own job and by the bulk job
+     *
+     * @param pathnames         names of the files and directories to backup, relative to the peer's files directory;
+     *                          directories are backed up with all the files under them
+     * @param replicationDegree desired replication degree for the files
+     * @return id of the bulk job, used to follow the aggregate progress
+     * @throws IOException if a directory cannot be read
+     */
+    String bulkBackup(List<String> pathnames, int replicationDegree) throws IOException;
+
+    /**
+     * Starts the restore of many files, that share the transfer budget of the peer
+     *
+     * @param pathnames names of the files and directories to restore, relative to the peer's files directory
+     * @return id of the bulk job, used to follow the aggregate progress
+     * @throws IOException if a directory cannot be read
+     */
+    String bulkRestore(List<String> pathnames) throws IOException;
+
+    /**
+     * Function used by the user to read the progress of a job
+     *
+     * @param jobID id of the job
+     * @return current status of the job
+     * @throws RemoteException
+     */
+    JobStatus jobStatus(String jobID) throws RemoteException;
+
+    /**
+     * Function used by the user to wait for a job to progress or finish
+     * Returns as soon as the job has a status newer than the one given, so calling it in a loop
+     * with the version of the last status follows every update of the job
+     *
+     * @param jobID        id of the job
+     * @param afterVersion version of the last status seen, -1 to get the current one
+     * @param timeout      maximum time to wait, in milliseconds
+     * @return status of the job
+     * @throws RemoteException
+     */
+    JobStatus awaitJob(String jobID, long afterVersion, long timeout) throws RemoteException;
+
+    /**
+     * Function used by the user to list the running and recently finished jobs
+     *
+     * @return status of every job
+     * @throws RemoteException
+     */
+    List<JobStatus> jobs() throws RemoteException;
+
     /**
      * Function used by the user to delete a determined file
      *
@@ -47,4 +119,25 @@ public interface InitiatorInterface extends Remote {
      */
     String state() throws RemoteException;
 
+    /**
+     * Function used by the user to observe a page of the service state
+     * The aggregate counters are always about the whole service
+     *
+     * @param file   only return the state of this file, given by name or file ID, or of all files if null
+     * @param offset number of files and of stored chunks to skip
+     * @param limit  maximum number of files and of stored chunks to return
+     * @return state of the service
+     * @throws RemoteException
+     */
+    PeerState state(String file, int offset, int limit) throws RemoteException;
+
+    /**
+     * Function used by the user to read the peer metrics: message counters,
+     * bytes per channel and latency percentiles of every subprotocol
+     *
+     * @return value of every metric, by name
+     * @throws RemoteException
+     */
+    Map<String, Long> metrics() throws RemoteException;
+
 }
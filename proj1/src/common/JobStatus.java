@@ -0,0 +1,134 @@
+package common;
+
+import java.io.Serializable;
+
+/**
+ * Progress of an operation started by the client, returned by the peer that runs it
+ */
+public class JobStatus implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public enum State {
+        RUNNING,
+        /**
+         * every chunk reached the desired replication degree, or was restored
+         */
+        COMPLETED,
+        /**
+         * the backup finished, but some chunks are under the desired replication degree
+         */
+        UNDER_REPLICATED,
+        FAILED
+    }
+
+    public final String jobID;
+    public final String operation;
+    public final String file;
+    public final State state;
+    /**
+     * number of the update this status reflects, increases every time the job progresses
+     */
+    public final long version;
+
+    public final int totalChunks;
+    /**
+     * chunks that reached the desired replication degree (backup) or were received (restore)
+     */
+    public final int chunksAcknowledged;
+    public final long totalBytes;
+    /**
+     * bytes sent (backup, retransmissions included) or received (restore)
+     */
+    public final long bytesTransferred;
+    /**
+     * transfer rate over the last seconds, in bytes per second
+     */
+    public final long currentRate;
+    public final long elapsedMillis;
+
+    /**
+     * number of files of the operation, and how many of them finished or failed; 1 unless it is a bulk operation
+     */
+    public final int totalFiles;
+    public final int filesFinished;
+    public final int filesFailed;
+
+    public final int desiredReplicationDegree;
+    /**
+     * replication degree achieved by every chunk, by chunk number; on a restore, 1 if the chunk was received
+     */
+    public final int[] chunkReplication;
+    /**
+     * reason of the failure, null if there is none
+     */
+    public final String message;
+
+    public JobStatus(String jobID, String operation, String file, State state, long version, int totalChunks,
+                     int chunksAcknowledged, long totalBytes, long bytesTransferred, long currentRate,
+                     long elapsedMillis, int totalFiles, int filesFinished, int filesFailed,
+                     int desiredReplicationDegree, int[] chunkReplication, String message) {
+        this.jobID = jobID;
+        this.operation = operation;
+        this.file = file;
+        this.state = state;
+        this.version = version;
+        this.totalChunks = totalChunks;
+        this.chunksAcknowledged = chunksAcknowledged;
+        this.totalBytes = totalBytes;
+        this.bytesTransferred = bytesTransferred;
+        this.currentRate = currentRate;
+        this.elapsedMillis = elapsedMillis;
+        this.totalFiles = totalFiles;
+        this.filesFinished = filesFinished;
+        this.filesFailed = filesFailed;
+        this.desiredReplicationDegree = desiredReplicationDegree;
+        this.chunkReplication = chunkReplication;
+        this.message = message;
+    }
+
+    /**
+     * @return true if the job finished, successfully or not
+     */
+    public boolean isDone() {
+        return state != State.RUNNING;
+    }
+
+    /**
+     * @return average transfer rate since the job started, in bytes per second
+     */
+    public long averageRate() {
+        return elapsedMillis == 0 ? 0 : bytesTransferred * 1000 / elapsedMillis;
+    }
+
+    /**
+     * @return one line summary of the progress
+     */
+    @Override
+    public String toString() {
+        StringBuilder status = new StringBuilder();
+        status.append(jobID).append(' ').append(operation).append(' ').append(file).append(": ").append(state);
+        if (totalFiles != 1) {
+            status.append("; files ").append(filesFinished).append('/').append(totalFiles);
+            if (filesFailed > 0)
+                status.append(" (").append(filesFailed).append(" failed)");
+        }
+        status.append("; chunks ").append(chunksAcknowledged).append('/').append(totalChunks);
+        status.append("; ").append(bytesTransferred / 1000).append(" Kb");
+        if (totalBytes > 0)
+            status.append(" of ").append(totalBytes / 1000).append(" Kb");
+        status.append("; ").append(currentRate / 1000).append(" Kb/s (average ").append(averageRate() / 1000).append(" Kb/s)");
+        status.append("; ").append(elapsedMillis).append(" ms");
+
+        if (state == State.UNDER_REPLICATED) {
+            int minimum = Integer.MAX_VALUE;
+            for (int degree : chunkReplication)
+                minimum = Math.min(minimum, degree);
+            status.append("; lowest replication degree ").append(minimum).append(" of ").append(desiredReplicationDegree);
+        }
+        if (message != null)
+            status.append("; ").append(message);
+
+        return status.toString();
+    }
+}
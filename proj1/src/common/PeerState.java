@@ -0,0 +1,140 @@
+package common;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * State of a peer, returned to the client
+ * Holds a page of the files backed up by the peer and of the chunks it stores,
+ * together with aggregate counters about all of them
+ */
+public class PeerState implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * File backed up by the peer
+     */
+    public static class FileState implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        public final String filename;
+        public final String fileID;
+        public final int desiredReplicationDegree;
+        /**
+         * perceived replication degree of every chunk of the file, by chunk number
+         */
+        public final int[] perceivedReplicationDegrees;
+
+        public FileState(String filename, String fileID, int desiredReplicationDegree, int[] perceivedReplicationDegrees) {
+            this.filename = filename;
+            this.fileID = fileID;
+            this.desiredReplicationDegree = desiredReplicationDegree;
+            this.perceivedReplicationDegrees = perceivedReplicationDegrees;
+        }
+    }
+
+    /**
+     * Chunk stored by the peer
+     */
+    public static class ChunkState implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        public final String fileID;
+        public final int chunkNo;
+        public final int perceivedReplicationDegree;
+
+        public ChunkState(String fileID, int chunkNo, int perceivedReplicationDegree) {
+            this.fileID = fileID;
+            this.chunkNo = chunkNo;
+            this.perceivedReplicationDegree = perceivedReplicationDegree;
+        }
+    }
+
+    public final List<FileState> files;
+    public final List<ChunkState> chunks;
+    /**
+     * total number of files and chunks matching the request, used for paging
+     */
+    public final int totalFiles;
+    public final long totalChunks;
+
+    public final long maxBytes;
+    public final long bytesUsed;
+    public final long chunksHeld;
+    public final int underReplicatedFiles;
+    /**
+     * number of chunks tracked by the peer with each perceived replication degree,
+     * the last position counts the chunks with that degree or more
+     */
+    public final long[] replicationHistogram;
+    public final List<String> peers;
+
+    public PeerState(List<FileState> files, List<ChunkState> chunks, int totalFiles, long totalChunks,
+                     long maxBytes, long bytesUsed, long chunksHeld, int underReplicatedFiles,
+                     long[] replicationHistogram, List<String> peers) {
+        this.files = new ArrayList<>(files);
+        this.chunks = new ArrayList<>(chunks);
+        this.totalFiles = totalFiles;
+        this.totalChunks = totalChunks;
+        this.maxBytes = maxBytes;
+        this.bytesUsed = bytesUsed;
+        this.chunksHeld = chunksHeld;
+        this.underReplicatedFiles = underReplicatedFiles;
+        this.replicationHistogram = replicationHistogram;
+        this.peers = new ArrayList<>(peers);
+    }
+
+    /**
+     * @return human readable report of the state
+     */
+    @Override
+    public String toString() {
+        StringBuilder state = new StringBuilder("\t\t============ FILES ============\n\n");
+
+        for (int i = 0; i < files.size(); i++) {
+            FileState file = files.get(i);
+            state.append("File number ").append(i).append('\n');
+            state.append("\tFilename: ").append(file.filename).append(";\n");
+            state.append("\tFile backup service id: ").append(file.fileID).append(";\n");
+            state.append("\tDesired replication degree: ").append(file.desiredReplicationDegree).append('\n');
+            for (int chunkNo = 0; chunkNo < file.perceivedReplicationDegrees.length; chunkNo++) {
+                state.append("\tChunk ID: ").append(chunkNo).append('\n');
+                state.append("\t\tPerceived replication degree: ").append(file.perceivedReplicationDegrees[chunkNo]).append('\n');
+            }
+        }
+        if (files.size() < totalFiles)
+            state.append("\t(").append(files.size()).append(" of ").append(totalFiles).append(" files)\n");
+
+        state.append("\n\t\t============ CHUNKS ============\n\n");
+        for (ChunkState chunk : chunks) {
+            state.append("\tChunk ID: ").append(chunk.fileID).append('_').append(chunk.chunkNo).append('\n');
+            state.append("\t\tPerceived replication degree: ").append(chunk.perceivedReplicationDegree).append('\n');
+        }
+        if (chunks.size() < totalChunks)
+            state.append("\t(").append(chunks.size()).append(" of ").append(totalChunks).append(" chunks)\n");
+
+        state.append("\n\t\t============ SIZE ============\n\n");
+        state.append("\tMaximum Amount to store chunks: ").append(maxBytes / 1000).append(" Kb\n");
+        state.append("\tStorage used to backup chunks: ").append(bytesUsed / 1000).append(" Kb\n");
+        state.append("\tSpace available: ").append((maxBytes - bytesUsed) / 1000).append(" Kb\n");
+
+        state.append("\n\t\t============ REPLICATION ============\n\n");
+        state.append("\tChunks stored: ").append(chunksHeld).append('\n');
+        state.append("\tFiles under the desired replication degree: ").append(underReplicatedFiles).append('\n');
+        for (int degree = 0; degree < replicationHistogram.length; degree++) {
+            state.append("\tChunks with replication degree ").append(degree)
+                    .append(degree == replicationHistogram.length - 1 ? "+" : "")
+                    .append(": ").append(replicationHistogram[degree]).append('\n');
+        }
+
+        if (!peers.isEmpty()) {
+            state.append("\n\t\t============ PEERS ============\n\n");
+            for (String peer : peers)
+                state.append('\t').append(peer).append('\n');
+        }
+
+        return state.toString();
+    }
+}
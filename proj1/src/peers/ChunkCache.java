@@ -0,0 +1,238 @@
+package peers;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of the content of stored chunks, so chunks asked for again are not read from disk
+ * The chunks are kept off-heap, in a direct buffer split into slots of one chunk each
+ * A new chunk only replaces the least recently used one if it was asked for more often (TinyLFU),
+ * so a restore of a file that is read once does not push the popular chunks out
+ */
+class ChunkCache {
+
+    /**
+     * Maximum value of a frequency counter
+     */
+    private static final int MAX_FREQUENCY = 15;
+    /**
+     * Multipliers of the hash functions of the frequency sketch
+     */
+    private static final int[] SEEDS = {0x9E3779B1, 0x85EBCA77, 0xC2B2AE3D, 0x27D4EB2F};
+
+    private final int slotSize;
+    private final int slots;
+    private final ByteBuffer arena;
+    private final int[] freeSlots;
+    private int freeCount;
+    /**
+     * cached chunks, least recently used first
+     * key = <fileID>_<ChunkNo>
+     */
+    private final LinkedHashMap<String, Entry> entries;
+
+    /**
+     * Approximate number of times every chunk was asked for, halved every sampleSize requests
+     * so old popularity fades away
+     */
+    private final byte[] frequencies;
+    private final int frequencyMask;
+    private final int sampleSize;
+    private int requests;
+    /**
+     * increases on every invalidation, so chunks read before one are not cached
+     */
+    private long version;
+
+    private final PeerMetrics metrics;
+
+    private static class Entry {
+        final int slot;
+        int length;
+
+        Entry(int slot, int length) {
+            this.slot = slot;
+            this.length = length;
+        }
+    }
+
+    /**
+     * @param capacity maximum bytes of chunks kept, 0 to disable the cache
+     * @param slotSize maximum size of a chunk
+     * @param metrics  metrics of the peer, where hits, misses and evictions are counted
+     */
+    ChunkCache(long capacity, int slotSize, PeerMetrics metrics) {
+        this.slotSize = slotSize;
+        this.metrics = metrics;
+        slots = (int) Math.min(capacity / slotSize, Integer.MAX_VALUE / slotSize);
+
+        arena = slots > 0 ? ByteBuffer.allocateDirect(slots * slotSize) : null;
+        freeSlots = new int[slots];
+        for (int slot = 0; slot < slots; slot++)
+            freeSlots[freeCount++] = slots - 1 - slot;
+        entries = new LinkedHashMap<>(16, 0.75f, true);
+
+        int width = Integer.highestOneBit(Math.max(16, slots * 4) - 1) << 1;
+        frequencies = new byte[slots > 0 ? width : 0];
+        frequencyMask = width - 1;
+        sampleSize = 10 * Math.max(1, slots);
+    }
+
+    /**
+     * @return true if the cache keeps any chunk
+     */
+    boolean isEnabled() {
+        return slots > 0;
+    }
+
+    /**
+     * Gets a chunk from the cache, counting the request
+     *
+     * @param key <fileID>_<ChunkNo>
+     * @return copy of the chunk, null if it is not cached
+     */
+    synchronized byte[] get(String key) {
+        if (slots == 0)
+            return null;
+
+        recordRequest(key);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            metrics.increment("cache.misses");
+            return null;
+        }
+
+        byte[] data = new byte[entry.length];
+        ByteBuffer slot = arena.duplicate();
+        slot.position(entry.slot * slotSize);
+        slot.get(data);
+        metrics.increment("cache.hits");
+        return data;
+    }
+
+    /**
+     * @return current version of the cache, to be given to put
+     */
+    synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * Caches a chunk read from disk, if it is asked for more often than the chunk it would replace
+     *
+     * @param key     <fileID>_<ChunkNo>
+     * @param data    content of the chunk
+     * @param version version of the cache before the chunk was read; if any chunk was invalidated since,
+     *                the chunk is not cached, as it may have been deleted
+     */
+    synchronized void put(String key, byte[] data, long version) {
+        if (slots == 0 || data.length > slotSize || version != this.version)
+            return;
+
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            int slot;
+            if (freeCount > 0)
+                slot = freeSlots[--freeCount];
+            else {
+                Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+                Map.Entry<String, Entry> victim = eldest.next();
+                if (frequency(key) <= frequency(victim.getKey())) {
+                    metrics.increment("cache.rejections");
+                    return;
+                }
+
+                eldest.remove();
+                slot = victim.getValue().slot;
+                metrics.increment("cache.bytes", -victim.getValue().length);
+                metrics.increment("cache.evictions");
+            }
+            entry = new Entry(slot, 0);
+            entries.put(key, entry);
+        }
+
+        metrics.increment("cache.bytes", data.length - entry.length);
+        entry.length = data.length;
+        ByteBuffer slot = arena.duplicate();
+        slot.position(entry.slot * slotSize);
+        slot.put(data);
+    }
+
+    /**
+     * Removes a chunk from the cache, when it is deleted or rewritten
+     *
+     * @param key <fileID>_<ChunkNo>
+     */
+    synchronized void invalidate(String key) {
+        if (slots == 0)
+            return;
+
+        version++;
+        Entry entry = entries.remove(key);
+        if (entry != null)
+            release(entry);
+    }
+
+    /**
+     * Removes every chunk of a file from the cache
+     *
+     * @param fileID file ID
+     */
+    synchronized void invalidateFile(String fileID) {
+        if (slots == 0)
+            return;
+
+        version++;
+        String prefix = fileID + '_';
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Entry> cached = iterator.next();
+            if (cached.getKey().startsWith(prefix)) {
+                iterator.remove();
+                release(cached.getValue());
+            }
+        }
+    }
+
+    private void release(Entry entry) {
+        freeSlots[freeCount++] = entry.slot;
+        metrics.increment("cache.bytes", -entry.length);
+        metrics.increment("cache.invalidations");
+    }
+
+    /**
+     * Counts a request for a chunk on the frequency sketch
+     */
+    private void recordRequest(String key) {
+        int hash = key.hashCode();
+        for (int seed : SEEDS) {
+            int index = index(hash, seed);
+            if (frequencies[index] < MAX_FREQUENCY)
+                frequencies[index]++;
+        }
+
+        if (++requests >= sampleSize) {
+            for (int i = 0; i < frequencies.length; i++)
+                frequencies[i] >>= 1;
+            requests /= 2;
+        }
+    }
+
+    /**
+     * @return estimate of the number of times a chunk was asked for, recently
+     */
+    private int frequency(String key) {
+        int hash = key.hashCode();
+        int frequency = MAX_FREQUENCY;
+        for (int seed : SEEDS)
+            frequency = Math.min(frequency, frequencies[index(hash, seed)]);
+        return frequency;
+    }
+
+    private int index(int hash, int seed) {
+        int mixed = hash * seed;
+        return (mixed ^ (mixed >>> 16)) & frequencyMask;
+    }
+}
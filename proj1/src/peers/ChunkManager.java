@@ -1,18 +1,61 @@
 package peers;
 
 
+import common.PeerState;
+
 import java.io.*;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 class ChunkManager {
 
     private static final String CHUNK_MAP_FILENAME = "chunk_info";
     private static final String STATE_FILENAME = ".peer_data";
-    private static final int MAX_SLEEP_TIME = 400;
+    static final int MAX_SLEEP_TIME = 400;
+    /**
+     * Maximum bytes of stored chunks kept in memory to answer GETCHUNK messages, 0 to not cache them
+     */
+    private static final long CACHE_SIZE = Long.getLong("sdis.cache.size", 0);
+    /**
+     * Durability of the stored chunks: none, rename or sync
+     * STORED is only sent once a chunk is written as durably as asked for
+     */
+    private static final DurableWriter.Mode DURABILITY = DurableWriter.parseMode(System.getProperty("sdis.durability", "sync"));
+    /**
+     * Time a sync waits for more chunks to be committed with it, in milliseconds
+     */
+    private static final long SYNC_WINDOW = Long.getLong("sdis.durability.window", 2);
+    /**
+     * Threads scanning the chunk directory when the state is lost
+     */
+    private static final int RECOVERY_THREADS = Integer.getInteger("sdis.recovery.threads",
+            Runtime.getRuntime().availableProcessors());
+    /**
+     * Read every chunk found when the state is lost, instead of trusting the directory listing
+     */
+    private static final boolean RECOVERY_VERIFY = Boolean.getBoolean("sdis.recovery.verify");
+    /**
+     * Levels of directories the chunks are spread over, 0 to keep them all in the chunk directory
+     */
+    static final int CHUNK_FANOUT = Integer.getInteger("sdis.chunks.fanout", 2);
+    /**
+     * Time a change to the state waits for others to be saved with it, in milliseconds, 0 to save on every change
+     */
+    private static final long SAVE_DELAY = Long.getLong("sdis.state.save.delay", 50);
+    /**
+     * Number of locks the files are spread over, a power of two
+     */
+    private static final int LOCK_STRIPES = 64;
     private final String chunksPath;
     private final String serverId;
     /**
@@ -23,13 +66,20 @@ class ChunkManager {
      * stores the number of chunks every file has
      * key = <fileID>_<ChunkNo>
      */
-    private ConcurrentHashMap<String, Integer> numChunksFile;
+    private ConcurrentHashMap<String, Long> numChunksFile;
     /**
      * registers the peers that have stored chunks
      * key = <fileID>_<ChunkNo>
      * value = array with the peer id of the peers that have stored that chunk
      */
     private ConcurrentHashMap<String, ArrayList<Integer>> chunkMap;
+    /**
+     * indexes the chunks of every file present in the chunkMap,
+     * rebuilt from the chunkMap when the state is loaded
+     * key = <fileID>
+     * value = chunk numbers of the file with an entry in the chunkMap
+     */
+    private final ConcurrentHashMap<String, Set<Integer>> fileChunkIndex;
     /**
      * registers the perceived replication degree of the chunks,
      * used by Properties to write information to a file
@@ -56,35 +106,72 @@ class ChunkManager {
      */
     private ArrayList<String> restoredChunkList;
     /**
-     * Stores the chunks that are marked for deletion
+     * Stores the files that are marked for deletion, indexed by file and by peer
      * Used in the enhanced version of the File Deletion Subprotocol
-     * <p>
-     * key = <fileID>_<ChunkNo>
-     * value = array with the peer id of the peers that have stored that chunk
      */
-    private ConcurrentHashMap<String, ArrayList<Integer>> markedForDeletion;
-    private long occupiedSpace;
+    private DeletionTracker deletionTracker;
+    /**
+     * aggregate counters, updated as chunks are stored and replication degrees change
+     */
+    private final ReplicationStatistics statistics;
+    private final PeerMetrics metrics;
+    /**
+     * content of the chunks asked for most often
+     */
+    private final ChunkCache cache;
+    private final DurableWriter writer;
+    private final ChunkStore store;
+    /**
+     * the lists of peers and of stored chunks of a file are only read and changed holding the lock of the file,
+     * so handlers of different files run in parallel and the updates to a chunk are never lost
+     */
+    private final Object[] fileLocks;
+    /**
+     * true while a save of the state is scheduled, the changes made until it runs are saved with it
+     */
+    private final AtomicBoolean saveScheduled;
+    private final ScheduledThreadPoolExecutor saver;
 
     /**
      * Chunk Manager - deals with all the operations relating specifically to the chunks
      *
      * @param serverId   id of the peer this chunk manager belongs to
      * @param chunksPath path of the directory where the chunks are stored
+     * @param metrics    metrics of the peer, where disk latencies are recorded
      */
-    public ChunkManager(String serverId, String chunksPath) {
+    public ChunkManager(String serverId, String chunksPath, PeerMetrics metrics) {
 
         this.serverId = serverId;
         this.chunksPath = chunksPath;
+        this.metrics = metrics;
+        fileChunkIndex = new ConcurrentHashMap<>();
+        statistics = new ReplicationStatistics();
+        cache = new ChunkCache(CACHE_SIZE, PeerService.CHUNK_SIZE, metrics);
+        store = new ChunkStore(new File(chunksPath), CHUNK_FANOUT);
+        writer = new DurableWriter(new File(new File(chunksPath).getAbsoluteFile().getParentFile(), "tmp"), DURABILITY,
+                SYNC_WINDOW, metrics);
+        fileLocks = new Object[LOCK_STRIPES];
+        for (int i = 0; i < LOCK_STRIPES; i++)
+            fileLocks[i] = new Object();
+        saveScheduled = new AtomicBoolean();
+        saver = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "state-saver");
+            thread.setDaemon(true);
+            return thread;
+        });
+        saver.setKeepAliveTime(1, TimeUnit.SECONDS);
+        saver.allowCoreThreadTimeOut(true);
 
-        if (!loadState()) {
+        /* if the state is lost, the chunks still on disk are recovered */
+        boolean recovering = !loadState();
+        if (recovering) {
             desiredFileReplicationDegrees = new ConcurrentHashMap<>();
             storedChunks = new ConcurrentHashMap<>();
             chunkMap = new ConcurrentHashMap<>();
             numChunksFile = new ConcurrentHashMap<>();
             perceivedChunkRepDeg = new ConcurrentHashMap<>();
-            occupiedSpace = 0;
             restoredChunkList = new ArrayList<>();
-            markedForDeletion = new ConcurrentHashMap<>();
+            deletionTracker = new DeletionTracker();
         }
 
         chunkRepDegProperties = new Properties();
@@ -98,15 +185,47 @@ class ChunkManager {
             System.err.println("Unable to create chunk info file!");
             System.exit(1);
         }
+
+        if (recovering)
+            recoverChunks();
+        store.startMigration();
+    }
+
+    /**
+     * Registers the chunks found on the chunk directory, when the state was lost
+     * Each chunk is only known to be stored by this peer; the other peers that store it are learnt
+     * on the anti-entropy protocol, and the desired replication degree of its file from their digests
+     */
+    private void recoverChunks() {
+        ChunkRecovery recovery = new ChunkRecovery(new File(chunksPath), RECOVERY_THREADS, RECOVERY_VERIFY,
+                PeerService.CHUNK_SIZE);
+        if (!recovery.scan() || recovery.getChunks().isEmpty())
+            return;
+
+        ArrayList<Integer> self = new ArrayList<>();
+        self.add(Integer.parseInt(serverId));
+        recovery.getChunks().forEach((fileID, fileChunks) -> {
+            storedChunks.put(fileID, fileChunks);
+            for (Integer chunkNo : fileChunks) {
+                String chunkKey = fileID + '_' + chunkNo;
+                chunkMap.put(chunkKey, new ArrayList<>(self));
+                perceivedChunkRepDeg.put(chunkKey, "1");
+                indexChunk(fileID, chunkNo);
+            }
+        });
+
+        resetStatistics(recovery.getBytes());
+        saveReplicationDegrees();
+        saveState();
     }
 
     /**
      * Saves the chunk replication degrees to a file
      */
-    private void saveReplicationDegrees() {
+    private synchronized void saveReplicationDegrees() {
         chunkRepDegProperties.putAll(perceivedChunkRepDeg);
-        try {
-            chunkRepDegProperties.store(new FileOutputStream(PeerService.PEER_DIRECTORY + serverId + '/' + CHUNK_MAP_FILENAME), "FileID_ChunkNo=PerceivedReplicationDegree");
+        try (FileOutputStream output = new FileOutputStream(PeerService.PEER_DIRECTORY + serverId + '/' + CHUNK_MAP_FILENAME)) {
+            chunkRepDegProperties.store(output, "FileID_ChunkNo=PerceivedReplicationDegree");
         } catch (IOException e) {
             System.err.println("Failed to write to chunk file");
         }
@@ -117,32 +236,117 @@ class ChunkManager {
      *
      * @return true if write was successful
      */
-    private synchronized void saveState() {
+    synchronized void saveState() {
+        StateSnapshot snapshot = new StateSnapshot();
+        snapshot.numChunksFile = numChunksFile;
+        snapshot.chunkMap = chunkMap;
+        snapshot.perceivedChunkRepDeg = perceivedChunkRepDeg;
+        snapshot.desiredFileReplicationDegrees = desiredFileReplicationDegrees;
+        snapshot.storedChunks = storedChunks;
+        snapshot.restoredChunkList = restoredChunkList;
+        snapshot.deletionTracker = deletionTracker;
+        snapshot.occupiedSpace = statistics.getBytesUsed();
         try {
-            ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(PeerService.PEER_DIRECTORY + serverId + '/' + STATE_FILENAME));
-            oos.writeObject(numChunksFile);
-            oos.writeObject(chunkMap);
-            oos.writeObject(perceivedChunkRepDeg);
-            oos.writeObject(desiredFileReplicationDegrees);
-            oos.writeObject(storedChunks);
-            oos.writeObject(restoredChunkList);
-            oos.writeObject(markedForDeletion);
-            oos.close();
+            snapshot.write(new File(PeerService.PEER_DIRECTORY + serverId + '/' + STATE_FILENAME));
         } catch (IOException e) {
-            System.err.println("Unable to open state file");
+            System.err.println("Unable to write state file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Saves the state after a change, together with the other changes made within SAVE_DELAY,
+     * so a burst of messages writes the state once instead of once per message
+     */
+    private void stateChanged() {
+        if (SAVE_DELAY <= 0) {
+            saveNow();
+            return;
+        }
+
+        if (saveScheduled.compareAndSet(false, true)) {
+            try {
+                saver.schedule(this::saveNow, SAVE_DELAY, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                /* closed */
+                saveNow();
+            }
+        }
+    }
+
+    private void saveNow() {
+        /* cleared first, so a change made while saving schedules another save */
+        saveScheduled.set(false);
+        saveReplicationDegrees();
+        saveState();
+    }
+
+    /**
+     * Saves the pending changes to the state and stops committing chunk writes, when the peer stops
+     */
+    void close() {
+        /* a pending save still runs */
+        saver.shutdown();
+        try {
+            saver.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+        writer.close();
+    }
+
+    /**
+     * @param fileID id of the file
+     * @return lock of the file, shared with the files on the same stripe
+     */
+    private Object lock(String fileID) {
+        int hash = fileID.hashCode();
+        return fileLocks[(hash ^ (hash >>> 16)) & (LOCK_STRIPES - 1)];
     }
 
     /**
      * Reads the saved file and loads the peer state
+     * States saved before the binary snapshot format are still read, and saved in it on the next change
      *
      * @return true if read was successful
      */
     private boolean loadState() {
+        File stateFile = new File(PeerService.PEER_DIRECTORY + serverId + '/' + STATE_FILENAME);
+        if (!StateSnapshot.isSnapshot(stateFile))
+            return loadSerializedState(stateFile);
+
+        StateSnapshot snapshot;
         try {
-            ObjectInputStream ois = new ObjectInputStream(new FileInputStream(PeerService.PEER_DIRECTORY + serverId + '/' + STATE_FILENAME));
+            snapshot = StateSnapshot.read(stateFile, this::indexChunk);
+            numChunksFile = snapshot.numChunksFile;
+            chunkMap = snapshot.chunkMap;
+            perceivedChunkRepDeg = snapshot.perceivedChunkRepDeg;
+            desiredFileReplicationDegrees = snapshot.desiredFileReplicationDegrees;
+            storedChunks = snapshot.storedChunks;
+            restoredChunkList = snapshot.restoredChunkList;
+            deletionTracker = snapshot.deletionTracker;
+        } catch (IOException e) {
+            System.err.println("Unable to load peer state: " + e.getMessage());
+            fileChunkIndex.clear();
+            return false;
+        }
+
+        resetStatistics(snapshot.occupiedSpace >= 0 ? snapshot.occupiedSpace : store.measure());
+        return true;
+    }
+
+    /**
+     * Reads a state saved with Java serialization
+     *
+     * @param stateFile state file
+     * @return true if read was successful
+     */
+    private boolean loadSerializedState(File stateFile) {
+        try {
+            ObjectInputStream ois = new ObjectInputStream(new FileInputStream(stateFile));
+            /* states saved before files could have more than 2^31 chunks hold the counts as Integer */
+            numChunksFile = new ConcurrentHashMap<>();
             //noinspection unchecked
-            numChunksFile = (ConcurrentHashMap<String, Integer>) ois.readObject();
+            ((Map<String, Number>) ois.readObject()).forEach((fileID, numChunks) -> numChunksFile.put(fileID, numChunks.longValue()));
             //noinspection unchecked
             chunkMap = (ConcurrentHashMap<String, ArrayList<Integer>>) ois.readObject();
             //noinspection unchecked
@@ -153,16 +357,43 @@ class ChunkManager {
             storedChunks = (ConcurrentHashMap<String, ArrayList<Integer>>) ois.readObject();
             //noinspection unchecked
             restoredChunkList = (ArrayList<String>) ois.readObject();
-            //noinspection unchecked
-            markedForDeletion = (ConcurrentHashMap<String, ArrayList<Integer>>) ois.readObject();
-            occupiedSpace = getOccupiedSpace();
+            Object deletions = ois.readObject();
+            if (deletions instanceof DeletionTracker)
+                deletionTracker = (DeletionTracker) deletions;
+            else //noinspection unchecked
+                deletionTracker = DeletionTracker.fromChunkLists((Map<String, ArrayList<Integer>>) deletions);
+
+            for (String chunkKey : chunkMap.keySet()) {
+                int separator = chunkKey.lastIndexOf('_');
+                indexChunk(chunkKey.substring(0, separator), Integer.parseInt(chunkKey.substring(separator + 1)));
+            }
+            ois.close();
         } catch (IOException | ClassNotFoundException e) {
             System.err.println("Unable to load peer state");
             return false;
         }
+
+        resetStatistics(store.measure());
         return true;
     }
 
+    /**
+     * Recomputes the replication statistics from a loaded state
+     *
+     * @param occupiedSpace bytes of the stored chunks
+     */
+    private void resetStatistics(long occupiedSpace) {
+        long chunksHeld = 0;
+        for (ArrayList<Integer> fileChunks : storedChunks.values())
+            chunksHeld += fileChunks.size();
+        statistics.resetStorage(chunksHeld, occupiedSpace);
+
+        perceivedChunkRepDeg.forEach((chunkKey, degree) -> {
+            String fileID = chunkKey.substring(0, chunkKey.lastIndexOf('_'));
+            statistics.degreeChanged(fileID, -1, Integer.parseInt(degree), getDesiredReplicationDegree(fileID));
+        });
+    }
+
 
     /**
      * Places a file in the replication degree hash map and
@@ -172,10 +403,22 @@ class ChunkManager {
      * @param replicationDegree desired replication degree for the file
      */
     void registerFile(String fileID, int replicationDegree) {
-        if (desiredFileReplicationDegrees.get(fileID) != null) {
-            desiredFileReplicationDegrees.remove(fileID);
+        synchronized (lock(fileID)) {
+            Integer previousDegree = desiredFileReplicationDegrees.put(fileID, replicationDegree);
+            if (previousDegree != null && previousDegree == replicationDegree)
+                return;
+
+            ArrayList<Integer> degrees = new ArrayList<>();
+            Set<Integer> fileChunks = fileChunkIndex.get(fileID);
+            if (fileChunks != null) {
+                for (Integer chunkNo : fileChunks) {
+                    String degree = perceivedChunkRepDeg.get(fileID + '_' + chunkNo);
+                    if (degree != null)
+                        degrees.add(Integer.parseInt(degree));
+                }
+            }
+            statistics.recountFile(fileID, degrees, replicationDegree);
         }
-        desiredFileReplicationDegrees.put(fileID, replicationDegree);
     }
 
     /**
@@ -194,41 +437,50 @@ class ChunkManager {
      * checks if the file is already registered, if not, it is registered
      * with the desired replication degree
      * checks if the chunk is already stored, if not, it is stored
+     * The space occupied by the chunk is counted only when it is registered, under the lock of its file,
+     * so a chunk written by two PUTCHUNK messages at once is counted once
      *
      * @param fileID            file ID of the file the chunk belongs to
      * @param chunkNo           chunk number of the chunk to register
      * @param replicationDegree desired replication degree of the chunk
+     * @param chunkSize         size of the chunk, in bytes
+     * @return true if the chunk was not registered yet
      */
-    public void registerChunk(String fileID, String chunkNo, String replicationDegree) {
+    public boolean registerChunk(String fileID, String chunkNo, String replicationDegree, long chunkSize) {
         int chkNo = Integer.parseInt(chunkNo);
-        ArrayList<Integer> fileChunks = storedChunks.get(fileID);
 
-        if (hasChunk(fileID, chkNo))
-            return;
+        synchronized (lock(fileID)) {
+            ArrayList<Integer> fileChunks = storedChunks.get(fileID);
+
+            if (hasChunk(fileID, chkNo))
+                return false;
 
-        // no chunks registered for this file, register the file and register the chunk
-        if (fileChunks == null) {
-            registerFile(fileID, Integer.parseInt(replicationDegree));
-            fileChunks = new ArrayList<>();
+            // no chunks registered for this file, register the file and register the chunk
+            if (fileChunks == null) {
+                registerFile(fileID, Integer.parseInt(replicationDegree));
+                fileChunks = new ArrayList<>();
+                storedChunks.put(fileID, fileChunks);
+            }
             fileChunks.add(chkNo);
-            storedChunks.put(fileID, fileChunks);
-            return;
+            statistics.chunkStored(chunkSize);
+            return true;
         }
-        fileChunks.add(chkNo);
     }
 
     /**
      * Function called when the peer receives a PUTCHUNK message from another peer
-     * registers the file and the chunk
+     * writes the chunk, which is then registered, and counted, by registerChunk
      *
      * @param protocolVersion   version of the Chunk Backup Subprotocol
      * @param fileID            file ID of the file the chunk belongs to
      * @param chunkNo           chunk number of the chunk to be stored
      * @param replicationDegree desired file replication degree
      * @param chunkData         chunk data
+     * @param waitTime          time to wait before (2.0) or after (1.0) storing the chunk, in milliseconds
      * @return true if the chunk was registered and stored
      */
-    boolean storeChunk(String protocolVersion, String fileID, String chunkNo, String replicationDegree, byte[] chunkData) {
+    boolean storeChunk(String protocolVersion, String fileID, String chunkNo, String replicationDegree, byte[] chunkData,
+                       long waitTime) {
         if (protocolVersion == null || fileID == null || chunkData == null
                 || replicationDegree == null
                 || chunkNo == null)
@@ -244,7 +496,7 @@ class ChunkManager {
         try {
 
             if (protocolVersion.equals("2.0")) {
-                sleep();
+                sleep(waitTime);
                 if (chunkMap.containsKey(chunkKey)) {
                     //verifying if the replication degree desire by the peer was already reached
                     if (getReplicationDegree(fileID, chunkNo) >= Integer.parseInt(replicationDegree)) {
@@ -254,10 +506,9 @@ class ChunkManager {
                 writeChunkToMemory(fileID, chunkNo, chunkData);
             } else {
                 writeChunkToMemory(fileID, chunkNo, chunkData);
-                sleep();
+                sleep(waitTime);
             }
 
-
         } catch (IOException e) {
             System.err.println("IOException :: PeerService :: Unable to backup chunk.");
             return false;
@@ -269,6 +520,7 @@ class ChunkManager {
 
     /**
      * Writes a chunk of a given file to memory
+     * Returns once the chunk is written as durably as configured, so STORED can be sent
      *
      * @param fileID    id of the file
      * @param chunkNo   number of the chunk
@@ -276,21 +528,22 @@ class ChunkManager {
      * @throws IOException
      */
     private void writeChunkToMemory(String fileID, String chunkNo, byte[] chunkData) throws IOException {
+        long startTime = System.nanoTime();
         String filename = fileID + "_" + chunkNo;
-        FileOutputStream chunkFile = new FileOutputStream(chunksPath + "/" + filename);
-        chunkFile.write(chunkData);
-        chunkFile.close();
+        cache.invalidate(filename);
+        writer.write(store.prepare(filename), chunkData);
+        metrics.histogram(PeerMetrics.DISK_WRITE).recordSince(startTime);
     }
 
     /**
-     * Sleeps inside of a range from 0 to 400 ms
+     * Sleeps for the given time, usually inside of a range from 0 to 400 ms
      *
+     * @param waitTime time to sleep, in milliseconds
      * @throws InterruptedException
      */
-    private void sleep() throws InterruptedException {
-        Random random = new Random();
-        long waitTime = random.nextInt(MAX_SLEEP_TIME);
-        Thread.sleep(waitTime);
+    private void sleep(long waitTime) throws InterruptedException {
+        if (waitTime > 0)
+            Thread.sleep(waitTime);
     }
 
     /**
@@ -307,24 +560,26 @@ class ChunkManager {
         if (protocolVersion == null || senderID == null || fileID == null || chunkNo == null)
             return;
 
-        ArrayList<Integer> chunkPeers = chunkMap.get(fileID + '_' + chunkNo);
         String chunkKey = fileID + '_' + chunkNo;
         int sender = Integer.parseInt(senderID);
-        if (chunkPeers == null) {
-            chunkPeers = new ArrayList<>();
-            chunkPeers.add(sender);
-            chunkMap.put(chunkKey, chunkPeers);
-            perceivedChunkRepDeg.put(chunkKey, "1");
-        } else {
-            for (Integer chunkPeer : chunkPeers) {
-                if (chunkPeer == sender)    // peer was already registered
-                    return;
+        synchronized (lock(fileID)) {
+            ArrayList<Integer> chunkPeers = chunkMap.get(chunkKey);
+            if (chunkPeers == null) {
+                chunkPeers = new ArrayList<>();
+                chunkPeers.add(sender);
+                chunkMap.put(chunkKey, chunkPeers);
+                setPerceivedDegree(fileID, chunkKey, 1);
+                indexChunk(fileID, Integer.parseInt(chunkNo));
+            } else {
+                for (Integer chunkPeer : chunkPeers) {
+                    if (chunkPeer == sender)    // peer was already registered
+                        return;
+                }
+                chunkPeers.add(sender);
+                setPerceivedDegree(fileID, chunkKey, chunkPeers.size());
             }
-            chunkPeers.add(sender);
-            perceivedChunkRepDeg.replace(chunkKey, Integer.toString(chunkPeers.size()));
         }
-        saveReplicationDegrees();
-        saveState();
+        stateChanged();
     }
 
     /**
@@ -343,19 +598,204 @@ class ChunkManager {
             return false;
 
         String chunkKey = fileID + '_' + chunkNo;
-        ArrayList<Integer> chunkPeers = chunkMap.get(chunkKey);
-        if (chunkPeers == null) //file not registered on the server
-            return false;
-
         Object sender = Integer.parseInt(senderID);
-        chunkPeers.remove(sender);
-        perceivedChunkRepDeg.replace(chunkKey, Integer.toString(chunkPeers.size()));
-        saveReplicationDegrees();
-        saveState();
+        synchronized (lock(fileID)) {
+            ArrayList<Integer> chunkPeers = chunkMap.get(chunkKey);
+            if (chunkPeers == null) //file not registered on the server
+                return false;
+
+            chunkPeers.remove(sender);
+            setPerceivedDegree(fileID, chunkKey, chunkPeers.size());
+        }
+        stateChanged();
         return true;
     }
 
 
+    /**
+     * Registers a chunk of a file in the file chunk index
+     *
+     * @param fileID  id of the file
+     * @param chunkNo chunk number
+     */
+    private void indexChunk(String fileID, int chunkNo) {
+        fileChunkIndex.computeIfAbsent(fileID, k -> ConcurrentHashMap.newKeySet()).add(chunkNo);
+    }
+
+    /**
+     * Removes a chunk of a file from the file chunk index
+     *
+     * @param fileID  id of the file
+     * @param chunkNo chunk number
+     */
+    private void unindexChunk(String fileID, int chunkNo) {
+        fileChunkIndex.computeIfPresent(fileID, (k, chunks) -> {
+            chunks.remove(chunkNo);
+            return chunks.isEmpty() ? null : chunks;
+        });
+    }
+
+    /**
+     * Checks if the peer keeps information about a file, i.e. it owns the file,
+     * has stored chunks of it or knows other peers that did
+     *
+     * @param fileID id of the file
+     * @return true if the file is known
+     */
+    boolean knowsFile(String fileID) {
+        return desiredFileReplicationDegrees.containsKey(fileID) || fileChunkIndex.containsKey(fileID);
+    }
+
+    /**
+     * Summarizes the chunks stored on this peer, for the anti-entropy protocol
+     *
+     * @return digest entry for every file this peer has chunks of
+     */
+    ArrayList<HoldingsDigest.Entry> getHoldingsDigest() {
+        ArrayList<HoldingsDigest.Entry> entries = new ArrayList<>();
+
+        storedChunks.forEach((fileID, chunks) -> {
+            BitSet fileChunks = getStoredChunks(fileID);
+            if (!fileChunks.isEmpty())
+                entries.add(new HoldingsDigest.Entry(fileID, getDesiredReplicationDegree(fileID), fileChunks));
+        });
+
+        return entries;
+    }
+
+    /**
+     * Get the chunks of a file stored on this peer
+     *
+     * @param fileID id of the file
+     * @return chunk numbers of the stored chunks
+     */
+    BitSet getStoredChunks(String fileID) {
+        BitSet chunks = new BitSet();
+
+        synchronized (lock(fileID)) {
+            ArrayList<Integer> fileChunks = storedChunks.get(fileID);
+            if (fileChunks != null) {
+                for (Integer chunkNo : fileChunks)
+                    chunks.set(chunkNo);
+            }
+        }
+
+        return chunks;
+    }
+
+    /**
+     * Get the chunks this peer believes another peer has stored, for every file
+     *
+     * @param senderID id of the other peer
+     * @return chunk numbers registered for the peer
+     * key = <fileID>
+     */
+    HashMap<String, BitSet> getPeerHoldings(String senderID) {
+        Integer sender = Integer.parseInt(senderID);
+        HashMap<String, BitSet> holdings = new HashMap<>();
+
+        fileChunkIndex.forEach((fileID, chunks) -> {
+            synchronized (lock(fileID)) {
+                for (Integer chunkNo : chunks) {
+                    ArrayList<Integer> chunkPeers = chunkMap.get(fileID + '_' + chunkNo);
+                    if (chunkPeers != null && chunkPeers.contains(sender))
+                        holdings.computeIfAbsent(fileID, k -> new BitSet()).set(chunkNo);
+                }
+            }
+        });
+
+        return holdings;
+    }
+
+    /**
+     * Get the chunks of a file this peer believes another peer has stored
+     *
+     * @param senderID id of the other peer
+     * @param fileID   id of the file
+     * @return chunk numbers registered for the peer
+     */
+    BitSet getPeerHoldings(String senderID, String fileID) {
+        Integer sender = Integer.parseInt(senderID);
+        BitSet holdings = new BitSet();
+        Set<Integer> chunks = fileChunkIndex.get(fileID);
+
+        if (chunks != null) {
+            synchronized (lock(fileID)) {
+                for (Integer chunkNo : chunks) {
+                    ArrayList<Integer> chunkPeers = chunkMap.get(fileID + '_' + chunkNo);
+                    if (chunkPeers != null && chunkPeers.contains(sender))
+                        holdings.set(chunkNo);
+                }
+            }
+        }
+
+        return holdings;
+    }
+
+    /**
+     * Called when the chunks another peer holds of a file are known,
+     * updates the chunkMap to reflect them
+     *
+     * @param senderID id of the peer that holds the chunks
+     * @param fileID   id of the file
+     * @param held     chunk numbers the peer holds
+     * @return number of chunks whose perceived replication degree changed
+     */
+    int reconcileHoldings(String senderID, String fileID, BitSet held) {
+        return reconcileHoldings(senderID, fileID, held, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Called when the chunks another peer holds of a range of chunks of a file are known,
+     * updates the chunkMap to reflect them, leaving the chunks out of the range untouched
+     *
+     * @param senderID id of the peer that holds the chunks
+     * @param fileID   id of the file
+     * @param held     chunk numbers the peer holds, within the range
+     * @param from     first chunk number of the range
+     * @param to       chunk number after the last one of the range
+     * @return number of chunks whose perceived replication degree changed
+     */
+    int reconcileHoldings(String senderID, String fileID, BitSet held, int from, int to) {
+        Integer sender = Integer.parseInt(senderID);
+        int changed = 0;
+
+        synchronized (lock(fileID)) {
+            BitSet registered = getPeerHoldings(senderID, fileID);
+            registered.clear(0, from);
+            registered.clear(to, Math.max(to, registered.length()));
+
+            /* chunks the peer holds that were not registered */
+            BitSet added = (BitSet) held.clone();
+            added.clear(0, from);
+            added.clear(to, Math.max(to, added.length()));
+            added.andNot(registered);
+            for (int chunkNo = added.nextSetBit(0); chunkNo >= 0; chunkNo = added.nextSetBit(chunkNo + 1)) {
+                String chunkKey = fileID + '_' + chunkNo;
+                ArrayList<Integer> chunkPeers = chunkMap.computeIfAbsent(chunkKey, k -> new ArrayList<>());
+                chunkPeers.add(sender);
+                setPerceivedDegree(fileID, chunkKey, chunkPeers.size());
+                indexChunk(fileID, chunkNo);
+                changed++;
+            }
+
+            /* chunks registered for the peer that it no longer holds */
+            BitSet removed = (BitSet) registered.clone();
+            removed.andNot(held);
+            for (int chunkNo = removed.nextSetBit(0); chunkNo >= 0; chunkNo = removed.nextSetBit(chunkNo + 1)) {
+                String chunkKey = fileID + '_' + chunkNo;
+                ArrayList<Integer> chunkPeers = chunkMap.get(chunkKey);
+                chunkPeers.remove(sender);
+                setPerceivedDegree(fileID, chunkKey, chunkPeers.size());
+                changed++;
+            }
+        }
+
+        if (changed > 0)
+            stateChanged();
+        return changed;
+    }
+
     /**
      * Verifies if a given chunk of a given file is stored on the peer
      *
@@ -365,10 +805,10 @@ class ChunkManager {
      */
     boolean hasChunk(String fileID, Integer chunkNo) {
 
-        ArrayList<Integer> fileStoredChunks;
-        fileStoredChunks = storedChunks.get(fileID);
-
-        return fileStoredChunks != null && fileStoredChunks.contains(chunkNo);
+        synchronized (lock(fileID)) {
+            ArrayList<Integer> fileStoredChunks = storedChunks.get(fileID);
+            return fileStoredChunks != null && fileStoredChunks.contains(chunkNo);
+        }
     }
 
     /**
@@ -380,15 +820,34 @@ class ChunkManager {
      * @return the perceived replication degree of the chunk
      */
     int getReplicationDegree(String fileID, String chunkNo) {
-        String key = fileID + '_' + chunkNo;
-        return chunkMap.containsKey(key) ? chunkMap.get(key).size() : -1;
+        synchronized (lock(fileID)) {
+            ArrayList<Integer> chunkPeers = chunkMap.get(fileID + '_' + chunkNo);
+            return chunkPeers == null ? -1 : chunkPeers.size();
+        }
     }
 
-    void registerNumChunks(String fileID, int numChunks) {
-        if (numChunksFile.containsKey(fileID))
-            return;
+    /**
+     * Get the peers that have stored a chunk
+     *
+     * @param fileID  file ID of the file the chunk belongs to
+     * @param chunkNo chunk number of the chunk
+     * @return copy of the list of peers that stored the chunk, null if none is known
+     */
+    ArrayList<Integer> getChunkPeers(String fileID, String chunkNo) {
+        synchronized (lock(fileID)) {
+            ArrayList<Integer> chunkPeers = chunkMap.get(fileID + '_' + chunkNo);
+            return chunkPeers == null ? null : new ArrayList<>(chunkPeers);
+        }
+    }
 
-        numChunksFile.put(fileID, numChunks);
+    /**
+     * Registers the number of chunks of a file backed up by this peer, if it is not known yet
+     *
+     * @param fileID    file ID of the file
+     * @param numChunks number of chunks of the file
+     */
+    void registerNumChunks(String fileID, long numChunks) {
+        numChunksFile.putIfAbsent(fileID, numChunks);
     }
 
     /**
@@ -397,8 +856,8 @@ class ChunkManager {
      * @param fileID file ID of the file
      * @return number of chunks the file has or ERROR (-1) if the file is not registered
      */
-    int getNumChunks(String fileID) {
-        return numChunksFile.getOrDefault(fileID, PeerService.ERROR);
+    long getNumChunks(String fileID) {
+        return numChunksFile.getOrDefault(fileID, (long) PeerService.ERROR);
     }
 
     /**
@@ -408,74 +867,51 @@ class ChunkManager {
      * @param fileID ID of the file to be deleted
      */
     void markForDeletion(String fileID) {
-
-        for (Map.Entry<String, ArrayList<Integer>> entry : chunkMap.entrySet()) {
-            if (entry.getKey().startsWith(fileID)) {
-                markedForDeletion.put(entry.getKey(), chunkMap.get(entry.getKey()));
-                chunkMap.remove(entry.getKey());
-                perceivedChunkRepDeg.remove(entry.getKey());
+        BitSet peers = new BitSet();
+
+        synchronized (lock(fileID)) {
+            Set<Integer> fileChunks = fileChunkIndex.remove(fileID);
+            if (fileChunks != null) {
+                for (Integer chunkNo : fileChunks) {
+                    String chunkKey = fileID + '_' + chunkNo;
+                    ArrayList<Integer> chunkPeers = chunkMap.remove(chunkKey);
+                    setPerceivedDegree(fileID, chunkKey, -1);
+                    if (chunkPeers != null) {
+                        for (Integer peer : chunkPeers)
+                            peers.set(peer);
+                    }
+                }
             }
         }
-        saveReplicationDegrees();
-        saveState();
+
+        deletionTracker.markForDeletion(fileID, peers);
+        stateChanged();
     }
 
 
     /**
      * Called when a peer receives a DELETED message
-     * Updates the markedForDeletion map
+     * A peer deletes all the chunks of a file at once, so the first DELETED
+     * message for a file is enough to stop tracking that peer
      *
      * @param senderID ID of the peer who sent the DELETED message
      * @param fileID   ID of the file who's chunk was deleted
      * @param chunkNo  Number of the deleted chunk
      */
     void registerDeletion(String senderID, String fileID, String chunkNo) {
-        String key = fileID + '_' + chunkNo;
-        ArrayList<Integer> chunkPeers = markedForDeletion.get(key);
-        if (chunkPeers == null)
-            return;
-
-        Integer sender = Integer.parseInt(senderID);
-
-        if (chunkPeers.contains(sender))
-            chunkPeers.remove(sender);
-
-        if (chunkPeers.isEmpty())
-            markedForDeletion.remove(key);
-
-        saveState();
+        if (deletionTracker.registerDeletion(Integer.parseInt(senderID), fileID))
+            stateChanged();
     }
 
     /**
      * Check if a given peer, identified by it's ID, has deleted all the chunks it should
      *
      * @param senderID id of the peer to check
-     * @return list of chunks the peer should remove
+     * @return list of files the peer should remove, null if there are none
      */
     ArrayList<String> checkDeletion(String senderID) {
-        if (markedForDeletion.isEmpty())
-            return null;
-
-        ArrayList<String> toDelete = new ArrayList<>();
-        if (!markedForDeletion.isEmpty()) {
-            Integer sender = Integer.parseInt(senderID);
-            /*
-                for all the entries in the hash map
-                check if the peer is still there
-                i.e. the peer has not deleted a chunk
-                it should have
-            */
-            for (Map.Entry<String, ArrayList<Integer>> entry : markedForDeletion.entrySet()) {
-                ArrayList<Integer> chunkPeers = entry.getValue();
-                if (chunkPeers.contains(sender)) {
-                    String fileID = entry.getKey().split("_")[0];
-                    if (!toDelete.contains(fileID))
-                        toDelete.add(fileID);
-                }
-            }
-        }
-
-        return toDelete;
+        ArrayList<String> toDelete = deletionTracker.getPendingDeletions(Integer.parseInt(senderID));
+        return toDelete.isEmpty() ? null : toDelete;
     }
 
     /**
@@ -485,14 +921,7 @@ class ChunkManager {
      * @return true if the file is marked for deletion
      */
     boolean isMarkedForDeletion(String fileID) {
-        if (!markedForDeletion.isEmpty()) {
-            /* checks all the entries to see if the chunk belongs to this file */
-            for (Map.Entry<String, ArrayList<Integer>> entry : markedForDeletion.entrySet()) {
-                if (entry.getKey().startsWith(fileID))
-                    return true;
-            }
-        }
-        return false;
+        return deletionTracker.isMarkedForDeletion(fileID);
     }
 
     /**
@@ -502,34 +931,37 @@ class ChunkManager {
      * @param fileID file ID of the file whose chunks are to be deleted
      */
     ArrayList<String> deleteFile(String fileID) {
-        ArrayList<Integer> fileChunks = storedChunks.get(fileID);
         ArrayList<String> deletedChunks = null;
-        if (fileChunks == null) {  // peer has no chunks belonging to this file
-            System.out.format("This peer has no chunks belonging to the file with file ID %s\n", fileID);
-        } else {
-            deletedChunks = new ArrayList<>();
-            for (Integer fileChunk : fileChunks) {
-                String chunkNo = Integer.toString(fileChunk);
-                String chunkName = fileID + '_' + chunkNo;
-
-                deletedChunks.add(chunkNo);
-                chunkMap.remove(chunkName);
-                perceivedChunkRepDeg.remove(chunkName);
-
-                String chunkPath = chunksPath + '/' + chunkName;
-                File chunk = new File(chunkPath);
-                if (chunk.delete())
-                    System.out.format("Chunk %d, belonging to file %s deleted\n", fileChunk, fileID);
+        synchronized (lock(fileID)) {
+            ArrayList<Integer> fileChunks = storedChunks.remove(fileID);
+            if (fileChunks == null) {  // peer has no chunks belonging to this file
+                PeerLog.debug(PeerLog.DELETE, "no chunks of the file stored", "file", fileID);
+            } else {
+                deletedChunks = new ArrayList<>();
+                for (Integer fileChunk : fileChunks) {
+                    String chunkNo = Integer.toString(fileChunk);
+                    String chunkName = fileID + '_' + chunkNo;
+
+                    deletedChunks.add(chunkNo);
+                    chunkMap.remove(chunkName);
+                    setPerceivedDegree(fileID, chunkName, -1);
+                    unindexChunk(fileID, fileChunk);
+
+                    long chunkSize = store.delete(chunkName);
+                    if (chunkSize >= 0) {
+                        writer.deleted(store.file(chunkName));
+                        statistics.chunkRemoved(chunkSize);
+                        PeerLog.info(PeerLog.DELETE, "chunk deleted", "file", fileID, "chunk", fileChunk);
+                    }
+                }
             }
-            storedChunks.remove(fileID);
-        }
+            cache.invalidateFile(fileID);
 
-        if (desiredFileReplicationDegrees.containsKey(fileID))
             desiredFileReplicationDegrees.remove(fileID);
+            statistics.resetFile(fileID);
+        }
 
-
-        saveReplicationDegrees();
-        saveState();
+        stateChanged();
 
         return deletedChunks;
     }
@@ -545,9 +977,20 @@ class ChunkManager {
     byte[] getChunkData(String fileID, String chunkNo) throws IOException {
 
         String filename = fileID + "_" + chunkNo;
+        byte[] cached = cache.get(filename);
+        if (cached != null)
+            return cached;
+
+        long version = cache.getVersion();
+        long startTime = System.nanoTime();
         FileInputStream chunkFile;
 
-        chunkFile = new FileInputStream(chunksPath + "/" + filename);
+        try {
+            chunkFile = new FileInputStream(store.locate(filename));
+        } catch (FileNotFoundException e) {
+            /* moved to its directory meanwhile */
+            chunkFile = new FileInputStream(store.locate(filename));
+        }
 
         byte[] chunkData;
         int readableBytes = chunkFile.available();
@@ -559,73 +1002,71 @@ class ChunkManager {
 
 
         chunkFile.read(chunkData);
+        chunkFile.close();
+        metrics.histogram(PeerMetrics.DISK_READ).recordSince(startTime);
+        cache.put(filename, chunkData, version);
 
         return chunkData;
     }
 
     /**
      * Checks if the space made available for chunks is enough for the currently stored chunks,
-     * if it is, return, if not, delete the smallest chunk and check again
+     * if it is, return, if not, delete the chunks with the highest perceived replication degree until it is
      *
      * @param availableSpace maximum space to be occupied by the stored chunks
      * @return ArrayList with the names of the deleted files
      */
     ArrayList<String> reclaimSpace(long availableSpace) {
-        File chunkDir = new File(chunksPath);
         ArrayList<String> deletedChunks = new ArrayList<>();
+        if (getOccupiedSpace() <= availableSpace)
+            return deletedChunks;
+
+        /* the chunks with the highest perceived replication degree go first */
+        HashMap<String, Integer> candidates = new HashMap<>();
+        storedChunks.forEach((fileID, fileChunks) -> {
+            synchronized (lock(fileID)) {
+                for (Integer chunkNo : fileChunks) {
+                    String chunkKey = fileID + '_' + chunkNo;
+                    ArrayList<Integer> chunkPeers = chunkMap.get(chunkKey);
+                    candidates.put(chunkKey, chunkPeers == null ? -1 : chunkPeers.size());
+                }
+            }
+        });
+        ArrayList<String> order = new ArrayList<>(candidates.keySet());
+        order.sort((a, b) -> Integer.compare(candidates.get(b), candidates.get(a)));
 
-        while (getOccupiedSpace() > availableSpace) {
-
-            File[] chunks = chunkDir.listFiles();
-            if (chunks == null)
+        Object server = Integer.parseInt(serverId);
+        for (String key : order) {
+            if (getOccupiedSpace() <= availableSpace)
                 break;
 
-            File toDelete = chunks[0];
-
-            String[] toDeleteInfo = toDelete.getName().split("_");
+            int separator = key.lastIndexOf('_');
+            String fileID = key.substring(0, separator);
+            Object chunkNo = Integer.parseInt(key.substring(separator + 1));
 
-            String toDeleteFileID = toDeleteInfo[0];
-            String toDeleteChunkNo = toDeleteInfo[1];
-
-            String fileID;
-            String chunkNo;
-
-            for (File chunk : chunks) {
-
-                String[] chunkInfo = chunk.getName().split("_");
-                if (chunkInfo.length < 2) {
-                    System.out.println(chunk.getName());
-                    chunk.delete();
+            synchronized (lock(fileID)) {
+                ArrayList<Integer> fileChunks = storedChunks.get(fileID);
+                /* deleted meanwhile */
+                if (fileChunks == null || !fileChunks.remove(chunkNo))
                     continue;
-                }
-
-                fileID = chunkInfo[0];
-                chunkNo = chunkInfo[1];
 
+                deletedChunks.add(key);
+                cache.invalidate(key);
+                long chunkSize = store.delete(key);
+                if (chunkSize >= 0) {
+                    writer.deleted(store.file(key));
+                    statistics.chunkRemoved(chunkSize);
+                }
 
-                if (getReplicationDegree(fileID, chunkNo) > getReplicationDegree(toDeleteFileID, toDeleteChunkNo)) {
-                    toDelete = chunk;
-                    toDeleteFileID = fileID;
-                    toDeleteChunkNo = chunkNo;
+                ArrayList<Integer> chunkPeers = chunkMap.get(key);
+                if (chunkPeers != null) {
+                    chunkPeers.remove(server);
+                    setPerceivedDegree(fileID, key, chunkPeers.size());
                 }
             }
-            deletedChunks.add(toDelete.getName());
-            toDelete.delete();
-
-            String key = toDeleteFileID + '_' + toDeleteChunkNo;
-
-            ArrayList<Integer> chunkPeers = chunkMap.get(key);
-            Object server = Integer.parseInt(serverId);
-            chunkPeers.remove(server);
-            perceivedChunkRepDeg.replace(key, Integer.toString(Integer.parseInt(perceivedChunkRepDeg.get(key)) + 1));
-            ArrayList<Integer> fileChunks = storedChunks.get(toDeleteFileID);
-            Object chkNo = Integer.parseInt(toDeleteChunkNo);
-            fileChunks.remove(chkNo);
-
-            saveReplicationDegrees();
-            saveState();
-
         }
+
+        stateChanged();
         return deletedChunks;
     }
 
@@ -635,12 +1076,7 @@ class ChunkManager {
      * @return occupied space, in bytes
      */
     long getOccupiedSpace() {
-        File chunkDir = new File(chunksPath);
-        long occupiedSpace = 0;
-        for (File file : chunkDir.listFiles()) {
-            occupiedSpace += file.length();
-        }
-        return occupiedSpace;
+        return statistics.getBytesUsed();
     }
 
     /**
@@ -657,8 +1093,10 @@ class ChunkManager {
             return;
         }
 
-        if (!restoredChunkList.contains(fileID + "_" + chunkNo)) {
-            restoredChunkList.add(fileID + "_" + chunkNo);
+        synchronized (restoredChunkList) {
+            if (!restoredChunkList.contains(fileID + "_" + chunkNo)) {
+                restoredChunkList.add(fileID + "_" + chunkNo);
+            }
         }
 
     }
@@ -672,52 +1110,102 @@ class ChunkManager {
      */
     boolean canSendChunkMessage(String fileID, String chunkNo) {
 
-        if (restoredChunkList.contains(fileID + "_" + chunkNo)) {
-            restoredChunkList.remove(fileID + "_" + chunkNo);
-            return false;
+        synchronized (restoredChunkList) {
+            return !restoredChunkList.remove(fileID + "_" + chunkNo);
         }
-
-        return true;
     }
 
     /**
      * Given a file id it returns the file state, replication degree, chunks,...
+     * Only the chunks of the file are looked up
      *
-     * @param fileID id of the file
-     * @return A string with all of the information
+     * @param fileID   id of the file
+     * @param filename name of the file
+     * @return state of the file
+     */
+    PeerState.FileState getFileState(String fileID, String filename) {
+        int numChunks = (int) Math.min(Integer.MAX_VALUE, Math.max(0, getNumChunks(fileID)));
+        int[] degrees = new int[numChunks];
+
+        for (int chunkNo = 0; chunkNo < numChunks; chunkNo++) {
+            String degree = perceivedChunkRepDeg.get(fileID + '_' + chunkNo);
+            degrees[chunkNo] = degree == null ? 0 : Integer.parseInt(degree);
+        }
+
+        return new PeerState.FileState(filename, fileID, getDesiredReplicationDegree(fileID), degrees);
+    }
+
+    /**
+     * Get information about a page of the stored chunks
+     *
+     * @param fileID only return chunks of this file, or all chunks if null
+     * @param offset number of chunks to skip
+     * @param limit  maximum number of chunks to return
+     * @return state of the chunks
      */
-    String getFileCurrentState(String fileID) {
-        final String[] currentState = {""};
+    List<PeerState.ChunkState> getChunkStates(String fileID, long offset, int limit) {
+        List<PeerState.ChunkState> chunks = new ArrayList<>();
+        long skipped = 0;
 
-        currentState[0] += "\tDesired replication degree: " + desiredFileReplicationDegrees.get(fileID) + "\n";
+        for (Map.Entry<String, ArrayList<Integer>> entry : storedChunks.entrySet()) {
+            if (fileID != null && !fileID.equals(entry.getKey()))
+                continue;
 
-        perceivedChunkRepDeg.forEach((key, value) -> {
-            String[] keyParts = key.split("_");
-            if (keyParts[0].equals(fileID)) {
-                currentState[0] += "\tChunk ID: " + keyParts[1] + "\n";
-                currentState[0] += "\t\tPerceived replication degree: " + perceivedChunkRepDeg.get(key) + "\n";
+            ArrayList<Integer> fileChunks;
+            synchronized (lock(entry.getKey())) {
+                fileChunks = new ArrayList<>(entry.getValue());
+            }
+            if (skipped + fileChunks.size() <= offset) {
+                skipped += fileChunks.size();
+                continue;
             }
-        });
 
-        return currentState[0];
+            for (Integer chunkNo : fileChunks) {
+                if (skipped++ < offset)
+                    continue;
+                if (chunks.size() >= limit)
+                    return chunks;
+
+                String degree = perceivedChunkRepDeg.get(entry.getKey() + '_' + chunkNo);
+                chunks.add(new PeerState.ChunkState(entry.getKey(), chunkNo, degree == null ? 0 : Integer.parseInt(degree)));
+            }
+        }
+
+        return chunks;
     }
 
     /**
-     * get information about the chunks
+     * Get the number of chunks of a file stored on this peer
      *
-     * @return
+     * @param fileID id of the file
+     * @return number of stored chunks
      */
-    String getChunksState() {
-        final String[] currentState = {""};
+    int getNumStoredChunks(String fileID) {
+        synchronized (lock(fileID)) {
+            ArrayList<Integer> fileChunks = storedChunks.get(fileID);
+            return fileChunks == null ? 0 : fileChunks.size();
+        }
+    }
 
-        storedChunks.forEach((fileID, chunks) -> {
-            for (Integer chunk : chunks) {
-                currentState[0] += "\tChunk ID: " + fileID + "_" + chunk + "\n";
-                currentState[0] += "\t\tPerceived replication degree: " + perceivedChunkRepDeg.get(fileID + "_" + chunk) + "\n";
-            }
+    /**
+     * @return aggregate counters about the chunks
+     */
+    ReplicationStatistics getStatistics() {
+        return statistics;
+    }
 
-        });
+    /**
+     * Updates the perceived replication degree of a chunk and the statistics, holding the lock of the file
+     *
+     * @param fileID   file the chunk belongs to
+     * @param chunkKey <fileID>_<chunkNo>
+     * @param degree   new perceived replication degree, -1 to stop tracking the chunk
+     */
+    private void setPerceivedDegree(String fileID, String chunkKey, int degree) {
+        String previous = degree < 0 ? perceivedChunkRepDeg.remove(chunkKey)
+                : perceivedChunkRepDeg.put(chunkKey, Integer.toString(degree));
 
-        return currentState[0];
+        statistics.degreeChanged(fileID, previous == null ? -1 : Integer.parseInt(previous), degree,
+                getDesiredReplicationDegree(fileID));
     }
 }
@@ -0,0 +1,216 @@
+package peers;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rebuilds the list of stored chunks from the chunk directory, used when the state of the peer is lost
+ * The entries of the directory, chunks or directories of the sharded layout, are split among several threads,
+ * and the progress is reported while they run
+ */
+class ChunkRecovery {
+
+    /**
+     * Interval between progress reports, in milliseconds
+     */
+    private static final long PROGRESS_INTERVAL = 1000;
+
+    private final File chunkDir;
+    private final int threads;
+    private final boolean verify;
+    private final int maxChunkSize;
+
+    private final AtomicLong scanned;
+    private final AtomicLong bytes;
+    private final AtomicLong discarded;
+
+    /**
+     * Chunks found, by file
+     * key = <fileID>
+     * value = chunk numbers, in increasing order
+     */
+    private final HashMap<String, ArrayList<Integer>> chunks;
+
+    /**
+     * @param chunkDir     directory of the chunks
+     * @param threads      number of threads scanning the directory
+     * @param verify       true to read every chunk through, discarding the ones that cannot be read,
+     *                     false to only look at their sizes
+     * @param maxChunkSize maximum size of a chunk, larger files are discarded
+     */
+    ChunkRecovery(File chunkDir, int threads, boolean verify, int maxChunkSize) {
+        this.chunkDir = chunkDir;
+        this.threads = Math.max(1, threads);
+        this.verify = verify;
+        this.maxChunkSize = maxChunkSize;
+        scanned = new AtomicLong();
+        bytes = new AtomicLong();
+        discarded = new AtomicLong();
+        chunks = new HashMap<>();
+    }
+
+    /**
+     * Scans the chunk directory
+     * Files whose name is not <fileID>_<ChunkNo> are left alone, chunks that are too large
+     * or cannot be read are deleted, as they would never be served
+     *
+     * @return false if the scan did not finish
+     */
+    boolean scan() {
+        String[] names = chunkDir.list();
+        if (names == null || names.length == 0)
+            return true;
+
+        long startTime = System.nanoTime();
+        PeerLog.info(PeerLog.STORE, "recovering the chunks", "directory", chunkDir);
+
+        ExecutorService scanners = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "chunk-recovery");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        List<Future<Map<String, ArrayList<Integer>>>> parts = new ArrayList<>();
+        int sliceSize = (names.length + threads - 1) / threads;
+        for (int start = 0; start < names.length; start += sliceSize) {
+            int from = start;
+            int to = Math.min(names.length, start + sliceSize);
+            parts.add(scanners.submit(() -> scanSlice(names, from, to)));
+        }
+        scanners.shutdown();
+
+        try {
+            while (!scanners.awaitTermination(PROGRESS_INTERVAL, TimeUnit.MILLISECONDS)) {
+                PeerLog.info(PeerLog.STORE, "recovering the chunks", "scanned", scanned.get(), "bytes", bytes.get());
+            }
+
+            for (Future<Map<String, ArrayList<Integer>>> part : parts)
+                part.get().forEach((fileID, fileChunks) ->
+                        chunks.computeIfAbsent(fileID, k -> new ArrayList<>()).addAll(fileChunks));
+        } catch (InterruptedException e) {
+            scanners.shutdownNow();
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            System.err.println("Chunk recovery failed: " + e.getCause());
+            return false;
+        }
+
+        /*
+           A chunk written again while the store was being moved to the sharded layout may be found twice,
+           on the flat layout and on its directory; the store serves the copy on the directory,
+           so the bytes of the flat copy are not counted
+         */
+        for (Map.Entry<String, ArrayList<Integer>> entry : chunks.entrySet()) {
+            ArrayList<Integer> fileChunks = entry.getValue();
+            fileChunks.sort(null);
+            for (int i = fileChunks.size() - 1; i > 0; i--) {
+                if (fileChunks.get(i).equals(fileChunks.get(i - 1))) {
+                    bytes.addAndGet(-new File(chunkDir, entry.getKey() + '_' + fileChunks.get(i)).length());
+                    fileChunks.remove(i);
+                }
+            }
+        }
+
+        PeerLog.info(PeerLog.STORE, "recovered the chunks", "chunks", getNumChunks(), "files", chunks.size(),
+                "bytes", bytes.get(), "ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime),
+                "discarded", discarded.get());
+        return true;
+    }
+
+    private Map<String, ArrayList<Integer>> scanSlice(String[] names, int from, int to) {
+        HashMap<String, ArrayList<Integer>> found = new HashMap<>();
+        byte[] buffer = verify ? new byte[maxChunkSize + 1] : null;
+
+        for (int i = from; i < to; i++)
+            scanEntry(new File(chunkDir, names[i]), found, buffer);
+        return found;
+    }
+
+    private void scanEntry(File entry, HashMap<String, ArrayList<Integer>> found, byte[] buffer) {
+        if (entry.isDirectory()) {
+            File[] children = entry.listFiles();
+            if (children != null) {
+                for (File child : children)
+                    scanEntry(child, found, buffer);
+            }
+            return;
+        }
+
+        scanned.incrementAndGet();
+        String name = entry.getName();
+        int separator = name.lastIndexOf('_');
+        int chunkNo;
+        try {
+            chunkNo = Integer.parseInt(name.substring(separator + 1));
+        } catch (NumberFormatException e) {
+            return;
+        }
+        if (separator <= 0 || chunkNo < 0 || !entry.isFile())
+            return;
+
+        long size = verify ? readThrough(entry, buffer) : entry.length();
+        if (size < 0 || size > maxChunkSize) {
+            System.err.println("Discarding unreadable chunk " + name);
+            entry.delete();
+            discarded.incrementAndGet();
+            return;
+        }
+
+        bytes.addAndGet(size);
+        found.computeIfAbsent(name.substring(0, separator), k -> new ArrayList<>()).add(chunkNo);
+    }
+
+    /**
+     * Reads a chunk to its end
+     *
+     * @return size of the chunk, -1 if it could not be read
+     */
+    private static long readThrough(File chunk, byte[] buffer) {
+        long size = 0;
+        try (InputStream input = new FileInputStream(chunk)) {
+            int read;
+            while ((read = input.read(buffer)) >= 0)
+                size += read;
+        } catch (IOException e) {
+            return -1;
+        }
+        return size;
+    }
+
+    /**
+     * @return chunks found, by file
+     */
+    HashMap<String, ArrayList<Integer>> getChunks() {
+        return chunks;
+    }
+
+    /**
+     * @return bytes of the chunks found
+     */
+    long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * @return number of chunks found
+     */
+    long getNumChunks() {
+        long numChunks = 0;
+        for (ArrayList<Integer> fileChunks : chunks.values())
+            numChunks += fileChunks.size();
+        return numChunks;
+    }
+}
@@ -0,0 +1,191 @@
+package peers;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Layout of the chunk files of a peer
+ * Chunks are spread over levels of directories named after bytes of the hash of the chunk name,
+ * e.g. chunks/3f/a0/<fileID>_<ChunkNo>, so every directory stays small however many chunks are stored
+ * Chunks of a store written with the flat layout are moved to their directories in the background,
+ * while the peer keeps serving them
+ */
+class ChunkStore {
+
+    private final File root;
+    private final int levels;
+    /**
+     * true while chunks of the flat layout are being moved, a chunk may then be on either place
+     */
+    private volatile boolean migrating;
+
+    /**
+     * @param root   directory of the chunks
+     * @param levels levels of directories, 0 to keep every chunk on the root directory
+     */
+    ChunkStore(File root, int levels) {
+        this.root = root;
+        this.levels = Math.max(0, Math.min(levels, 4));
+    }
+
+    /**
+     * @param chunkName <fileID>_<ChunkNo>
+     * @return the place of the chunk on this layout
+     */
+    File file(String chunkName) {
+        if (levels == 0)
+            return new File(root, chunkName);
+
+        int hash = chunkName.hashCode() * 0x9E3779B1;
+        hash ^= hash >>> 15;
+        StringBuilder path = new StringBuilder(levels * 3 + chunkName.length());
+        for (int level = 0; level < levels; level++) {
+            int bucket = (hash >>> (8 * level)) & 0xFF;
+            path.append(Character.forDigit(bucket >> 4, 16)).append(Character.forDigit(bucket & 0xF, 16)).append('/');
+        }
+        return new File(root, path.append(chunkName).toString());
+    }
+
+    /**
+     * @param chunkName <fileID>_<ChunkNo>
+     * @return the file of the chunk, on the flat layout if it was not moved yet
+     */
+    File locate(String chunkName) {
+        File file = file(chunkName);
+        if (!migrating || file.exists())
+            return file;
+
+        File flat = new File(root, chunkName);
+        return flat.exists() ? flat : file;
+    }
+
+    /**
+     * Creates the directory of a chunk about to be written
+     *
+     * @param chunkName <fileID>_<ChunkNo>
+     * @return the place to write the chunk to
+     */
+    File prepare(String chunkName) {
+        File file = file(chunkName);
+        if (levels > 0)
+            file.getParentFile().mkdirs();
+        return file;
+    }
+
+    /**
+     * Deletes a chunk, wherever it is
+     *
+     * @param chunkName <fileID>_<ChunkNo>
+     * @return size of the deleted chunk, -1 if it did not exist
+     */
+    long delete(String chunkName) {
+        if (!migrating)
+            return delete(file(chunkName));
+
+        /* not while the chunk is being moved */
+        synchronized (this) {
+            long size = delete(file(chunkName));
+            return size >= 0 ? size : delete(new File(root, chunkName));
+        }
+    }
+
+    private static long delete(File file) {
+        long size = file.length();
+        return file.delete() ? size : -1;
+    }
+
+    /**
+     * @return bytes of all the chunks stored, found by walking the directories
+     */
+    long measure() {
+        return measure(root);
+    }
+
+    private static long measure(File directory) {
+        long size = 0;
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files)
+                size += file.isDirectory() ? measure(file) : file.length();
+        }
+        return size;
+    }
+
+    /**
+     * Starts moving the chunks on the root directory to their directories, if there are any
+     */
+    void startMigration() {
+        if (levels == 0 || !hasFlatChunks())
+            return;
+
+        migrating = true;
+        Thread migration = new Thread(this::migrate, "chunk-migration");
+        migration.setDaemon(true);
+        migration.start();
+    }
+
+    private boolean hasFlatChunks() {
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(root.toPath())) {
+            for (Path entry : entries) {
+                if (isChunk(entry))
+                    return true;
+            }
+        } catch (IOException e) {
+            System.err.println("Unable to list the chunks: " + e.getMessage());
+        }
+        return false;
+    }
+
+    private void migrate() {
+        long startTime = System.nanoTime();
+        long moved = 0;
+        PeerLog.info(PeerLog.STORE, "moving the chunks to the sharded layout", "directory", root);
+
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(root.toPath())) {
+            for (Path entry : entries) {
+                if (!isChunk(entry))
+                    continue;
+
+                if (move(entry))
+                    moved++;
+            }
+        } catch (IOException e) {
+            System.err.println("Unable to move the chunks to the sharded layout: " + e.getMessage());
+            return;
+        } finally {
+            migrating = false;
+        }
+
+        PeerLog.info(PeerLog.STORE, "moved the chunks to the sharded layout", "chunks", moved,
+                "ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+    }
+
+    /**
+     * Moves a chunk from the root directory to its directory
+     * If the chunk was written again meanwhile, the old copy is dropped
+     */
+    private synchronized boolean move(Path flat) {
+        File target = prepare(flat.getFileName().toString());
+        try {
+            Files.move(flat, target.toPath());
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            flat.toFile().delete();
+        } catch (NoSuchFileException e) {
+            /* deleted meanwhile */
+        } catch (IOException e) {
+            System.err.println("Unable to move chunk " + flat.getFileName() + ": " + e.getMessage());
+        }
+        return false;
+    }
+
+    private static boolean isChunk(Path entry) {
+        return entry.getFileName().toString().indexOf('_') > 0 && Files.isRegularFile(entry);
+    }
+}
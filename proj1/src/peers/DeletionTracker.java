@@ -0,0 +1,233 @@
+package peers;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of the files deleted by this peer whose chunks some peers may still hold
+ * Used in the enhanced version of the File Deletion Subprotocol
+ */
+class DeletionTracker implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Time after which a file is no longer tracked, in milliseconds
+     */
+    static final long TOMBSTONE_TTL = Long.getLong("sdis.delete.ttl", 7L * 24 * 60 * 60 * 1000);
+
+    /**
+     * Deleted file, with the peers that still have to delete its chunks
+     */
+    private static final class Tombstone implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final BitSet peers;
+        private final long expiresAt;
+
+        private Tombstone(BitSet peers, long expiresAt) {
+            this.peers = peers;
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean isExpired(long now) {
+            return now > expiresAt;
+        }
+    }
+
+    /**
+     * key = <fileID>
+     * value = peers that have not deleted the chunks of the file
+     */
+    private final ConcurrentHashMap<String, Tombstone> tombstones;
+
+    /**
+     * index of the tombstones by peer, rebuilt when loaded
+     * key = peer id
+     * value = files the peer has not deleted
+     */
+    private transient ConcurrentHashMap<Integer, Set<String>> pendingByPeer;
+
+    DeletionTracker() {
+        tombstones = new ConcurrentHashMap<>();
+        pendingByPeer = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Converts the state kept by previous versions, where every chunk
+     * marked for deletion had the list of peers that stored it
+     *
+     * @param markedForDeletion key = <fileID>_<ChunkNo>, value = ids of the peers that stored the chunk
+     * @return tracker with the same pending deletions
+     */
+    static DeletionTracker fromChunkLists(Map<String, ? extends Iterable<Integer>> markedForDeletion) {
+        DeletionTracker tracker = new DeletionTracker();
+
+        markedForDeletion.forEach((chunkKey, chunkPeers) -> {
+            BitSet peers = new BitSet();
+            for (Integer peer : chunkPeers)
+                peers.set(peer);
+            tracker.markForDeletion(chunkKey.substring(0, chunkKey.lastIndexOf('_')), peers);
+        });
+
+        return tracker;
+    }
+
+    /**
+     * Registers a deleted file and the peers that hold chunks of it
+     * If the file is already tracked, the peers are added to it
+     *
+     * @param fileID id of the deleted file
+     * @param peers  ids of the peers that hold chunks of the file
+     */
+    void markForDeletion(String fileID, BitSet peers) {
+        long now = System.currentTimeMillis();
+        tombstones.entrySet().removeIf(entry -> entry.getValue().isExpired(now) && unindex(entry.getKey(), entry.getValue()));
+
+        Tombstone tombstone = tombstones.computeIfAbsent(fileID, k -> new Tombstone(new BitSet(), now + TOMBSTONE_TTL));
+        synchronized (tombstone) {
+            tombstone.peers.or(peers);
+            for (int peer = peers.nextSetBit(0); peer >= 0; peer = peers.nextSetBit(peer + 1))
+                pendingByPeer.computeIfAbsent(peer, k -> ConcurrentHashMap.newKeySet()).add(fileID);
+        }
+    }
+
+    /**
+     * Checks if a file is being tracked
+     *
+     * @param fileID file to check
+     * @return true if the file was deleted and some peer may still hold chunks of it
+     */
+    boolean isMarkedForDeletion(String fileID) {
+        Tombstone tombstone = tombstones.get(fileID);
+        return tombstone != null && !tombstone.isExpired(System.currentTimeMillis());
+    }
+
+    /**
+     * Called when a peer confirms it deleted the chunks of a file
+     *
+     * @param peer   id of the peer
+     * @param fileID id of the file
+     * @return true if the peer had chunks of the file to delete
+     */
+    boolean registerDeletion(int peer, String fileID) {
+        Tombstone tombstone = tombstones.get(fileID);
+        if (tombstone == null)
+            return false;
+
+        synchronized (tombstone) {
+            if (!tombstone.peers.get(peer))
+                return false;
+
+            tombstone.peers.clear(peer);
+            removePending(peer, fileID);
+            if (tombstone.peers.isEmpty())
+                tombstones.remove(fileID, tombstone);
+        }
+        return true;
+    }
+
+    /**
+     * Get the files a peer has not deleted yet
+     *
+     * @param peer id of the peer
+     * @return ids of the files, empty if there are none
+     */
+    ArrayList<String> getPendingDeletions(int peer) {
+        ArrayList<String> pending = new ArrayList<>();
+        Set<String> files = pendingByPeer.get(peer);
+        if (files == null)
+            return pending;
+
+        long now = System.currentTimeMillis();
+        for (String fileID : files) {
+            Tombstone tombstone = tombstones.get(fileID);
+            if (tombstone == null || tombstone.isExpired(now))
+                removePending(peer, fileID);
+            else
+                pending.add(fileID);
+        }
+
+        return pending;
+    }
+
+    /**
+     * Receives the tombstones, when they are saved
+     */
+    interface TombstoneVisitor {
+        void visit(String fileID, BitSet peers, long expiresAt) throws IOException;
+    }
+
+    /**
+     * Visits every tombstone that did not expire
+     *
+     * @param visitor called with a copy of the peers of every tombstone
+     * @throws IOException if the visitor fails
+     */
+    void forEachTombstone(TombstoneVisitor visitor) throws IOException {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Tombstone> entry : tombstones.entrySet()) {
+            Tombstone tombstone = entry.getValue();
+            if (tombstone.isExpired(now))
+                continue;
+
+            BitSet peers;
+            synchronized (tombstone) {
+                peers = (BitSet) tombstone.peers.clone();
+            }
+            visitor.visit(entry.getKey(), peers, tombstone.expiresAt);
+        }
+    }
+
+    /**
+     * Restores a saved tombstone
+     *
+     * @param fileID    id of the deleted file
+     * @param peers     peers that have not deleted the chunks of the file
+     * @param expiresAt instant the tombstone expires, in milliseconds since the epoch
+     */
+    void restoreTombstone(String fileID, BitSet peers, long expiresAt) {
+        tombstones.put(fileID, new Tombstone(peers, expiresAt));
+        for (int peer = peers.nextSetBit(0); peer >= 0; peer = peers.nextSetBit(peer + 1))
+            pendingByPeer.computeIfAbsent(peer, k -> ConcurrentHashMap.newKeySet()).add(fileID);
+    }
+
+    /**
+     * Removes a tombstone from the peer index
+     *
+     * @return always true, so it can be used as a filter
+     */
+    private boolean unindex(String fileID, Tombstone tombstone) {
+        synchronized (tombstone) {
+            for (int peer = tombstone.peers.nextSetBit(0); peer >= 0; peer = tombstone.peers.nextSetBit(peer + 1))
+                removePending(peer, fileID);
+        }
+        return true;
+    }
+
+    private void removePending(int peer, String fileID) {
+        pendingByPeer.computeIfPresent(peer, (k, files) -> {
+            files.remove(fileID);
+            return files.isEmpty() ? null : files;
+        });
+    }
+
+    /**
+     * Rebuilds the peer index after the tombstones are read
+     */
+    private void readObject(ObjectInputStream ois) throws IOException, ClassNotFoundException {
+        ois.defaultReadObject();
+        pendingByPeer = new ConcurrentHashMap<>();
+
+        tombstones.forEach((fileID, tombstone) -> {
+            for (int peer = tombstone.peers.nextSetBit(0); peer >= 0; peer = tombstone.peers.nextSetBit(peer + 1))
+                pendingByPeer.computeIfAbsent(peer, k -> ConcurrentHashMap.newKeySet()).add(fileID);
+        });
+    }
+}
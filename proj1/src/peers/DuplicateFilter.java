@@ -0,0 +1,94 @@
+package peers;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Remembers the idempotent messages received lately, so the copies of a message sent several times,
+ * like the five DELETE messages of a deletion, are dropped after the header is read, without being handled again
+ * A message is known by its type, sender, file ID and chunk number; the keys are kept in two generations,
+ * swapped every window, and a copy received while its key is in either moves it to the newest one,
+ * so a message repeated more often than the window is dropped for as long as it is repeated
+ * <p>
+ * Only the messages whose copies change nothing are filtered: a PUTCHUNK or GETCHUNK sent again means the answer to
+ * the previous one was lost, so it is always handled
+ */
+class DuplicateFilter {
+
+    /**
+     * Time a message is remembered for, at least, in milliseconds, 0 to remember none
+     */
+    static final long WINDOW = Long.getLong("sdis.dedup.window", 1000);
+
+    private static final List<String> IDEMPOTENT = Arrays.asList("DELETE", "REMOVED");
+
+    private final long window;
+    private Set<String> current;
+    private Set<String> previous;
+    private long rotatedAt;
+
+    /**
+     * @param window time a message is remembered for, at least, in milliseconds, 0 to remember none
+     */
+    DuplicateFilter(long window) {
+        this.window = window;
+        current = new HashSet<>();
+        previous = new HashSet<>();
+        rotatedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Registers a received message
+     *
+     * @param messageHeader fields of the header of the message
+     * @return true if the message is idempotent and a copy of it was received lately
+     */
+    boolean isDuplicate(String[] messageHeader) {
+        if (window <= 0 || messageHeader.length < 4 || !IDEMPOTENT.contains(messageHeader[0]))
+            return false;
+
+        String key = key(messageHeader[0], messageHeader[2], messageHeader[3],
+                messageHeader.length > 4 ? messageHeader[4] : null);
+        synchronized (this) {
+            rotate();
+            return !current.add(key) || previous.remove(key);
+        }
+    }
+
+    /**
+     * Forgets a message, once something it undoes happened, so its next copy is handled
+     * e.g. a REMOVED of a chunk, once the peer that sent it stores the chunk again
+     *
+     * @param messageType type of the message
+     * @param senderID    id of the peer that sent it
+     * @param fileID      file ID of the message
+     * @param chunkNo     chunk number of the message, null if it has none
+     */
+    void forget(String messageType, String senderID, String fileID, String chunkNo) {
+        if (window <= 0)
+            return;
+
+        String key = key(messageType, senderID, fileID, chunkNo);
+        synchronized (this) {
+            current.remove(key);
+            previous.remove(key);
+        }
+    }
+
+    private void rotate() {
+        long now = System.currentTimeMillis();
+        if (now - rotatedAt < window)
+            return;
+
+        previous = now - rotatedAt < 2 * window ? current : new HashSet<>();
+        current = new HashSet<>();
+        rotatedAt = now;
+    }
+
+    private static String key(String messageType, String senderID, String fileID, String chunkNo) {
+        return chunkNo == null ? messageType + ' ' + senderID + ' ' + fileID
+                : messageType + ' ' + senderID + ' ' + fileID + ' ' + chunkNo;
+    }
+}
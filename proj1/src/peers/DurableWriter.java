@@ -0,0 +1,542 @@
+package peers;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Writes files so a crash never leaves one half written: the content goes to a temporary file,
+ * which is then renamed over the final one
+ * On SYNC, concurrent writes are committed together: the whole batch is appended to a journal, which is synced once,
+ * and only then are the temporary files renamed, without syncing them. The files renamed are synced later, in the
+ * background, once the journal grows past SEGMENT_SIZE, and a new journal is started; journals left by a crash are
+ * replayed when the writer is created
+ */
+class DurableWriter {
+
+    enum Mode {
+        /**
+         * write the final file in place, as fast as possible but not crash-consistent
+         */
+        NONE,
+        /**
+         * write a temporary file and rename it, a crash leaves either the whole file or none of it,
+         * but recent files may be lost
+         */
+        RENAME,
+        /**
+         * as RENAME, and the file is on disk, on the journal, when the write returns
+         */
+        SYNC
+    }
+
+    /**
+     * Maximum number of files committed together
+     */
+    private static final int MAX_BATCH = 256;
+    /**
+     * Bytes appended to a journal before its files are synced and a new one is started
+     */
+    static final long SEGMENT_SIZE = Long.getLong("sdis.durability.journal", 32L * 1024 * 1024);
+
+    private static final String JOURNAL_PREFIX = "journal.";
+    private static final int RECORD_MAGIC = 0x4A524E4C;
+    private static final byte RECORD_WRITE = 1;
+    private static final byte RECORD_DELETE = 2;
+
+    private final File tempDir;
+    private final Mode mode;
+    private final long window;
+    private final PeerMetrics metrics;
+    private final AtomicLong nextTemp;
+    private final LinkedBlockingQueue<Pending> pending;
+    /**
+     * journals whose files are being synced, one at most waiting
+     */
+    private final ArrayBlockingQueue<Segment> checkpoints;
+    private Thread committer;
+    private Thread checkpointer;
+
+    /*
+     * journal being appended to, only used by the committer
+     */
+    private Segment segment;
+    private long nextSegment;
+
+    private static class Pending {
+        final FileChannel channel;
+        final File temp;
+        final File target;
+        /**
+         * content of the file, null to record that the file was deleted
+         */
+        final byte[] data;
+        final CompletableFuture<Void> done;
+
+        Pending(FileChannel channel, File temp, File target, byte[] data) {
+            this.channel = channel;
+            this.temp = temp;
+            this.target = target;
+            this.data = data;
+            done = new CompletableFuture<>();
+        }
+    }
+
+    private static class Segment {
+        final File file;
+        final FileChannel channel;
+        /**
+         * files renamed since the journal was started, not synced yet
+         */
+        final Set<File> targets;
+        long size;
+
+        Segment(File file, FileChannel channel) {
+            this.file = file;
+            this.channel = channel;
+            targets = new LinkedHashSet<>();
+        }
+    }
+
+    /**
+     * @param tempDir directory of the temporary files and the journals, on the same file system as the final files;
+     *                journals left by a crash are replayed and temporary files removed
+     * @param mode    durability of the writes
+     * @param window  time a commit waits for more writes to join it, in milliseconds
+     * @param metrics metrics of the peer, where the commits are recorded
+     */
+    DurableWriter(File tempDir, Mode mode, long window, PeerMetrics metrics) {
+        this.tempDir = tempDir;
+        this.mode = mode;
+        this.window = window;
+        this.metrics = metrics;
+        nextTemp = new AtomicLong();
+        pending = new LinkedBlockingQueue<>();
+        checkpoints = new ArrayBlockingQueue<>(1);
+
+        replay();
+        if (mode != Mode.NONE) {
+            tempDir.mkdirs();
+            File[] leftovers = tempDir.listFiles();
+            if (leftovers != null)
+                for (File leftover : leftovers)
+                    leftover.delete();
+        }
+    }
+
+    /**
+     * Parses the durability given in a system property
+     *
+     * @param value none, rename or sync
+     * @return the mode, SYNC if the value is unknown
+     */
+    static Mode parseMode(String value) {
+        try {
+            return Mode.valueOf(value.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown durability " + value + ", using sync");
+            return Mode.SYNC;
+        }
+    }
+
+    /**
+     * Writes a file, replacing it if it exists
+     *
+     * @param target file to write
+     * @param data   content of the file, must not change afterwards
+     * @throws IOException if the file could not be written
+     */
+    void write(File target, byte[] data) throws IOException {
+        if (mode == Mode.NONE) {
+            try (FileChannel channel = FileChannel.open(target.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                writeFully(channel, data);
+            }
+            return;
+        }
+
+        File temp = new File(tempDir, target.getName() + '.' + nextTemp.incrementAndGet());
+        FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        try {
+            writeFully(channel, data);
+        } catch (IOException e) {
+            channel.close();
+            temp.delete();
+            throw e;
+        }
+
+        if (mode == Mode.RENAME) {
+            channel.close();
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            return;
+        }
+
+        Pending write = new Pending(channel, temp, target, data);
+        startCommitter();
+        pending.add(write);
+        try {
+            write.done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for " + target + " to be committed");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Records that a file written before was deleted, so a replay of the journal does not bring it back
+     * The record is synced with the next commit
+     *
+     * @param target file deleted
+     */
+    void deleted(File target) {
+        if (mode != Mode.SYNC)
+            return;
+
+        startCommitter();
+        pending.add(new Pending(null, null, target, null));
+    }
+
+    /**
+     * Stops committing; writes waiting for a commit fail
+     */
+    synchronized void close() {
+        if (committer != null)
+            committer.interrupt();
+        if (checkpointer != null)
+            checkpointer.interrupt();
+    }
+
+    private synchronized void startCommitter() {
+        if (committer != null)
+            return;
+
+        committer = new Thread(this::commitLoop, "durable-writer");
+        committer.setDaemon(true);
+        committer.start();
+        checkpointer = new Thread(this::checkpointLoop, "durable-checkpoint");
+        checkpointer.setDaemon(true);
+        checkpointer.start();
+    }
+
+    private void commitLoop() {
+        List<Pending> batch = new ArrayList<>();
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                batch.add(pending.take());
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(window);
+                while (batch.size() < MAX_BATCH) {
+                    Pending next = pending.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                    if (next == null)
+                        break;
+                    batch.add(next);
+                }
+                pending.drainTo(batch, MAX_BATCH - batch.size());
+
+                commit(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            /* closed */
+        }
+
+        /* the journal is left for the next writer to replay */
+        if (segment != null)
+            closeQuietly(segment.channel);
+        batch.addAll(pending);
+        for (Pending write : batch) {
+            if (write.channel != null)
+                closeQuietly(write.channel);
+            if (write.temp != null)
+                write.temp.delete();
+            write.done.completeExceptionally(new IOException("Writer closed before " + write.target + " was committed"));
+        }
+    }
+
+    /**
+     * Appends a batch to the journal and syncs it, then renames the temporary files of the batch,
+     * starting a new journal if this one is full
+     */
+    private void commit(List<Pending> batch) throws InterruptedException {
+        long startTime = System.nanoTime();
+        int files = 0;
+        try {
+            if (segment == null)
+                segment = openSegment();
+            for (Pending write : batch) {
+                segment.size += append(segment.channel, write.target, write.data);
+                if (write.data != null)
+                    files++;
+            }
+            segment.channel.force(false);
+        } catch (IOException e) {
+            for (Pending write : batch) {
+                if (write.channel != null)
+                    closeQuietly(write.channel);
+                if (write.temp != null)
+                    write.temp.delete();
+                write.done.completeExceptionally(e);
+            }
+            /* the journal may end in a torn record, the next batch starts a new one */
+            if (segment != null)
+                rotate();
+            return;
+        }
+        metrics.histogram(PeerMetrics.DISK_SYNC).recordSince(startTime);
+        metrics.increment("disk.sync.batches");
+        metrics.increment("disk.sync.files", files);
+
+        for (Pending write : batch) {
+            if (write.data == null) {
+                write.done.complete(null);
+                continue;
+            }
+            try {
+                write.channel.close();
+                Files.move(write.temp.toPath(), write.target.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+                segment.targets.add(write.target);
+                write.done.complete(null);
+            } catch (IOException e) {
+                closeQuietly(write.channel);
+                write.temp.delete();
+                write.done.completeExceptionally(e);
+            }
+        }
+
+        if (segment.size >= SEGMENT_SIZE)
+            rotate();
+    }
+
+    /**
+     * Starts a journal, syncing its directory so it is found after a crash
+     */
+    private Segment openSegment() throws IOException {
+        File file = new File(tempDir, JOURNAL_PREFIX + nextSegment++);
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        syncDirectory(tempDir);
+        return new Segment(file, channel);
+    }
+
+    /**
+     * Hands the journal to the checkpointer, waiting if it is still syncing the previous one
+     */
+    private void rotate() throws InterruptedException {
+        closeQuietly(segment.channel);
+        checkpoints.put(segment);
+        segment = null;
+    }
+
+    private void checkpointLoop() {
+        try {
+            while (!Thread.currentThread().isInterrupted())
+                checkpoint(checkpoints.take());
+        } catch (InterruptedException e) {
+            /* closed, the journals left are replayed by the next writer */
+        }
+    }
+
+    /**
+     * Syncs the files renamed while a journal was appended to, and their directories, then deletes the journal
+     * Most of them were already written back by the file system by then, so the syncs are short
+     */
+    private void checkpoint(Segment segment) {
+        long startTime = System.nanoTime();
+        Set<File> directories = new LinkedHashSet<>();
+        for (File target : segment.targets) {
+            syncFile(target);
+            directories.add(target.getAbsoluteFile().getParentFile());
+        }
+        for (File directory : directories)
+            syncDirectory(directory);
+
+        segment.file.delete();
+        syncDirectory(tempDir);
+        metrics.histogram(PeerMetrics.DISK_CHECKPOINT).recordSince(startTime);
+        metrics.increment("disk.checkpoint.files", segment.targets.size());
+    }
+
+    /**
+     * Applies the journals left by a crash, oldest first: the files written are written again and synced,
+     * and the ones deleted afterwards deleted again
+     */
+    private void replay() {
+        File[] journals = tempDir.listFiles((directory, name) -> name.startsWith(JOURNAL_PREFIX));
+        if (journals == null || journals.length == 0)
+            return;
+
+        Arrays.sort(journals, Comparator.comparingLong(DurableWriter::segmentNumber));
+        Map<File, byte[]> latest = new LinkedHashMap<>();
+        for (File journal : journals)
+            readJournal(journal, latest);
+
+        Set<File> directories = new LinkedHashSet<>();
+        for (Map.Entry<File, byte[]> entry : latest.entrySet()) {
+            File target = entry.getKey();
+            try {
+                if (entry.getValue() == null)
+                    Files.deleteIfExists(target.toPath());
+                else
+                    rewrite(target, entry.getValue());
+                directories.add(target.getAbsoluteFile().getParentFile());
+            } catch (IOException e) {
+                System.err.println("Unable to replay the journal on " + target + ": " + e.getMessage());
+            }
+        }
+        for (File directory : directories)
+            syncDirectory(directory);
+
+        for (File journal : journals)
+            journal.delete();
+        PeerLog.info(PeerLog.STORE, "journal replayed", "journals", journals.length, "files", latest.size());
+    }
+
+    /**
+     * Reads the records of a journal, up to the first torn one
+     *
+     * @param journal journal to read
+     * @param latest  latest content of every file recorded, null if it was deleted
+     */
+    private static void readJournal(File journal, Map<File, byte[]> latest) {
+        ByteBuffer buffer;
+        try {
+            buffer = ByteBuffer.wrap(Files.readAllBytes(journal.toPath()));
+        } catch (IOException e) {
+            System.err.println("Unable to read the journal " + journal + ": " + e.getMessage());
+            return;
+        }
+
+        try {
+            while (buffer.remaining() > 0 && buffer.getInt() == RECORD_MAGIC) {
+                int start = buffer.position();
+                byte type = buffer.get();
+                byte[] path = new byte[buffer.getShort() & 0xFFFF];
+                buffer.get(path);
+                byte[] data = new byte[buffer.getInt()];
+                buffer.get(data);
+                int end = buffer.position();
+
+                CRC32 crc = new CRC32();
+                crc.update(buffer.array(), start, end - start);
+                if (buffer.getLong() != crc.getValue())
+                    return;
+
+                File target = new File(new String(path, StandardCharsets.UTF_8));
+                latest.remove(target);
+                latest.put(target, type == RECORD_WRITE ? data : null);
+            }
+        } catch (BufferUnderflowException | NegativeArraySizeException e) {
+            /* torn at the end */
+        }
+    }
+
+    /**
+     * Appends a record to a journal
+     *
+     * @return bytes appended
+     */
+    private static long append(FileChannel journal, File target, byte[] data) throws IOException {
+        byte[] path = target.getAbsolutePath().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = ByteBuffer.allocate(4 + 1 + 2 + path.length + 4);
+        header.putInt(RECORD_MAGIC).put(data == null ? RECORD_DELETE : RECORD_WRITE)
+                .putShort((short) path.length).put(path).putInt(data == null ? 0 : data.length);
+        header.flip();
+
+        CRC32 crc = new CRC32();
+        crc.update(header.array(), 4, header.limit() - 4);
+        if (data != null)
+            crc.update(data, 0, data.length);
+        ByteBuffer trailer = ByteBuffer.allocate(8);
+        trailer.putLong(crc.getValue());
+        trailer.flip();
+
+        ByteBuffer[] record = {header, data == null ? ByteBuffer.allocate(0) : ByteBuffer.wrap(data), trailer};
+        long size = header.remaining() + record[1].remaining() + trailer.remaining();
+        long written = 0;
+        while (written < size)
+            written += journal.write(record);
+        return size;
+    }
+
+    /**
+     * Writes a file from the journal, synced before it is renamed over the final one
+     */
+    private void rewrite(File target, byte[] data) throws IOException {
+        target.getAbsoluteFile().getParentFile().mkdirs();
+        File temp = new File(tempDir, target.getName() + ".replay");
+        try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            writeFully(channel, data);
+            channel.force(true);
+        }
+        Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static long segmentNumber(File journal) {
+        try {
+            return Long.parseLong(journal.getName().substring(JOURNAL_PREFIX.length()));
+        } catch (NumberFormatException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Syncs a file written before, if it still exists
+     */
+    private static void syncFile(File file) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            /* deleted since */
+        }
+    }
+
+    /**
+     * Syncs a directory, so the files renamed into it survive a crash
+     * Not every platform allows a directory to be opened, there the rename is left to the file system
+     */
+    private static void syncDirectory(File directory) {
+        try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            /* not supported on this platform */
+        }
+    }
+
+    private static void writeFully(FileChannel channel, byte[] data) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            /* already failed */
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package peers;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Files backed up by this peer, indexed by file ID and by name
+ * Every change is appended to a log, replayed when the peer starts; once most of the log
+ * is made of stale records it is rewritten with only the files still owned
+ */
+class FileCatalog {
+
+    private static final byte ADD = 1;
+    private static final byte REMOVE = 2;
+    /**
+     * Backup of a file with its manifest; files backed up before the manifest was kept have ADD records
+     */
+    private static final byte ADD_MANIFEST = 3;
+    /**
+     * Stale records tolerated in the log before it is compacted, besides one per file owned
+     */
+    private static final int COMPACTION_SLACK = 1000;
+
+    /**
+     * What this peer knows about a file it backed up
+     */
+    static class Entry {
+        final String fileID;
+        final String name;
+        /**
+         * size of the file, -1 if unknown, and number of chunks it was split in
+         */
+        final long size;
+        final long numChunks;
+        final int replicationDegree;
+        /**
+         * last modification of the file and instant of the backup, in milliseconds since the epoch
+         */
+        final long modified;
+        final long backedUp;
+        /**
+         * order in which the files were backed up
+         */
+        final long sequence;
+        /**
+         * manifest of the file, the CRC32 of every chunk, null if unknown
+         */
+        final int[] checksums;
+
+        Entry(String fileID, String name, long size, long numChunks, int replicationDegree, long modified,
+              long backedUp, long sequence, int[] checksums) {
+            this.fileID = fileID;
+            this.name = name;
+            this.size = size;
+            this.numChunks = numChunks;
+            this.replicationDegree = replicationDegree;
+            this.modified = modified;
+            this.backedUp = backedUp;
+            this.sequence = sequence;
+            this.checksums = checksums;
+        }
+    }
+
+    private final File logFile;
+    /**
+     * key = <fileID>
+     */
+    private final ConcurrentHashMap<String, Entry> byID;
+    /**
+     * latest backup of every file name
+     * key = name
+     */
+    private final ConcurrentHashMap<String, Entry> byName;
+    private DataOutputStream log;
+    private long records;
+    private long nextSequence;
+
+    /**
+     * Loads the catalog kept in a log file, creating it if it does not exist
+     *
+     * @param logFile file of the log
+     */
+    FileCatalog(File logFile) {
+        this.logFile = logFile;
+        byID = new ConcurrentHashMap<>();
+        byName = new ConcurrentHashMap<>();
+
+        replay();
+        compact();
+    }
+
+    /**
+     * @param fileID file ID
+     * @return true if the file was backed up by this peer
+     */
+    boolean owns(String fileID) {
+        return byID.containsKey(fileID);
+    }
+
+    /**
+     * @return file with the given ID, null if it is not owned
+     */
+    Entry get(String fileID) {
+        return byID.get(fileID);
+    }
+
+    /**
+     * @return latest backup of the file with the given name, null if there is none
+     */
+    Entry getByName(String name) {
+        return byName.get(name);
+    }
+
+    /**
+     * @return number of files owned
+     */
+    int size() {
+        return byID.size();
+    }
+
+    /**
+     * @return files owned, in the order they were backed up
+     */
+    List<Entry> getEntries() {
+        List<Entry> entries = new ArrayList<>(byID.values());
+        entries.sort((a, b) -> Long.compare(a.sequence, b.sequence));
+        return entries;
+    }
+
+    /**
+     * Registers the backup of a file, replacing the previous backup with the same file ID
+     *
+     * @param fileID            file ID
+     * @param name              name of the file
+     * @param size              size of the file
+     * @param numChunks         number of chunks of the file
+     * @param replicationDegree desired replication degree
+     * @param modified          last modification of the file
+     * @param checksums         CRC32 of every chunk of the file, null if unknown
+     * @return the entry of the file
+     */
+    synchronized Entry add(String fileID, String name, long size, long numChunks, int replicationDegree, long modified,
+                           int[] checksums) {
+        Entry entry = new Entry(fileID, name, size, numChunks, replicationDegree, modified,
+                System.currentTimeMillis(), nextSequence++, checksums);
+        index(entry);
+
+        try {
+            writeAdd(log, entry);
+            log.flush();
+            records++;
+        } catch (IOException e) {
+            System.err.println("Unable to save the backup of file " + name);
+        }
+        compactIfNeeded();
+        return entry;
+    }
+
+    /**
+     * Forgets a file, when it is deleted
+     *
+     * @param fileID file ID
+     * @return the entry of the file, null if it was not owned
+     */
+    synchronized Entry remove(String fileID) {
+        Entry entry = byID.remove(fileID);
+        if (entry == null)
+            return null;
+        byName.remove(entry.name, entry);
+
+        try {
+            log.writeByte(REMOVE);
+            log.writeUTF(fileID);
+            log.flush();
+            records++;
+        } catch (IOException e) {
+            System.err.println("Unable to save the deletion of file " + entry.name);
+        }
+        compactIfNeeded();
+        return entry;
+    }
+
+    private void index(Entry entry) {
+        Entry previous = byID.put(entry.fileID, entry);
+        if (previous != null)
+            byName.remove(previous.name, previous);
+        byName.put(entry.name, entry);
+    }
+
+    /**
+     * Reads the log, up to its first incomplete record
+     */
+    private void replay() {
+        if (!logFile.exists())
+            return;
+
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)))) {
+            while (true) {
+                byte type = input.readByte();
+                if (type == ADD || type == ADD_MANIFEST) {
+                    String fileID = input.readUTF();
+                    String name = input.readUTF();
+                    long size = input.readLong();
+                    long numChunks = input.readLong();
+                    int replicationDegree = input.readInt();
+                    long modified = input.readLong();
+                    long backedUp = input.readLong();
+                    int[] checksums = type == ADD_MANIFEST ? readChecksums(input) : null;
+                    index(new Entry(fileID, name, size, numChunks, replicationDegree, modified, backedUp,
+                            nextSequence++, checksums));
+                } else if (type == REMOVE) {
+                    Entry entry = byID.remove(input.readUTF());
+                    if (entry != null)
+                        byName.remove(entry.name, entry);
+                } else {
+                    System.err.println("Unknown record on the file catalog, ignoring the rest of it");
+                    break;
+                }
+            }
+        } catch (EOFException e) {
+            /* end of the log, or a record cut short by a crash */
+        } catch (IOException e) {
+            System.err.println("Unable to load the file catalog");
+        }
+    }
+
+    private void compactIfNeeded() {
+        if (records > 2L * byID.size() + COMPACTION_SLACK)
+            compact();
+    }
+
+    /**
+     * Rewrites the log with only the files owned, replacing it once complete
+     */
+    private synchronized void compact() {
+        File compacted = new File(logFile.getPath() + ".tmp");
+        try {
+            if (log != null)
+                log.close();
+
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(compacted)))) {
+                for (Entry entry : getEntries())
+                    writeAdd(output, entry);
+            }
+
+            if (!compacted.renameTo(logFile)) {
+                /* some platforms do not replace on rename */
+                logFile.delete();
+                if (!compacted.renameTo(logFile))
+                    throw new IOException("Unable to replace " + logFile);
+            }
+            records = byID.size();
+        } catch (IOException e) {
+            System.err.println("Unable to compact the file catalog: " + e.getMessage());
+        }
+
+        try {
+            log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(logFile, true)));
+        } catch (IOException e) {
+            System.err.println("Unable to open the file catalog");
+            System.exit(1);
+        }
+    }
+
+    private static void writeAdd(DataOutputStream output, Entry entry) throws IOException {
+        output.writeByte(entry.checksums == null ? ADD : ADD_MANIFEST);
+        output.writeUTF(entry.fileID);
+        output.writeUTF(entry.name);
+        output.writeLong(entry.size);
+        output.writeLong(entry.numChunks);
+        output.writeInt(entry.replicationDegree);
+        output.writeLong(entry.modified);
+        output.writeLong(entry.backedUp);
+
+        if (entry.checksums != null) {
+            output.writeInt(entry.checksums.length);
+            for (int checksum : entry.checksums)
+                output.writeInt(checksum);
+        }
+    }
+
+    private static int[] readChecksums(DataInputStream input) throws IOException {
+        int count = input.readInt();
+        if (count < 0)
+            throw new EOFException();
+
+        int[] checksums = new int[count];
+        for (int i = 0; i < count; i++)
+            checksums[i] = input.readInt();
+        return checksums;
+    }
+}
@@ -1,9 +1,12 @@
 package peers;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
 
 class FileRestorer {
 
@@ -15,25 +18,33 @@ class FileRestorer {
     private final ConcurrentHashMap<String, byte[]> restoredChunks;
     private final String filepath;
     private final String restoredFilesPath;
-    private final PeerService peer;
+    private final Consumer<String> onRestored;
     private final String fileID;
+    /**
+     * CRC32 of every chunk, null if unknown
+     */
+    private final int[] checksums;
+    private final long startTime;
     private int nChunks;
 
     /**
      * File Restorer, responsible for aggregating the chunks and restoring a given file
      *
-     * @param peer              peer this restorer belongs to
      * @param filepath          path of the file to restore
      * @param restoredFilesPath directory where the restored file will be placed
      * @param fileID            id of the file to be restored
+     * @param checksums         manifest of the file, the CRC32 of every chunk, null if unknown
+     * @param onRestored        called with the file ID once the file is restored
      */
-    FileRestorer(PeerService peer, String filepath, String restoredFilesPath, String fileID) {
-        this.peer = peer;
+    FileRestorer(String filepath, String restoredFilesPath, String fileID, int[] checksums, Consumer<String> onRestored) {
+        this.onRestored = onRestored;
         this.filepath = filepath;
         this.restoredFilesPath = restoredFilesPath;
         this.fileID = fileID;
+        this.checksums = checksums;
         nChunks = -1;
         restoredChunks = new ConcurrentHashMap<>();
+        startTime = System.nanoTime();
     }
 
     /**
@@ -55,7 +66,7 @@ class FileRestorer {
             if (restoredChunks.size() == nChunks) {
                 try {
                     restoreFile();
-                    peer.markRestored(fileID);
+                    onRestored.accept(fileID);
                 } catch (FileNotFoundException e) {
                     e.printStackTrace();
                 }
@@ -63,24 +74,63 @@ class FileRestorer {
         }
     }
 
+    /**
+     * Checks a restored chunk against the manifest of the file
+     *
+     * @param chunkNo   chunk number
+     * @param chunkData chunk content
+     * @return false if the manifest is known and the chunk does not match it
+     */
+    boolean matchesManifest(int chunkNo, byte[] chunkData) {
+        if (checksums == null)
+            return true;
+        if (chunkNo < 0 || chunkNo >= checksums.length)
+            return false;
+
+        CRC32 crc = new CRC32();
+        crc.update(chunkData);
+        return (int) crc.getValue() == checksums[chunkNo];
+    }
+
+    /**
+     * Restores a file that has no chunks, writing it empty
+     */
+    void restoreEmptyFile() {
+        try {
+            restoreFile();
+            onRestored.accept(fileID);
+        } catch (FileNotFoundException e) {
+            e.printStackTrace();
+        }
+    }
+
     /**
      * Write the complete file when the chunks are restored
      *
      * @throws FileNotFoundException
      */
     private void restoreFile() throws FileNotFoundException {
-        FileOutputStream chunkFile = new FileOutputStream(restoredFilesPath + "/" + filepath, true);
+        /* files restored from a directory keep their relative path */
+        File restored = new File(restoredFilesPath + "/" + filepath);
+        restored.getParentFile().mkdirs();
 
-        for (int i = 0; i < restoredChunks.size(); i++) {
-            try {
+        try (FileOutputStream chunkFile = new FileOutputStream(restored)) {
+            for (int i = 0; i < restoredChunks.size(); i++)
                 chunkFile.write(restoredChunks.get(Integer.toString(i)));
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        } catch (FileNotFoundException e) {
+            throw e;
+        } catch (IOException e) {
+            e.printStackTrace();
         }
 
-        System.out.format("File %s restored", filepath);
-        System.out.println();
+        PeerLog.info(PeerLog.RESTORE, "file restored", "path", filepath);
+    }
+
+    /**
+     * @return time the restore started, in nanoseconds
+     */
+    long getStartTime() {
+        return startTime;
     }
 
     /**
@@ -0,0 +1,623 @@
+package peers;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Splits the messages of a channel in fragments that fit in a network packet, and reassembles them on the receivers
+ * A chunk sent in a single datagram is split by IP in about 45 fragments and lost with any of them; here a receiver
+ * that misses fragments multicasts a NACK with their numbers, and the sender sends only those again
+ * <p>
+ * With forward error correction, every group of fragments is followed by a parity fragment, their XOR, from which
+ * a receiver rebuilds any one fragment of the group it missed without asking for it; the size of the groups
+ * adapts to the NACKs received, shrinking when losses get past the parity and growing back while none do
+ * <p>
+ * On a session, every message is numbered, even the ones that fit in one fragment, and a receiver that sees a number
+ * skipped, or hears a SYNC with a number it never got, asks for the whole message; after its last message the sender
+ * sends a few SYNCs, so the loss of the last one is noticed too
+ * <p>
+ * Messages that fit in one fragment are sent as they are, out of a session. A fragment starts with a 0 byte,
+ * which no message does:
+ * 0, DATA, sender, message id, fragment number, number of fragments, message length, group size, data
+ * 0, PARITY, sender, message id, group number, number of fragments, message length, group size, parity
+ * 0, NACK, sender, message id, number of missing fragments (-1 for all of them), their numbers
+ * 0, SYNC, sender, id of the last message sent
+ * where the sender is a random number every transport picks, as peers on the same host share the address
+ * All the peers on a channel must split its messages, or none
+ */
+class FragmentingTransport implements Transport {
+
+    /**
+     * Bytes of every fragment, header included, 0 to send every message in one datagram
+     */
+    static final int FRAGMENT_SIZE = Integer.getInteger("sdis.fragment.size", 0);
+    /**
+     * Bytes of sent messages kept to answer NACKs
+     */
+    private static final long BUFFER_SIZE = Long.getLong("sdis.fragment.buffer", 8 * 1024 * 1024);
+    /**
+     * Time without new fragments of an incomplete message after which the missing ones are asked for, in milliseconds
+     */
+    private static final long NACK_DELAY = Long.getLong("sdis.fragment.nack.delay", 20);
+    /**
+     * Parity fragments are sent, as many as the losses seen call for
+     */
+    static final boolean FEC = Boolean.getBoolean("sdis.fragment.fec");
+    /**
+     * Messages of the MDB channel are numbered, so receivers ask for the ones they missed entirely
+     */
+    static final boolean SESSION = Boolean.getBoolean("sdis.mdb.session");
+    /**
+     * Largest datagram, the size of the fragments of a session whose messages are not split
+     */
+    static final int MAX_DATAGRAM = 65507;
+    /**
+     * Smallest and largest groups of fragments covered by a parity fragment
+     */
+    private static final int MIN_GROUP = 2;
+    private static final int MAX_GROUP = 32;
+    /**
+     * Number of messages sent without NACKs after which the groups double, or the parity stops beyond MAX_GROUP
+     */
+    private static final int RELAX_AFTER = 32;
+    /**
+     * Number of NACKs sent for a message before it is dropped
+     */
+    private static final int MAX_NACKS = 5;
+    /**
+     * Number of SYNCs sent after the last message of a session, each after twice the time of the previous one
+     */
+    private static final int MAX_SYNCS = 3;
+    /**
+     * Maximum number of messages of a sender asked for on a gap, the older ones are left to the retransmissions
+     * of the protocol
+     */
+    private static final int MAX_GAP = 256;
+    /**
+     * Maximum number of messages being reassembled at once, the oldest ones are dropped beyond it
+     */
+    private static final int MAX_REASSEMBLIES = 1024;
+
+    private static final byte FRAME = 0;
+    private static final byte DATA = 1;
+    private static final byte NACK = 2;
+    private static final byte PARITY = 3;
+    private static final byte SYNC = 4;
+    private static final short ALL_FRAGMENTS = -1;
+    private static final int DATA_HEADER = 2 + 8 + 4 + 2 + 2 + 4 + 1;
+    private static final int NACK_HEADER = 2 + 8 + 4 + 2;
+
+    /**
+     * Message sent by this transport, kept to send its fragments again
+     */
+    private static class Outgoing {
+        final byte[] message;
+        final int fragments;
+        final int group;
+        /**
+         * instant every fragment was last sent again, in nanoseconds, so NACKs of several receivers are answered once
+         */
+        final long[] resentAt;
+        boolean nacked;
+
+        Outgoing(byte[] message, int fragments, int group) {
+            this.message = message;
+            this.fragments = fragments;
+            this.group = group;
+            resentAt = new long[fragments];
+        }
+    }
+
+    /**
+     * Message being reassembled
+     */
+    private static class Reassembly {
+        final long sender;
+        final int messageID;
+        final byte[] message;
+        final BitSet received;
+        final int fragments;
+        final int group;
+        /**
+         * parity fragment of every group, null until received
+         */
+        final byte[][] parity;
+        final InetAddress address;
+        long lastActivity;
+        int nacks;
+
+        Reassembly(long sender, int messageID, int length, int fragments, int group, InetAddress address) {
+            this.sender = sender;
+            this.messageID = messageID;
+            message = new byte[length];
+            received = new BitSet(fragments);
+            this.fragments = fragments;
+            this.group = group;
+            parity = new byte[group > 0 ? (fragments + group - 1) / group : 0][];
+            this.address = address;
+            lastActivity = System.nanoTime();
+        }
+    }
+
+    private final Transport transport;
+    private final int payloadSize;
+    private final boolean session;
+    private final long senderID;
+    private final AtomicInteger nextMessage;
+    /**
+     * messages sent, in the order they were sent
+     * key = message id
+     */
+    private final LinkedHashMap<Integer, Outgoing> sent;
+    private long sentBytes;
+    /**
+     * fragments covered by every parity fragment of the next messages, 0 to send none
+     */
+    private int groupSize;
+    /**
+     * messages sent since the last NACK, or since the groups last grew
+     */
+    private int quietMessages;
+    /**
+     * instant the last message was sent, in nanoseconds, and SYNCs sent since
+     */
+    private long lastSentAt;
+    private int syncs;
+    /**
+     * key = <sender>_<message id>
+     */
+    private final ConcurrentHashMap<String, Reassembly> reassemblies;
+    /**
+     * messages delivered lately, so fragments sent again after they were complete are ignored
+     */
+    private final LinkedHashMap<String, Boolean> delivered;
+    /**
+     * id of the last message received from every sender of a session
+     */
+    private final LinkedHashMap<Long, Integer> latest;
+    private volatile BiConsumer<byte[], InetAddress> receiver;
+    private Thread repairer;
+
+    /**
+     * @param transport    transport the fragments are sent on
+     * @param fragmentSize bytes of every fragment, header included
+     * @param session      true to number every message, so receivers ask for the ones they missed
+     */
+    FragmentingTransport(Transport transport, int fragmentSize, boolean session) {
+        this.transport = transport;
+        payloadSize = Math.max(fragmentSize, DATA_HEADER + 1) - DATA_HEADER;
+        this.session = session;
+        syncs = MAX_SYNCS;
+        senderID = new Random().nextLong();
+        nextMessage = new AtomicInteger();
+        sent = new LinkedHashMap<>();
+        reassemblies = new ConcurrentHashMap<>();
+        delivered = new LinkedHashMap<String, Boolean>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > MAX_REASSEMBLIES * 4;
+            }
+        };
+        latest = new LinkedHashMap<Long, Integer>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Integer> eldest) {
+                return size() > MAX_REASSEMBLIES;
+            }
+        };
+    }
+
+    /**
+     * Splits the messages of a transport, if sdis.fragment.size is set, and numbers them, if sdis.mdb.session is set
+     * and the channel is the MDB
+     *
+     * @param transport transport of a channel that carries chunks
+     * @param backup    true for the MDB channel
+     * @return the transport, wrapped if the messages are split or numbered
+     */
+    static Transport wrap(Transport transport, boolean backup) {
+        boolean session = backup && SESSION;
+        if (FRAGMENT_SIZE <= 0 && !session)
+            return transport;
+        return new FragmentingTransport(transport, FRAGMENT_SIZE > 0 ? FRAGMENT_SIZE : MAX_DATAGRAM, session);
+    }
+
+    @Override
+    public void start(BiConsumer<byte[], InetAddress> receiver) throws IOException {
+        this.receiver = receiver;
+        repairer = new Thread(this::repairLoop, "fragment-repair");
+        repairer.setDaemon(true);
+        repairer.start();
+        transport.start(this::receive);
+    }
+
+    @Override
+    public boolean send(byte[] message) {
+        int fragments = Math.max(1, (message.length + payloadSize - 1) / payloadSize);
+        if (fragments == 1 && !session || fragments > Short.MAX_VALUE)
+            return transport.send(message);
+
+        int messageID = nextMessage.incrementAndGet();
+        int group = 0;
+        synchronized (sent) {
+            if (fragments > 1) {
+                if (FEC && groupSize > 0 && ++quietMessages >= RELAX_AFTER) {
+                    groupSize = groupSize * 2 > MAX_GROUP ? 0 : groupSize * 2;
+                    quietMessages = 0;
+                }
+                group = groupSize;
+            }
+            lastSentAt = System.nanoTime();
+            syncs = 0;
+            sent.put(messageID, new Outgoing(message, fragments, group));
+            sentBytes += message.length;
+            Iterator<Outgoing> oldest = sent.values().iterator();
+            while (sentBytes > BUFFER_SIZE && sent.size() > 1) {
+                sentBytes -= oldest.next().message.length;
+                oldest.remove();
+            }
+        }
+
+        for (int fragment = 0; fragment < fragments; fragment++) {
+            if (!transport.send(fragment(messageID, message, fragment, fragments, group)))
+                return false;
+            boolean groupEnd = group > 0 && (fragment % group == group - 1 || fragment == fragments - 1);
+            if (groupEnd && !transport.send(parity(messageID, message, fragment / group, fragments, group)))
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isNetworked() {
+        return transport.isNetworked();
+    }
+
+    @Override
+    public void close() {
+        if (repairer != null)
+            repairer.interrupt();
+        transport.close();
+    }
+
+    private byte[] fragment(int messageID, byte[] message, int fragment, int fragments, int group) {
+        int offset = fragment * payloadSize;
+        int length = Math.min(payloadSize, message.length - offset);
+        ByteBuffer frame = ByteBuffer.allocate(DATA_HEADER + length);
+        frame.put(FRAME).put(DATA).putLong(senderID).putInt(messageID)
+                .putShort((short) fragment).putShort((short) fragments).putInt(message.length).put((byte) group)
+                .put(message, offset, length);
+        return frame.array();
+    }
+
+    /**
+     * @return parity fragment of a group, the XOR of its fragments, the last one padded with zeros
+     */
+    private byte[] parity(int messageID, byte[] message, int groupNo, int fragments, int group) {
+        ByteBuffer frame = ByteBuffer.allocate(DATA_HEADER + payloadSize);
+        frame.put(FRAME).put(PARITY).putLong(senderID).putInt(messageID)
+                .putShort((short) groupNo).putShort((short) fragments).putInt(message.length).put((byte) group);
+
+        byte[] parity = frame.array();
+        xorGroup(parity, DATA_HEADER, message, groupNo, fragments, group, -1);
+        return parity;
+    }
+
+    /**
+     * XORs the fragments of a group into a buffer
+     *
+     * @param skipped fragment left out, -1 for none
+     */
+    private void xorGroup(byte[] buffer, int start, byte[] message, int groupNo, int fragments, int group, int skipped) {
+        int last = Math.min(fragments, (groupNo + 1) * group);
+        for (int fragment = groupNo * group; fragment < last; fragment++) {
+            if (fragment == skipped)
+                continue;
+            int offset = fragment * payloadSize;
+            int length = Math.min(payloadSize, message.length - offset);
+            for (int i = 0; i < length; i++)
+                buffer[start + i] ^= message[offset + i];
+        }
+    }
+
+    private void receive(byte[] datagram, InetAddress address) {
+        if (datagram.length == 0 || datagram[0] != FRAME) {
+            receiver.accept(datagram, address);
+            return;
+        }
+
+        ByteBuffer frame = ByteBuffer.wrap(datagram);
+        try {
+            frame.get();
+            byte type = frame.get();
+            long sender = frame.getLong();
+            int messageID = frame.getInt();
+            /* the frames of this transport, heard back through the multicast loopback */
+            if (sender == senderID && type != NACK)
+                return;
+
+            if (type == DATA || type == PARITY) {
+                if (session)
+                    sequenceSeen(sender, messageID, false, address);
+                receiveFragment(frame, type, sender, messageID, address);
+            } else if (type == NACK)
+                receiveNack(frame, sender, messageID);
+            else if (type == SYNC && session)
+                sequenceSeen(sender, messageID, true, address);
+        } catch (RuntimeException e) {
+            System.err.println("Malformed fragment: " + e);
+        }
+    }
+
+    private void receiveFragment(ByteBuffer frame, byte type, long sender, int messageID, InetAddress address) {
+        int index = frame.getShort();
+        int fragments = frame.getShort();
+        int length = frame.getInt();
+        int group = frame.get();
+        int groups = group > 0 ? (fragments + group - 1) / group : 0;
+        if (fragments <= 0 || index < 0 || index >= (type == DATA ? fragments : groups) || length < 0
+                || length > (long) fragments * payloadSize)
+            throw new IllegalArgumentException("fragment " + index + " of " + fragments);
+
+        String key = sender + "_" + messageID;
+        if (isDelivered(key))
+            return;
+
+        /* a message known only to be missing, from a gap, gets its size from its first fragment */
+        Reassembly reassembly = reassemblies.compute(key, (k, current) -> current == null || current.fragments == 0 ?
+                new Reassembly(sender, messageID, length, fragments, group, address) : current);
+        byte[] message = null;
+        synchronized (reassembly) {
+            if (type == DATA) {
+                if (reassembly.received.get(index))
+                    return;
+                frame.get(reassembly.message, index * payloadSize, Math.min(frame.remaining(),
+                        length - index * payloadSize));
+                reassembly.received.set(index);
+                if (reassembly.group > 0)
+                    recover(reassembly, index / reassembly.group);
+            } else {
+                if (index >= reassembly.parity.length || reassembly.parity[index] != null)
+                    return;
+                reassembly.parity[index] = new byte[payloadSize];
+                frame.get(reassembly.parity[index], 0, Math.min(frame.remaining(), payloadSize));
+                recover(reassembly, index);
+            }
+            reassembly.lastActivity = System.nanoTime();
+            if (reassembly.received.cardinality() == reassembly.fragments)
+                message = reassembly.message;
+        }
+
+        if (message != null) {
+            /* marked first, so a fragment arriving meanwhile does not start the message again */
+            synchronized (delivered) {
+                delivered.put(key, Boolean.TRUE);
+            }
+            reassemblies.remove(key);
+            receiver.accept(message, reassembly.address);
+        }
+    }
+
+    private boolean isDelivered(String key) {
+        synchronized (delivered) {
+            return delivered.containsKey(key);
+        }
+    }
+
+    /**
+     * Registers the id of a message of a sender, and starts the reassembly of the messages it skipped,
+     * which are asked for whole once NACK_DELAY passes without them
+     * The first id heard from a sender only starts its session, as the earlier messages were sent before this peer joined
+     *
+     * @param sender    sender of the message
+     * @param messageID id of the message, or of the last message sent, on a SYNC
+     * @param missing   true if the message itself may be missing, on a SYNC
+     * @param address   address of the sender
+     */
+    private void sequenceSeen(long sender, int messageID, boolean missing, InetAddress address) {
+        int first;
+        synchronized (latest) {
+            Integer last = latest.get(sender);
+            if (last != null && messageID - last <= 0)
+                return;
+            latest.put(sender, messageID);
+            if (last == null)
+                return;
+            first = last + 1;
+        }
+
+        int end = missing ? messageID : messageID - 1;
+        for (int id = Math.max(first, end - MAX_GAP + 1); id - end <= 0; id++) {
+            String key = sender + "_" + id;
+            if (!isDelivered(key))
+                reassemblies.putIfAbsent(key, new Reassembly(sender, id, 0, 0, 0, address));
+        }
+    }
+
+    /**
+     * Rebuilds the fragment of a group that was not received, if it is the only one and the parity was received
+     */
+    private void recover(Reassembly reassembly, int groupNo) {
+        byte[] parity = reassembly.parity[groupNo];
+        if (parity == null)
+            return;
+
+        int missing = -1;
+        int last = Math.min(reassembly.fragments, (groupNo + 1) * reassembly.group);
+        for (int fragment = groupNo * reassembly.group; fragment < last; fragment++) {
+            if (reassembly.received.get(fragment))
+                continue;
+            if (missing >= 0)
+                return;
+            missing = fragment;
+        }
+        if (missing < 0)
+            return;
+
+        byte[] data = parity.clone();
+        xorGroup(data, 0, reassembly.message, groupNo, reassembly.fragments, reassembly.group, missing);
+        int offset = missing * payloadSize;
+        System.arraycopy(data, 0, reassembly.message, offset, Math.min(payloadSize, reassembly.message.length - offset));
+        reassembly.received.set(missing);
+    }
+
+    /**
+     * Sends again the fragments asked for, if the message was sent by this transport
+     * Other receivers missing the same message hear the NACK, and wait for the fragments instead of asking too
+     */
+    private void receiveNack(ByteBuffer frame, long sender, int messageID) {
+        if (sender != senderID) {
+            Reassembly reassembly = reassemblies.get(sender + "_" + messageID);
+            if (reassembly != null) {
+                synchronized (reassembly) {
+                    reassembly.lastActivity = System.nanoTime();
+                }
+            }
+            return;
+        }
+
+        Outgoing outgoing;
+        synchronized (sent) {
+            outgoing = sent.get(messageID);
+        }
+        if (outgoing == null)
+            return;
+
+        if (FEC)
+            lossReported(outgoing);
+
+        int missing = frame.getShort();
+        boolean all = missing == ALL_FRAGMENTS;
+        long now = System.nanoTime();
+        long gap = NACK_DELAY * 1000000 / 2;
+        for (int i = 0; i < (all ? outgoing.fragments : missing); i++) {
+            int fragment = all ? i : frame.getShort();
+            if (fragment < 0 || fragment >= outgoing.fragments)
+                continue;
+            synchronized (outgoing) {
+                if (now - outgoing.resentAt[fragment] < gap && outgoing.resentAt[fragment] != 0)
+                    continue;
+                outgoing.resentAt[fragment] = now;
+            }
+            transport.send(fragment(messageID, outgoing.message, fragment, outgoing.fragments, outgoing.group));
+        }
+    }
+
+    /**
+     * Halves the groups covered by every parity fragment, on the first NACK of a message, as losses got past the parity
+     */
+    private void lossReported(Outgoing outgoing) {
+        synchronized (sent) {
+            if (outgoing.nacked)
+                return;
+            outgoing.nacked = true;
+
+            int group = outgoing.group == 0 ? MAX_GROUP : Math.max(MIN_GROUP, outgoing.group / 2);
+            if (groupSize == 0 || group < groupSize)
+                groupSize = group;
+            quietMessages = 0;
+        }
+    }
+
+    /**
+     * Asks for the missing fragments of the messages that stopped receiving them, and drops the ones
+     * that were asked for too many times; on a session, also sends the SYNCs after the last message
+     */
+    private void repairLoop() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Thread.sleep(Math.max(1, NACK_DELAY / 2));
+                long now = System.nanoTime();
+                long delay = NACK_DELAY * 1000000;
+                if (session)
+                    sync(now, delay);
+
+                List<String> dropped = new ArrayList<>();
+                for (Map.Entry<String, Reassembly> entry : reassemblies.entrySet()) {
+                    Reassembly reassembly = entry.getValue();
+                    /* a gap noticed while the message was being delivered */
+                    if (reassembly.fragments == 0 && isDelivered(entry.getKey())) {
+                        dropped.add(entry.getKey());
+                        continue;
+                    }
+                    byte[] nack = null;
+                    synchronized (reassembly) {
+                        if (now - reassembly.lastActivity < delay)
+                            continue;
+                        if (reassembly.nacks++ >= MAX_NACKS)
+                            dropped.add(entry.getKey());
+                        else {
+                            nack = nack(reassembly);
+                            reassembly.lastActivity = now;
+                        }
+                    }
+                    if (nack != null)
+                        transport.send(nack);
+                }
+
+                for (String key : dropped)
+                    reassemblies.remove(key);
+                if (reassemblies.size() > MAX_REASSEMBLIES)
+                    dropOldest();
+            }
+        } catch (InterruptedException e) {
+            /* closed */
+        }
+    }
+
+    /**
+     * Sends a SYNC with the id of the last message, if its time came
+     */
+    private void sync(long now, long delay) {
+        synchronized (sent) {
+            if (syncs >= MAX_SYNCS || now - lastSentAt < delay << syncs)
+                return;
+            syncs++;
+        }
+        transport.send(ByteBuffer.allocate(2 + 8 + 4).put(FRAME).put(SYNC).putLong(senderID)
+                .putInt(nextMessage.get()).array());
+    }
+
+    /**
+     * @return NACK with the missing fragments of a message, as many as fit in a fragment,
+     * or for all of them if the message was never received
+     */
+    private byte[] nack(Reassembly reassembly) {
+        if (reassembly.fragments == 0)
+            return ByteBuffer.allocate(NACK_HEADER).put(FRAME).put(NACK).putLong(reassembly.sender)
+                    .putInt(reassembly.messageID).putShort(ALL_FRAGMENTS).array();
+
+        int missing = Math.min(reassembly.fragments - reassembly.received.cardinality(), (payloadSize - NACK_HEADER) / 2);
+        ByteBuffer frame = ByteBuffer.allocate(NACK_HEADER + missing * 2);
+        frame.put(FRAME).put(NACK).putLong(reassembly.sender).putInt(reassembly.messageID).putShort((short) missing);
+        for (int fragment = reassembly.received.nextClearBit(0); missing-- > 0;
+             fragment = reassembly.received.nextClearBit(fragment + 1))
+            frame.putShort((short) fragment);
+        return frame.array();
+    }
+
+    private void dropOldest() {
+        Map<String, Long> lastActivity = new HashMap<>();
+        reassemblies.forEach((key, reassembly) -> {
+            synchronized (reassembly) {
+                lastActivity.put(key, reassembly.lastActivity);
+            }
+        });
+
+        List<String> keys = new ArrayList<>(lastActivity.keySet());
+        keys.sort((a, b) -> Long.compare(lastActivity.get(a), lastActivity.get(b)));
+        for (int i = 0; i < keys.size() - MAX_REASSEMBLIES; i++)
+            reassemblies.remove(keys.get(i));
+    }
+}
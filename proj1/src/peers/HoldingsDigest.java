@@ -0,0 +1,158 @@
+package peers;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Compact summary of the chunks a peer holds, exchanged on the anti-entropy protocol
+ * For every file the peer holds chunks of, it carries the number of chunks held
+ * and an order independent hash of their numbers
+ */
+class HoldingsDigest {
+
+    /**
+     * Bytes used by an entry besides the file ID
+     */
+    private static final int ENTRY_OVERHEAD = 2 + 4 + 4 + 8;
+
+    /**
+     * Summary of the chunks held of a single file
+     */
+    static final class Entry {
+        final String fileID;
+        final int desiredReplicationDegree;
+        final int numChunks;
+        final long hash;
+
+        Entry(String fileID, int desiredReplicationDegree, BitSet chunks) {
+            this(fileID, desiredReplicationDegree, chunks.cardinality(), hash(chunks));
+        }
+
+        private Entry(String fileID, int desiredReplicationDegree, int numChunks, long hash) {
+            this.fileID = fileID;
+            this.desiredReplicationDegree = desiredReplicationDegree;
+            this.numChunks = numChunks;
+            this.hash = hash;
+        }
+
+        /**
+         * Checks if a set of chunks matches this summary
+         *
+         * @param chunks chunk numbers
+         * @return true if the chunks have the same count and hash
+         */
+        boolean matches(BitSet chunks) {
+            return chunks != null && chunks.cardinality() == numChunks && hash(chunks) == hash;
+        }
+    }
+
+    /**
+     * Keeps the files received on the parts of a digest, used to find the files
+     * a peer no longer holds once the whole digest arrives
+     */
+    static final class Round {
+        final int roundNo;
+        final int parts;
+        final HashSet<String> files;
+        private int received;
+
+        Round(int roundNo, int parts) {
+            this.roundNo = roundNo;
+            this.parts = parts;
+            files = new HashSet<>();
+        }
+
+        /**
+         * Registers a part of the digest
+         *
+         * @param entries entries on the part
+         * @return true if all the parts were received
+         */
+        synchronized boolean addPart(List<Entry> entries) {
+            for (Entry entry : entries)
+                files.add(entry.fileID);
+            return ++received == parts;
+        }
+    }
+
+    /**
+     * Order independent hash of a set of chunk numbers
+     *
+     * @param chunks chunk numbers
+     * @return hash of the chunk numbers
+     */
+    static long hash(BitSet chunks) {
+        long hash = 0;
+        for (int chunkNo = chunks.nextSetBit(0); chunkNo >= 0; chunkNo = chunks.nextSetBit(chunkNo + 1))
+            hash += mix(chunkNo);
+        return hash;
+    }
+
+    /**
+     * Spreads the bits of a chunk number (SplitMix64 finalizer)
+     *
+     * @param value chunk number
+     * @return mixed value
+     */
+    private static long mix(long value) {
+        long z = value + 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Encodes the digest entries in as many message bodies as needed
+     *
+     * @param entries  entries to encode
+     * @param maxBytes maximum size of each body
+     * @return message bodies, at least one
+     */
+    static List<byte[]> encode(List<Entry> entries, int maxBytes) {
+        List<byte[]> parts = new ArrayList<>();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+
+        try {
+            for (Entry entry : entries) {
+                if (bytes.size() + ENTRY_OVERHEAD + entry.fileID.length() > maxBytes) {
+                    parts.add(bytes.toByteArray());
+                    bytes.reset();
+                }
+                output.writeUTF(entry.fileID);
+                output.writeInt(entry.desiredReplicationDegree);
+                output.writeInt(entry.numChunks);
+                output.writeLong(entry.hash);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        parts.add(bytes.toByteArray());
+        return parts;
+    }
+
+    /**
+     * Decodes a digest body
+     *
+     * @param body message body
+     * @return digest entries
+     * @throws IOException if the body is malformed
+     */
+    static List<Entry> decode(byte[] body) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(body));
+
+        while (input.available() > 0)
+            entries.add(new Entry(input.readUTF(), input.readInt(), input.readInt(), input.readLong()));
+
+        return entries;
+    }
+}
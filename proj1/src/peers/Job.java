@@ -0,0 +1,278 @@
+package peers;
+
+import common.JobStatus;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.function.Consumer;
+
+/**
+ * Operation started by the client, updated as its chunks progress
+ * Clients read it through snapshots, and can wait for it to change
+ * The job of a file that is part of a bulk operation also reports its progress to the bulk job,
+ * which finishes when all of its files do
+ */
+class Job {
+
+    /**
+     * Seconds the current rate is averaged over
+     */
+    private static final int RATE_WINDOW = 3;
+
+    private final String jobID;
+    private final String operation;
+    private final String file;
+    private final int totalChunks;
+    private final long totalBytes;
+    private final int desiredReplicationDegree;
+    private final long startTime;
+    private final Consumer<Job> onFinished;
+
+    /**
+     * bulk job this job is part of, null if none
+     */
+    private final Job parent;
+    /**
+     * number of the first chunk of this job among the chunks of the bulk job
+     */
+    private final int parentOffset;
+    private final int totalFiles;
+    private int filesFinished;
+    private int filesFailed;
+    private int filesUnderReplicated;
+
+    private final int[] chunkReplication;
+    /**
+     * chunks whose transfer ended, successfully or not
+     */
+    private final BitSet finishedChunks;
+    private int chunksAcknowledged;
+    private long bytesTransferred;
+    /**
+     * bytes transferred in each of the last seconds
+     */
+    private final long[] rateBuckets;
+    private long rateSecond;
+
+    private JobStatus.State state;
+    private String message;
+    private long version;
+    private long elapsedMillis;
+
+    /**
+     * @param jobID                    id of the job
+     * @param operation                operation, BACKUP, RESTORE, BULK_BACKUP or BULK_RESTORE
+     * @param file                     name of the file, or of the files of a bulk operation
+     * @param totalFiles               number of files, 1 unless it is a bulk operation
+     * @param totalChunks              number of chunks of the files
+     * @param totalBytes               size of the files, 0 if unknown
+     * @param desiredReplicationDegree desired replication degree, 1 on restores
+     * @param parent                   bulk job this job is part of, null if none
+     * @param parentOffset             number of the first chunk of this job among the chunks of the bulk job
+     * @param onFinished               called once, when the job finishes
+     */
+    Job(String jobID, String operation, String file, int totalFiles, int totalChunks, long totalBytes,
+        int desiredReplicationDegree, Job parent, int parentOffset, Consumer<Job> onFinished) {
+        this.jobID = jobID;
+        this.operation = operation;
+        this.file = file;
+        this.totalChunks = totalChunks;
+        this.totalBytes = totalBytes;
+        this.desiredReplicationDegree = desiredReplicationDegree;
+        this.totalFiles = totalFiles;
+        this.parent = parent;
+        this.parentOffset = parentOffset;
+        this.onFinished = onFinished;
+        chunkReplication = new int[totalChunks];
+        finishedChunks = new BitSet(totalChunks);
+        rateBuckets = new long[RATE_WINDOW + 1];
+        startTime = System.nanoTime();
+        state = JobStatus.State.RUNNING;
+    }
+
+    String getJobID() {
+        return jobID;
+    }
+
+    /**
+     * Registers bytes sent or received
+     *
+     * @param bytes number of bytes
+     */
+    synchronized void transferred(long bytes) {
+        if (state != JobStatus.State.RUNNING)
+            return;
+
+        long second = elapsedNanos() / 1000000000L;
+        advanceRate(second);
+        rateBuckets[(int) (second % rateBuckets.length)] += bytes;
+        bytesTransferred += bytes;
+        changed();
+
+        if (parent != null)
+            parent.transferred(bytes);
+    }
+
+    /**
+     * Registers the replication degree of a chunk, as perceived by this peer
+     * A backup completes as soon as every chunk reaches the desired replication degree
+     *
+     * @param chunkNo chunk number
+     * @param degree  perceived replication degree
+     */
+    synchronized void chunkReplicated(int chunkNo, int degree) {
+        if (state != JobStatus.State.RUNNING || chunkNo < 0 || chunkNo >= totalChunks || degree <= chunkReplication[chunkNo])
+            return;
+
+        if (chunkReplication[chunkNo] < desiredReplicationDegree && degree >= desiredReplicationDegree)
+            chunksAcknowledged++;
+        chunkReplication[chunkNo] = degree;
+        changed();
+
+        if (parent != null)
+            parent.chunkReplicated(parentOffset + chunkNo, degree);
+
+        if (chunksAcknowledged == totalChunks && "BACKUP".equals(operation))
+            finish(JobStatus.State.COMPLETED, null);
+    }
+
+    /**
+     * Registers the end of the transfer of a chunk, finishing the job if it was the last one
+     *
+     * @param chunkNo chunk number
+     * @param degree  replication degree achieved
+     */
+    synchronized void chunkFinished(int chunkNo, int degree) {
+        if (state != JobStatus.State.RUNNING || chunkNo < 0 || chunkNo >= totalChunks)
+            return;
+
+        chunkReplicated(chunkNo, degree);
+        finishedChunks.set(chunkNo);
+        changed();
+
+        if (finishedChunks.cardinality() == totalChunks)
+            finish(chunksAcknowledged == totalChunks ? JobStatus.State.COMPLETED : JobStatus.State.UNDER_REPLICATED, null);
+    }
+
+    /**
+     * Finishes the job successfully
+     */
+    synchronized void complete() {
+        finish(JobStatus.State.COMPLETED, null);
+    }
+
+    /**
+     * Finishes the job with an error
+     *
+     * @param reason reason of the failure
+     */
+    synchronized void fail(String reason) {
+        finish(JobStatus.State.FAILED, reason);
+    }
+
+    /**
+     * Registers the end of the job of one of the files of a bulk operation,
+     * finishing the bulk job if it was the last one
+     *
+     * @param fileState final state of the job of the file
+     */
+    synchronized void fileFinished(JobStatus.State fileState) {
+        if (state != JobStatus.State.RUNNING)
+            return;
+
+        filesFinished++;
+        if (fileState == JobStatus.State.FAILED)
+            filesFailed++;
+        else if (fileState == JobStatus.State.UNDER_REPLICATED)
+            filesUnderReplicated++;
+        changed();
+
+        if (filesFinished >= totalFiles) {
+            if (filesFailed > 0)
+                finish(JobStatus.State.FAILED, filesFailed + " of " + totalFiles + " files failed");
+            else
+                finish(filesUnderReplicated > 0 ? JobStatus.State.UNDER_REPLICATED : JobStatus.State.COMPLETED, null);
+        }
+    }
+
+    private void finish(JobStatus.State finalState, String reason) {
+        if (state != JobStatus.State.RUNNING)
+            return;
+
+        elapsedMillis = elapsedNanos() / 1000000;
+        state = finalState;
+        message = reason;
+        if (!operation.startsWith("BULK_")) {
+            filesFinished = 1;
+            filesFailed = finalState == JobStatus.State.FAILED ? 1 : 0;
+        }
+        changed();
+        onFinished.accept(this);
+
+        if (parent != null)
+            parent.fileFinished(finalState);
+    }
+
+    synchronized boolean isDone() {
+        return state != JobStatus.State.RUNNING;
+    }
+
+    /**
+     * @return current status of the job
+     */
+    synchronized JobStatus getStatus() {
+        long elapsed = state == JobStatus.State.RUNNING ? elapsedNanos() / 1000000 : elapsedMillis;
+        long currentRate = 0;
+        if (state == JobStatus.State.RUNNING) {
+            long second = elapsedNanos() / 1000000000L;
+            advanceRate(second);
+            for (long s = Math.max(0, second - RATE_WINDOW); s < second; s++)
+                currentRate += rateBuckets[(int) (s % rateBuckets.length)];
+            currentRate /= Math.max(1, Math.min(RATE_WINDOW, second));
+        }
+
+        return new JobStatus(jobID, operation, file, state, version, totalChunks, chunksAcknowledged, totalBytes,
+                bytesTransferred, currentRate, elapsed, totalFiles, filesFinished, filesFailed, desiredReplicationDegree, chunkReplication.clone(), message);
+    }
+
+    /**
+     * Waits for the job to change
+     *
+     * @param afterVersion version of the last status seen by the caller
+     * @param timeout      maximum time to wait, in milliseconds
+     * @return status of the job, once it is newer than afterVersion, the job finished or the time elapsed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    synchronized JobStatus await(long afterVersion, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (version <= afterVersion && state == JobStatus.State.RUNNING) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0)
+                break;
+            wait(remaining);
+        }
+        return getStatus();
+    }
+
+    /**
+     * Clears the buckets of the seconds with no transfers, up to the given second
+     */
+    private void advanceRate(long second) {
+        if (second - rateSecond >= rateBuckets.length)
+            Arrays.fill(rateBuckets, 0);
+        else {
+            for (long s = rateSecond + 1; s <= second; s++)
+                rateBuckets[(int) (s % rateBuckets.length)] = 0;
+        }
+        rateSecond = Math.max(rateSecond, second);
+    }
+
+    private void changed() {
+        version++;
+        notifyAll();
+    }
+
+    private long elapsedNanos() {
+        return System.nanoTime() - startTime;
+    }
+}
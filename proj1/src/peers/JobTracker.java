@@ -0,0 +1,179 @@
+package peers;
+
+import common.JobStatus;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the jobs started by the clients of a peer
+ * Running jobs are indexed by the file they operate on, so the subprotocols can report their progress
+ */
+class JobTracker {
+
+    /**
+     * Number of finished jobs kept, so clients can still read their final status
+     */
+    private static final int MAX_FINISHED_JOBS = 1000;
+
+    private final String serverId;
+    private final AtomicLong nextJob;
+    /**
+     * key = job id
+     */
+    private final ConcurrentHashMap<String, Job> jobs;
+    /**
+     * running backups and restores
+     * key = <fileID>
+     */
+    private final ConcurrentHashMap<String, Job> backups;
+    private final ConcurrentHashMap<String, Job> restores;
+    /**
+     * ids of the finished jobs, oldest first
+     */
+    private final ConcurrentLinkedQueue<String> finishedJobs;
+
+    JobTracker(String serverId) {
+        this.serverId = serverId;
+        nextJob = new AtomicLong();
+        jobs = new ConcurrentHashMap<>();
+        backups = new ConcurrentHashMap<>();
+        restores = new ConcurrentHashMap<>();
+        finishedJobs = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * Starts tracking the backup of a file
+     *
+     * @param file                     name of the file
+     * @param fileID                   file ID, null if the file could not be read
+     * @param numChunks                number of chunks of the file
+     * @param size                     size of the file
+     * @param desiredReplicationDegree desired replication degree
+     * @return the job
+     */
+    Job startBackup(String file, String fileID, int numChunks, long size, int desiredReplicationDegree) {
+        return startBackup(file, fileID, numChunks, size, desiredReplicationDegree, null, 0);
+    }
+
+    /**
+     * Starts tracking the backup of a file that is part of a bulk backup
+     *
+     * @param file                     name of the file
+     * @param fileID                   file ID, null if the file could not be read
+     * @param numChunks                number of chunks of the file
+     * @param size                     size of the file
+     * @param desiredReplicationDegree desired replication degree
+     * @param bulk                     bulk job the file is part of, null if none
+     * @param bulkOffset               number of the first chunk of the file among the chunks of the bulk job
+     * @return the job
+     */
+    Job startBackup(String file, String fileID, int numChunks, long size, int desiredReplicationDegree,
+                    Job bulk, int bulkOffset) {
+        return start("BACKUP", backups, file, fileID, 1, numChunks, size, desiredReplicationDegree, bulk, bulkOffset);
+    }
+
+    /**
+     * Starts tracking the restore of a file
+     *
+     * @param file      name of the file
+     * @param fileID    file ID, null if the file is not known
+     * @param numChunks number of chunks of the file
+     * @return the job
+     */
+    Job startRestore(String file, String fileID, int numChunks) {
+        return startRestore(file, fileID, numChunks, null, 0);
+    }
+
+    /**
+     * Starts tracking the restore of a file that is part of a bulk restore
+     *
+     * @param file       name of the file
+     * @param fileID     file ID, null if the file is not known
+     * @param numChunks  number of chunks of the file
+     * @param bulk       bulk job the file is part of, null if none
+     * @param bulkOffset number of the first chunk of the file among the chunks of the bulk job
+     * @return the job
+     */
+    Job startRestore(String file, String fileID, int numChunks, Job bulk, int bulkOffset) {
+        return start("RESTORE", restores, file, fileID, 1, numChunks, 0, 1, bulk, bulkOffset);
+    }
+
+    /**
+     * Starts tracking a bulk backup or restore, that finishes when the jobs of all of its files do
+     *
+     * @param operation                operation, BULK_BACKUP or BULK_RESTORE
+     * @param files                    description of the files
+     * @param numFiles                 number of files
+     * @param numChunks                number of chunks of all the files
+     * @param size                     size of all the files
+     * @param desiredReplicationDegree desired replication degree, 1 on restores
+     * @return the job
+     */
+    Job startBulk(String operation, String files, int numFiles, int numChunks, long size, int desiredReplicationDegree) {
+        return start(operation, null, files, null, numFiles, numChunks, size, desiredReplicationDegree, null, 0);
+    }
+
+    private Job start(String operation, ConcurrentHashMap<String, Job> running, String file, String fileID,
+                      int numFiles, int numChunks, long size, int desiredReplicationDegree, Job bulk, int bulkOffset) {
+        String jobID = serverId + '-' + nextJob.incrementAndGet();
+        Job job = new Job(jobID, operation, file, numFiles, Math.max(0, numChunks), size, desiredReplicationDegree,
+                bulk, bulkOffset, finished -> {
+            if (fileID != null)
+                running.remove(fileID, finished);
+            finishedJobs.add(finished.getJobID());
+            while (finishedJobs.size() > MAX_FINISHED_JOBS) {
+                String oldest = finishedJobs.poll();
+                if (oldest != null)
+                    jobs.remove(oldest);
+            }
+        });
+
+        jobs.put(jobID, job);
+        if (fileID != null) {
+            Job previous = running.put(fileID, job);
+            if (previous != null)
+                previous.fail("Superseded by job " + jobID);
+        }
+        return job;
+    }
+
+    /**
+     * @return running backup of the file, null if there is none
+     */
+    Job getBackup(String fileID) {
+        return backups.get(fileID);
+    }
+
+    /**
+     * @return running restore of the file, null if there is none
+     */
+    Job getRestore(String fileID) {
+        return restores.get(fileID);
+    }
+
+    /**
+     * @return job with the given id, null if it is unknown or was forgotten
+     */
+    Job get(String jobID) {
+        return jobs.get(jobID);
+    }
+
+    /**
+     * @return status of every job kept
+     */
+    List<JobStatus> getStatuses() {
+        List<JobStatus> statuses = new ArrayList<>();
+        for (Job job : jobs.values())
+            statuses.add(job.getStatus());
+        statuses.sort((a, b) -> Long.compare(jobNumber(a.jobID), jobNumber(b.jobID)));
+        return statuses;
+    }
+
+    private static long jobNumber(String jobID) {
+        return Long.parseLong(jobID.substring(jobID.lastIndexOf('-') + 1));
+    }
+}
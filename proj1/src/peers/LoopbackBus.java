@@ -0,0 +1,182 @@
+package peers;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * In-process network, where peers running on the same JVM exchange messages without sockets
+ * Every channel behaves as a shared medium with the configured bandwidth, and every delivery
+ * can be delayed by the configured latency or lost, deterministically for a given seed
+ */
+class LoopbackBus {
+
+    /**
+     * Shared medium of one of the channels
+     */
+    private static final class Medium {
+        private final List<Endpoint> endpoints = new CopyOnWriteArrayList<>();
+        /**
+         * time the medium finishes transmitting the messages sent so far, in nanoseconds
+         */
+        private long busyUntil;
+    }
+
+    /**
+     * Peer attached to a channel of the bus
+     */
+    final class Endpoint implements Transport {
+        private final Medium medium;
+        private volatile BiConsumer<byte[], InetAddress> receiver;
+
+        private Endpoint(Medium medium) {
+            this.medium = medium;
+        }
+
+        @Override
+        public void start(BiConsumer<byte[], InetAddress> receiver) {
+            this.receiver = receiver;
+            medium.endpoints.add(this);
+        }
+
+        @Override
+        public boolean send(byte[] message) {
+            if (closed)
+                return false;
+            deliver(medium, message);
+            return true;
+        }
+
+        @Override
+        public boolean isNetworked() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+            medium.endpoints.remove(this);
+        }
+    }
+
+    private final double lossRate;
+    private final int mtu;
+    private final long latency;
+    private final long bandwidth;
+    private final Random random;
+    private final ConcurrentHashMap<String, Medium> channels;
+    private final ScheduledExecutorService delivery;
+    private volatile boolean closed;
+
+    /**
+     * Creates a bus where nothing is lost or delayed
+     */
+    LoopbackBus() {
+        this(0, 0, 0, 0);
+    }
+
+    /**
+     * Creates a bus that loses whole messages
+     *
+     * @param lossRate  probability of a message not being delivered to a peer, from 0 to 1
+     * @param latency   time a message takes to reach the peers after being transmitted, in milliseconds
+     * @param bandwidth bytes per second every channel transmits, 0 if unlimited
+     * @param seed      seed of the losses
+     */
+    LoopbackBus(double lossRate, long latency, long bandwidth, long seed) {
+        this(lossRate, latency, bandwidth, seed, 0);
+    }
+
+    /**
+     * @param lossRate  probability of a message not being delivered to a peer, from 0 to 1
+     * @param latency   time a message takes to reach the peers after being transmitted, in milliseconds
+     * @param bandwidth bytes per second every channel transmits, 0 if unlimited
+     * @param seed      seed of the losses
+     * @param mtu       size of the packets IP splits a message in, each lost with lossRate, so larger messages
+     *                  are lost more often; 0 to lose every message with lossRate
+     */
+    LoopbackBus(double lossRate, long latency, long bandwidth, long seed, int mtu) {
+        this.lossRate = lossRate;
+        this.mtu = mtu;
+        this.latency = latency;
+        this.bandwidth = bandwidth;
+        random = new Random(seed);
+        channels = new ConcurrentHashMap<>();
+        delivery = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "loopback-bus");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Attaches a peer to a channel
+     *
+     * @param channel name of the channel
+     * @return transport of the peer on the channel
+     */
+    Endpoint join(String channel) {
+        return new Endpoint(channels.computeIfAbsent(channel, k -> new Medium()));
+    }
+
+    /**
+     * Delivers a message to every peer on the medium, the sender included, as multicast does
+     */
+    private void deliver(Medium medium, byte[] message) {
+        long delay = TimeUnit.MILLISECONDS.toNanos(latency);
+        if (bandwidth > 0) {
+            synchronized (medium) {
+                long now = System.nanoTime();
+                medium.busyUntil = Math.max(medium.busyUntil, now) + message.length * 1000000000L / bandwidth;
+                delay += medium.busyUntil - now;
+            }
+        }
+
+        for (Endpoint endpoint : medium.endpoints) {
+            if (lossRate > 0 && isLost(message.length))
+                continue;
+
+            byte[] copy = message.clone();
+            Runnable task = () -> {
+                BiConsumer<byte[], InetAddress> receiver = endpoint.receiver;
+                if (receiver != null && medium.endpoints.contains(endpoint))
+                    receiver.accept(copy, InetAddress.getLoopbackAddress());
+            };
+
+            try {
+                if (delay > 0)
+                    delivery.schedule(task, delay, TimeUnit.NANOSECONDS);
+                else
+                    delivery.execute(task);
+            } catch (RejectedExecutionException e) {
+                return; // bus closed
+            }
+        }
+    }
+
+    /**
+     * @param length bytes of the message
+     * @return true if the message, or any of its packets, is lost
+     */
+    private boolean isLost(int length) {
+        int packets = mtu > 0 ? Math.max(1, (length + mtu - 1) / mtu) : 1;
+        double messageLossRate = packets == 1 ? lossRate : 1 - Math.pow(1 - lossRate, packets);
+        synchronized (random) {
+            return random.nextDouble() < messageLossRate;
+        }
+    }
+
+    /**
+     * Stops delivering messages
+     */
+    void close() {
+        closed = true;
+        delivery.shutdownNow();
+    }
+}
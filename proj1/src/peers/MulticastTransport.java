@@ -0,0 +1,77 @@
+package peers;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+
+/**
+ * Channel on an UDP multicast group
+ */
+class MulticastTransport implements Transport {
+
+    private final InetAddress addr;
+    private final int port;
+    private final MulticastSocket socket;
+
+    /**
+     * Joins the multicast group
+     *
+     * @param addr address of the group
+     * @param port port
+     * @throws IOException if the group cannot be joined
+     */
+    MulticastTransport(InetAddress addr, int port) throws IOException {
+        this.addr = addr;
+        this.port = port;
+
+        socket = new MulticastSocket(port);
+        socket.joinGroup(addr);
+    }
+
+    @Override
+    public void start(BiConsumer<byte[], InetAddress> receiver) {
+        Runnable task = () -> {
+            while (!socket.isClosed()) {
+
+                /* room for the largest datagram, as a chunk framed on a session takes more than its header */
+                byte[] buf = new byte[FragmentingTransport.MAX_DATAGRAM];
+                DatagramPacket packet = new DatagramPacket(buf, buf.length);
+
+                try {
+                    socket.receive(packet);
+                    receiver.accept(Arrays.copyOfRange(packet.getData(), 0, packet.getLength()), packet.getAddress());
+                } catch (IOException e) {
+                    if (!socket.isClosed())
+                        e.printStackTrace();
+                }
+            }
+        };
+
+        new Thread(task).start();
+    }
+
+    @Override
+    public boolean send(byte[] message) {
+        DatagramPacket packet = new DatagramPacket(message, message.length, addr, port);
+
+        try {
+            socket.send(packet);
+        } catch (IOException e) {
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isNetworked() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+    }
+}
@@ -1,96 +1,86 @@
 package peers;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
 import java.net.InetAddress;
-import java.net.MulticastSocket;
-import java.util.Arrays;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 class PeerChannel {
 
-    private final InetAddress addr;
-    private final int port;
+    private final Transport transport;
     private final PeerService peer;
-    private MulticastSocket socket;
+    private final String name;
+    private final ExecutorService handlers;
 
     /**
      * Peer Channel, responsible for the communication between peers
      *
-     * @param addr address
-     * @param port port
-     * @param peer peer this channel belongs to
-     * @throws IOException
+     * @param transport transport carrying the messages of the channel
+     * @param peer      peer this channel belongs to
+     * @param name      name of the channel, used on the metrics
+     * @param handlers  executor where the received messages are handled
      */
-    PeerChannel(InetAddress addr, int port, PeerService peer) throws IOException {
-        this.addr = addr;
-        this.port = port;
+    PeerChannel(Transport transport, PeerService peer, String name, ExecutorService handlers) {
+        this.transport = transport;
         this.peer = peer;
-
-        socket = new MulticastSocket(this.port);
-
-        socket.joinGroup(this.addr);
+        this.name = name;
+        this.handlers = handlers;
     }
 
     /**
-     * Listens to the channel and waits for a packet
-     * Launches a thread to treat it
+     * Listens to the channel
+     * Every received message is handled on the handlers executor
+     *
+     * @throws IOException if the channel cannot be listened to
      */
-    void receiveMessage() {
-
-        Runnable task = () -> {
-
-            //noinspection InfiniteLoopStatement
-            while (true) {
-
-                byte[] buf = new byte[PeerService.CHUNK_SIZE + 100];
-                DatagramPacket packet = new DatagramPacket(buf, buf.length);
-
-                try {
-                    socket.receive(packet);
-
-                    channelMessageHandler(packet);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        };
-
-        new Thread(task).start();
+    void receiveMessage() throws IOException {
+        transport.start(this::channelMessageHandler);
     }
 
     /**
      * Sends a message given by the peer
      *
      * @param message message to send
-     * @return
+     * @return true if the message was sent
      */
     boolean sendMessage(byte[] message) {
-
-        DatagramPacket packet = new DatagramPacket(message, message.length, addr, port);
-
-        try {
-            socket.send(packet);
-        } catch (IOException e) {
+        if (!transport.send(message))
             return false;
-        }
+
+        peer.getMetrics().messageSent(message);
+        peer.getMetrics().channelTraffic(name, message.length, false);
         return true;
     }
 
     /**
-     * Calls the peer's message handler to treat a message
-     *
-     * @param packet received packet
+     * @return true if the peers on the channel can be reached on their address
      */
-    private void channelMessageHandler(DatagramPacket packet) {
-        byte[] buffer = Arrays.copyOfRange(packet.getData(), 0, packet.getLength());
+    boolean isNetworked() {
+        return transport.isNetworked();
+    }
 
-        Runnable task = () -> peer.messageHandler(buffer, packet.getAddress());
+    /**
+     * @return true if the channel is carried by the TCP mesh, which already holds a connection to every peer
+     */
+    boolean isMesh() {
+        return transport instanceof TcpMeshTransport;
+    }
 
-        ExecutorService service = Executors.newFixedThreadPool(10);
+    /**
+     * Stops listening to the channel
+     */
+    void close() {
+        transport.close();
+    }
 
-        service.execute(task);
+    /**
+     * Calls the peer's message handler to treat a message
+     *
+     * @param message received message
+     * @param address address of the sender
+     */
+    private void channelMessageHandler(byte[] message, InetAddress address) {
+        peer.getMetrics().channelTraffic(name, message.length, true);
 
+        handlers.execute(() -> peer.messageHandler(message, address));
     }
 }
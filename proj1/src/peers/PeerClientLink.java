@@ -1,14 +1,18 @@
 package peers;
 
 import common.InitiatorInterface;
+import common.JobStatus;
+import common.PeerState;
 
-import javax.xml.bind.DatatypeConverter;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.io.File;
 import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
 import java.rmi.RemoteException;
@@ -17,93 +21,369 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.stream.Stream;
 
 public class PeerClientLink extends UnicastRemoteObject implements InitiatorInterface {
 
+    /**
+     * Maximum time a client waits for a job on a single call, in milliseconds
+     */
+    private static final long MAX_AWAIT_TIME = 60000;
+    /**
+     * Number of files read at once by the backups and restores
+     */
+    private static final int FILE_READERS = Integer.getInteger("sdis.readers", 4);
+    /**
+     * Bytes of a file mapped in memory at once while it is backed up, a multiple of the chunk size
+     */
+    private static final long MAP_WINDOW = 1024L * PeerService.CHUNK_SIZE;
+    /**
+     * Maximum number of chunks of a file, as chunk numbers are int
+     */
+    private static final long MAX_CHUNKS = Integer.MAX_VALUE;
+
     private final PeerService peer;
 
+    /**
+     * Reads the files being backed up and requests the chunks of the files being restored
+     */
+    private final ExecutorService readers;
+
     PeerClientLink(PeerService peer) throws RemoteException {
         this.peer = peer;
+        readers = Executors.newFixedThreadPool(FILE_READERS, runnable -> {
+            Thread thread = new Thread(runnable);
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
     @Override
     public void backup(String filepath, int replicationDegree) throws IOException {
+        backupAsync(filepath, replicationDegree);
+    }
+
+    @Override
+    public String backupAsync(String filepath, int replicationDegree) throws IOException {
         if (filepath == null || replicationDegree < 1) {
             throw new IllegalArgumentException("Invalid arguments for backup");
         }
 
-        FileInputStream file;
+        return startBackup(filepath, replicationDegree, null, 0).getJobID();
+    }
+
+    /**
+     * Starts the backup of a file; its chunks are read by the file readers,
+     * as fast as the transfer budget of the peer allows
+     *
+     * @param filepath          name of the file
+     * @param replicationDegree desired replication degree
+     * @param bulk              bulk job the file is part of, null if none
+     * @param bulkOffset        number of the first chunk of the file among the chunks of the bulk job
+     * @return the job of the file
+     */
+    private Job startBackup(String filepath, int replicationDegree, Job bulk, int bulkOffset) {
         String path;
         if (filepath.startsWith(peer.getMyFilesPath()))
             path = filepath;
         else path = peer.getMyFilesPath() + '/' + filepath;
+
+        File file = new File(path);
+        String fileId = null;
         try {
-            file = new FileInputStream(path);
-        } catch (FileNotFoundException e) {
-            System.out.format("File %s not found in the peer's files directory. Place it in the myPeers/<peer_id>/myFiles directory\n", path);
-            return;
+            if (file.isFile())
+                fileId = getFileHash(path);
+        } catch (IOException e) {
+            e.printStackTrace();
         }
 
-        System.out.println("New backup request for file " + filepath);
-        int chunkNo = 0;
-        int readableBytes = -1;
-        byte[] chunk;
+        if (fileId == null) {
+            PeerLog.warn(PeerLog.CLIENT, "file not found, place it in the myPeers/<peer_id>/myFiles directory", "path", path);
+            Job job = peer.getJobs().startBackup(filepath, null, 0, 0, replicationDegree, bulk, bulkOffset);
+            job.fail("File not found in the peer's files directory");
+            return job;
+        }
 
-        String fileId = getFileHash(path);
+        PeerLog.info(PeerLog.CLIENT, "backup requested", "path", filepath, "degree", replicationDegree);
 
-        while (file.available() > 0) {
-            readableBytes = file.available();
+        long size = file.length();
+        if (numChunks(size) > MAX_CHUNKS) {
+            Job job = peer.getJobs().startBackup(filepath, null, 0, size, replicationDegree, bulk, bulkOffset);
+            job.fail("File too large, it has more than " + MAX_CHUNKS + " chunks");
+            return job;
+        }
 
-            if (readableBytes > PeerService.CHUNK_SIZE)
-                chunk = new byte[PeerService.CHUNK_SIZE];
-            else
-                chunk = new byte[readableBytes];
+        String fileID = fileId;
+        Job job = peer.getJobs().startBackup(filepath, fileID, (int) numChunks(size), size, replicationDegree, bulk, bulkOffset);
+        readers.execute(() -> backupChunks(file, filepath, fileID, replicationDegree, job));
 
-            file.read(chunk);
-            peer.requestChunkBackup(fileId, chunkNo, replicationDegree, chunk);
-            chunkNo++;
-        }
+        return job;
+    }
 
-        /*
-           Check if the last chunk had exactly CHUNK_SIZE
-           If so, send an empty chunk
-         */
-        if (readableBytes == PeerService.CHUNK_SIZE) {
-            chunk = new byte[0];
-            peer.requestChunkBackup(fileId, chunkNo, replicationDegree, chunk);
-            chunkNo++;
+    /**
+     * Reads a file and backs up its chunks
+     *
+     * @param file              file to read
+     * @param filepath          name of the file
+     * @param fileId            file ID
+     * @param replicationDegree desired replication degree
+     * @param job               job of the file
+     */
+    private void backupChunks(File file, String filepath, String fileId, int replicationDegree, Job job) {
+        int chunkNo = 0;
+        int[] checksums;
+        CRC32 crc = new CRC32();
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            /* the manifest of the file, the CRC32 of every chunk */
+            checksums = new int[(int) Math.min(MAX_CHUNKS, numChunks(size))];
+
+            /* chunks are sliced from a window of the file mapped in memory, moved along the file */
+            for (long position = 0; position < size && !job.isDone(); position += MAP_WINDOW) {
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW, size - position));
+
+                while (window.hasRemaining() && !job.isDone()) {
+                    byte[] chunk = new byte[Math.min(PeerService.CHUNK_SIZE, window.remaining())];
+                    window.get(chunk);
+                    if (chunkNo < checksums.length) {
+                        crc.reset();
+                        crc.update(chunk);
+                        checksums[chunkNo] = (int) crc.getValue();
+                    }
+                    peer.requestChunkBackup(fileId, chunkNo, replicationDegree, chunk, job);
+                    chunkNo++;
+                }
+            }
+
+            /*
+               Check if the last chunk had exactly CHUNK_SIZE
+               If so, send an empty chunk
+             */
+            if (size > 0 && size % PeerService.CHUNK_SIZE == 0 && !job.isDone()) {
+                if (chunkNo < checksums.length) {
+                    crc.reset();
+                    checksums[chunkNo] = (int) crc.getValue();
+                }
+                peer.requestChunkBackup(fileId, chunkNo, replicationDegree, new byte[0], job);
+                chunkNo++;
+            }
+        } catch (IOException e) {
+            System.err.format("Unable to read file %s\n", filepath);
+            job.fail("Unable to read the file: " + e.getMessage());
+            return;
         }
 
-        peer.registerFile(fileId, replicationDegree, chunkNo, filepath);
+        peer.registerFile(fileId, replicationDegree, chunkNo, filepath, file.length(), file.lastModified(),
+                chunkNo == checksums.length ? checksums : null);
+        if (chunkNo == 0)
+            job.complete();
     }
 
     @Override
     public void restore(String filepath) throws IOException {
+        restoreAsync(filepath);
+    }
+
+    @Override
+    public String restoreAsync(String filepath) throws IOException {
         if (filepath == null)
             throw new IllegalArgumentException("Invalid argument for restore");
 
-        System.out.println("New restore request for file " + filepath);
+        return startRestore(filepath, null, 0).getJobID();
+    }
 
-        String path = peer.getMyFilesPath() + '/' + filepath;
-        String fileID = getFileHash(path);
+    /**
+     * Starts the restore of a file; its chunks are requested by the file readers,
+     * as fast as the transfer budget of the peer allows
+     *
+     * @param filepath   name of the file
+     * @param bulk       bulk job the file is part of, null if none
+     * @param bulkOffset number of the first chunk of the file among the chunks of the bulk job
+     * @return the job of the file
+     */
+    private Job startRestore(String filepath, Job bulk, int bulkOffset) {
+        PeerLog.info(PeerLog.CLIENT, "restore requested", "path", filepath);
 
         // Verifying if the file was already backed up
-        int nChunks = peer.getNumChunks(fileID);
-        if (nChunks == PeerService.ERROR) {
-            System.err.format("File %s is not known to this peer\n", path);
-            return;
+        FileCatalog.Entry entry = findFile(filepath);
+        if (entry == null) {
+            System.err.format("File %s is not known to this peer\n", filepath);
+            Job job = peer.getJobs().startRestore(filepath, null, 0, bulk, bulkOffset);
+            job.fail("File not known to this peer");
+            return job;
         }
 
-        if (peer.getProtocolVersion().equals("2.0")) {
-            peer.tcpServer();
+        /* backups never register more than MAX_CHUNKS chunks */
+        String fileID = entry.fileID;
+        int numChunks = (int) entry.numChunks;
+        Job job = peer.getJobs().startRestore(filepath, fileID, numChunks, bulk, bulkOffset);
+
+        if (peer.getProtocolVersion().equals("2.0") && peer.usesDirectRestore()) {
+            try {
+                peer.tcpServer();
+            } catch (IOException e) {
+                System.err.println("Unable to receive chunks over TCP");
+                job.fail("Unable to receive chunks over TCP: " + e.getMessage());
+                return job;
+            }
         }
 
-        FileRestorer fileRestorer = new FileRestorer(peer, filepath, peer.getRestoredFilesPath(), fileID);
+        FileRestorer fileRestorer = new FileRestorer(filepath, peer.getRestoredFilesPath(), fileID, entry.checksums,
+                peer::markRestored);
         peer.addToRestoredHashMap(fileID, fileRestorer);
 
-        for (int chunkNo = 0; chunkNo < nChunks; chunkNo++) {
-            peer.requestChunkRestore(fileID, chunkNo);
+        /* empty files have no chunks to request */
+        if (numChunks == 0) {
+            fileRestorer.restoreEmptyFile();
+            return job;
+        }
+
+        String restoredFileID = fileID;
+        readers.execute(() -> {
+            for (int chunkNo = 0; chunkNo < numChunks && !job.isDone(); chunkNo++) {
+                peer.requestChunkRestore(restoredFileID, chunkNo);
+            }
+        });
+
+        return job;
+    }
+
+    @Override
+    public String bulkBackup(List<String> pathnames, int replicationDegree) throws IOException {
+        if (pathnames == null || pathnames.isEmpty() || replicationDegree < 1)
+            throw new IllegalArgumentException("Invalid arguments for bulk backup");
+
+        List<String> files = listFiles(pathnames);
+        PeerLog.info(PeerLog.CLIENT, "bulk backup requested", "files", files.size());
+
+        int[] offsets = new int[files.size()];
+        long totalChunks = 0;
+        long totalBytes = 0;
+        for (int i = 0; i < files.size(); i++) {
+            long size = new File(peer.getMyFilesPath() + '/' + files.get(i)).length();
+            offsets[i] = (int) Math.min(MAX_CHUNKS, totalChunks);
+            totalChunks += numChunks(size);
+            totalBytes += size;
+        }
+        if (totalChunks > MAX_CHUNKS)
+            throw new IllegalArgumentException("Too many chunks for a bulk backup, split it in smaller ones");
+
+        Job bulk = peer.getJobs().startBulk("BULK_BACKUP", String.join(",", pathnames), files.size(),
+                (int) totalChunks, totalBytes, replicationDegree);
+        if (files.isEmpty())
+            bulk.complete();
+
+        for (int i = 0; i < files.size(); i++)
+            startBackup(files.get(i), replicationDegree, bulk, offsets[i]);
+
+        return bulk.getJobID();
+    }
+
+    @Override
+    public String bulkRestore(List<String> pathnames) throws IOException {
+        if (pathnames == null || pathnames.isEmpty())
+            throw new IllegalArgumentException("Invalid arguments for bulk restore");
+
+        List<String> files = listFiles(pathnames);
+        PeerLog.info(PeerLog.CLIENT, "bulk restore requested", "files", files.size());
+
+        int[] offsets = new int[files.size()];
+        long totalChunks = 0;
+        for (int i = 0; i < files.size(); i++) {
+            offsets[i] = (int) Math.min(MAX_CHUNKS, totalChunks);
+            FileCatalog.Entry entry = findFile(files.get(i));
+            if (entry != null)
+                totalChunks += entry.numChunks;
+        }
+        if (totalChunks > MAX_CHUNKS)
+            throw new IllegalArgumentException("Too many chunks for a bulk restore, split it in smaller ones");
+
+        Job bulk = peer.getJobs().startBulk("BULK_RESTORE", String.join(",", pathnames), files.size(),
+                (int) totalChunks, 0, 1);
+        if (files.isEmpty())
+            bulk.complete();
+
+        for (int i = 0; i < files.size(); i++)
+            startRestore(files.get(i), bulk, offsets[i]);
+
+        return bulk.getJobID();
+    }
+
+    /**
+     * Lists the files named, walking the directories among them
+     *
+     * @param pathnames names of files and directories, relative to the peer's files directory
+     * @return names of the files, relative to the peer's files directory; names that do not exist are kept,
+     * so their jobs report them as missing
+     * @throws IOException if a directory cannot be walked
+     */
+    private List<String> listFiles(List<String> pathnames) throws IOException {
+        Path base = Paths.get(peer.getMyFilesPath());
+        Set<String> files = new LinkedHashSet<>();
+
+        for (String pathname : pathnames) {
+            Path path = pathname.startsWith(peer.getMyFilesPath()) ? Paths.get(pathname) : base.resolve(pathname);
+
+            if (Files.isDirectory(path)) {
+                try (Stream<Path> walk = Files.walk(path)) {
+                    walk.filter(Files::isRegularFile).sorted()
+                            .forEach(file -> files.add(base.relativize(file).toString()));
+                }
+            } else if (Files.exists(path))
+                files.add(base.relativize(path).toString());
+            else
+                files.add(pathname);
         }
+
+        return new ArrayList<>(files);
+    }
+
+    /**
+     * @param size size of a file
+     * @return number of chunks of the file
+     */
+    private static long numChunks(long size) {
+        /* a file whose size is a multiple of the chunk size ends with an empty chunk */
+        return size == 0 ? 0 : size / PeerService.CHUNK_SIZE + 1;
+    }
+
+    @Override
+    public JobStatus jobStatus(String jobID) throws RemoteException {
+        return getJob(jobID).getStatus();
+    }
+
+    @Override
+    public JobStatus awaitJob(String jobID, long afterVersion, long timeout) throws RemoteException {
+        if (timeout < 0)
+            throw new IllegalArgumentException("Invalid arguments for awaitJob");
+
+        try {
+            return getJob(jobID).await(afterVersion, Math.min(timeout, MAX_AWAIT_TIME));
+        } catch (InterruptedException e) {
+            throw new RemoteException("Interrupted while waiting for job " + jobID, e);
+        }
+    }
+
+    @Override
+    public List<JobStatus> jobs() throws RemoteException {
+        return peer.getJobs().getStatuses();
+    }
+
+    private Job getJob(String jobID) {
+        Job job = jobID == null ? null : peer.getJobs().get(jobID);
+        if (job == null)
+            throw new IllegalArgumentException("Unknown job " + jobID);
+        return job;
     }
 
     @Override
@@ -111,14 +391,42 @@ public class PeerClientLink extends UnicastRemoteObject implements InitiatorInte
         if (filepath == null)
             throw new IllegalArgumentException("Invalid arguments for delete");
 
-        String path = peer.getMyFilesPath() + '/' + filepath;
+        PeerLog.info(PeerLog.CLIENT, "delete requested", "path", filepath);
 
-        System.out.println("New delete request for file " + filepath);
-
-        String fileID = getFileHash(path);
+        FileCatalog.Entry entry = findFile(filepath);
+        String fileID;
+        if (entry != null)
+            fileID = entry.fileID;
+        else {
+            /* the file may still be marked for deletion on the enhanced version */
+            fileID = getFileHash(peer.getMyFilesPath() + '/' + filepath);
+        }
         peer.requestFileDeletion(fileID);
     }
 
+    /**
+     * Finds a file backed up by this peer by the name it was backed up with,
+     * or else by the ID of the file with that name in the peer's files directory
+     *
+     * @param filepath name of the file
+     * @return the file, null if it was not backed up by this peer
+     */
+    private FileCatalog.Entry findFile(String filepath) {
+        FileCatalog.Entry entry = peer.getCatalog().getByName(filepath);
+        if (entry != null)
+            return entry;
+
+        String path = filepath.startsWith(peer.getMyFilesPath()) ? filepath : peer.getMyFilesPath() + '/' + filepath;
+        if (!new File(path).isFile())
+            return null;
+
+        try {
+            return peer.getCatalog().get(getFileHash(path));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
     @Override
     public void reclaim(int maxAvailableBytes) throws RemoteException {
         if (maxAvailableBytes < 0)
@@ -128,13 +436,26 @@ public class PeerClientLink extends UnicastRemoteObject implements InitiatorInte
 
     @Override
     public String state() throws RemoteException {
-        String state = peer.getCurrentState();
+        String state = peer.getState(null, 0, Integer.MAX_VALUE).toString();
 
         System.out.println(state);
 
         return state;
     }
 
+    @Override
+    public PeerState state(String file, int offset, int limit) throws RemoteException {
+        if (offset < 0 || limit < 0)
+            throw new IllegalArgumentException("Invalid arguments for state");
+
+        return peer.getState(file, offset, limit);
+    }
+
+    @Override
+    public Map<String, Long> metrics() throws RemoteException {
+        return new TreeMap<>(peer.getMetrics().getSnapshot());
+    }
+
     /**
      * Compute the file hash, based on its name and modification date
      *
@@ -168,6 +489,6 @@ public class PeerClientLink extends UnicastRemoteObject implements InitiatorInte
             e.printStackTrace();
         }
 
-        return DatatypeConverter.printHexBinary(hash);
+        return String.format("%064X", new BigInteger(1, hash));
     }
 }
@@ -2,11 +2,28 @@ package peers;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Peer Launcher
  */
 class PeerLauncher {
+
+    /**
+     * Transport of the channels, multicast or tcp
+     */
+    private static final String TRANSPORT = System.getProperty("sdis.transport", "multicast");
+    /**
+     * Other peers of the TCP mesh, as host or host:offset, where offset is added to the channel ports
+     */
+    private static final String TCP_PEERS = System.getProperty("sdis.tcp.peers", "");
+    /**
+     * Offset added to the channel ports this peer listens to on the TCP mesh
+     */
+    private static final int TCP_OFFSET = Integer.getInteger("sdis.tcp.offset", 0);
+
     public static void main(String[] args) throws IOException {
         if (args.length != 9) {
             System.out.println(args.length);
@@ -27,7 +44,54 @@ class PeerLauncher {
         InetAddress mdrAddr = InetAddress.getByName(args[7]);
         int mdrPort = Integer.parseInt(args[8]);
 
-        PeerService peerService = new PeerService(serverId, protocolVersion, serviceAccessPoint, mcAddr, mcPort,
-                mdbAddr, mdbPort, mdrAddr, mdrPort);
+        PeerService peerService = new PeerService(serverId, protocolVersion, serviceAccessPoint,
+                createTransport(mcAddr, mcPort), createDataTransport(mdbAddr, mdbPort, true),
+                createDataTransport(mdrAddr, mdrPort, false), mdrPort);
+    }
+
+    /**
+     * Creates the transport of a channel that carries chunks
+     * On multicast, its messages are split in fragments if the sdis.fragment.size property is set,
+     * and numbered on a session if the sdis.mdb.session property is set and the channel is the MDB
+     *
+     * @param addr   multicast address of the channel
+     * @param port   port of the channel
+     * @param backup true for the MDB channel
+     * @return transport of the channel
+     * @throws IOException if the channel cannot be opened
+     */
+    private static Transport createDataTransport(InetAddress addr, int port, boolean backup) throws IOException {
+        Transport transport = createTransport(addr, port);
+        return TRANSPORT.equals("multicast") ? FragmentingTransport.wrap(transport, backup) : transport;
+    }
+
+    /**
+     * Creates the transport of a channel, as set by the sdis.transport property
+     *
+     * @param addr multicast address of the channel
+     * @param port port of the channel
+     * @return transport of the channel
+     * @throws IOException if the channel cannot be opened
+     */
+    private static Transport createTransport(InetAddress addr, int port) throws IOException {
+        switch (TRANSPORT) {
+            case "multicast":
+                System.out.println("Multicast channel addr: " + addr + " port: " + port);
+                return new MulticastTransport(addr, port);
+            case "tcp": {
+                List<InetSocketAddress> peers = new ArrayList<>();
+                for (String peer : TCP_PEERS.split(",")) {
+                    if (peer.trim().isEmpty())
+                        continue;
+                    String[] hostOffset = peer.trim().split(":");
+                    int offset = hostOffset.length > 1 ? Integer.parseInt(hostOffset[1]) : 0;
+                    peers.add(new InetSocketAddress(hostOffset[0], port + offset));
+                }
+                System.out.println("TCP channel port: " + (port + TCP_OFFSET) + " peers: " + peers);
+                return new TcpMeshTransport(port + TCP_OFFSET, peers);
+            }
+            default:
+                throw new IllegalArgumentException("Unknown transport " + TRANSPORT);
+        }
     }
 }
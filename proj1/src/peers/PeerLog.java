@@ -0,0 +1,372 @@
+package peers;
+
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Log of the peers: the threads that log an event only put it on a bounded lock-free ring, and a background thread
+ * formats the events and writes them to the standard output in batches, so a message handler never waits on the output
+ * When the ring is full the event is dropped and counted, instead of blocking the handler
+ * <p>
+ * Every event is written as one line: time, level, subsystem, message and key=value fields, e.g.
+ * 12:30:01.052 INFO message received type=STORED version=1.0 sender=2 file=3fa0... chunk=4
+ * The level of every subsystem is set by sdis.log.level.<subsystem>, of the others by sdis.log.level;
+ * the headers of the messages sent once per chunk (PUTCHUNK, STORED, GETCHUNK, CHUNK) are logged one time in
+ * sdis.log.sample, picked at random
+ */
+final class PeerLog {
+
+    enum Level {
+        OFF, ERROR, WARN, INFO, DEBUG
+    }
+
+    /**
+     * Subsystems of the peer
+     */
+    static final String PEER = "peer";
+    static final String MESSAGE = "message";
+    static final String BACKUP = "backup";
+    static final String RESTORE = "restore";
+    static final String DELETE = "delete";
+    static final String RECLAIM = "reclaim";
+    static final String REPAIR = "repair";
+    static final String STORE = "store";
+    static final String MEMBERSHIP = "membership";
+    static final String CLIENT = "client";
+
+    private static final Level DEFAULT_LEVEL = parseLevel(System.getProperty("sdis.log.level", "info"));
+    /**
+     * One in how many headers of the high volume messages is logged
+     */
+    private static final int SAMPLE = Math.max(1, Integer.getInteger("sdis.log.sample", 1));
+    private static final List<String> HIGH_VOLUME = Arrays.asList("PUTCHUNK", "STORED", "GETCHUNK", "CHUNK");
+    /**
+     * Number of events the ring holds, rounded up to a power of two
+     */
+    private static final int CAPACITY = powerOfTwo(Integer.getInteger("sdis.log.buffer", 65536));
+    /**
+     * Bytes of formatted events written to the output at once, at most
+     */
+    private static final int BATCH_SIZE = 64 * 1024;
+    /**
+     * Time the writer sleeps when the ring is empty, in nanoseconds
+     */
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * Fields after the sender of the headers of the protocol messages
+     */
+    private static final String[] CHUNK_FIELDS = {"file", "chunk"};
+    private static final String[] PUTCHUNK_FIELDS = {"file", "chunk", "degree"};
+    private static final String[] DELETE_FIELDS = {"file"};
+    private static final String[] HOLDINGS_FIELDS = {"file", "from", "to"};
+
+    private static final class Event {
+        final long time;
+        final Level level;
+        final String subsystem;
+        final String message;
+        /**
+         * alternating names and values
+         */
+        final Object[] fields;
+        /**
+         * header of a message sent or received, null for other events
+         */
+        final String header;
+
+        Event(Level level, String subsystem, String message, Object[] fields, String header) {
+            time = System.currentTimeMillis();
+            this.level = level;
+            this.subsystem = subsystem;
+            this.message = message;
+            this.fields = fields;
+            this.header = header;
+        }
+    }
+
+    /**
+     * Formats the times of the events, only formatting the hours, minutes and seconds again when they change
+     */
+    private static final class TimeFormat {
+        private final SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss.", Locale.ROOT);
+        private long second = -1;
+        private String prefix;
+
+        void append(long time, StringBuilder line) {
+            if (time / 1000 != second) {
+                second = time / 1000;
+                prefix = format.format(new Date(time));
+            }
+            int millis = (int) (time % 1000);
+            line.append(prefix).append((char) ('0' + millis / 100)).append((char) ('0' + millis / 10 % 10))
+                    .append((char) ('0' + millis % 10));
+        }
+    }
+
+    private static final ConcurrentHashMap<String, Level> levels = new ConcurrentHashMap<>();
+    private static final AtomicReferenceArray<Event> ring = new AtomicReferenceArray<>(CAPACITY);
+    /**
+     * sequence number of the next event put on the ring
+     */
+    private static final AtomicLong head = new AtomicLong();
+    /**
+     * sequence number of the next event taken by the writer, and of the first event not yet written to the output
+     */
+    private static volatile long tail;
+    private static volatile long written;
+    private static final LongAdder logged = new LongAdder();
+    private static final LongAdder dropped = new LongAdder();
+
+    static {
+        Thread writer = new Thread(PeerLog::writeLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> flush(1000)));
+    }
+
+    private PeerLog() {
+    }
+
+    /**
+     * @param subsystem subsystem of the event
+     * @param level     level of the event
+     * @return true if events of that level are logged for the subsystem
+     */
+    static boolean isEnabled(String subsystem, Level level) {
+        Level enabled = levels.get(subsystem);
+        if (enabled == null) {
+            enabled = levels.computeIfAbsent(subsystem, s -> {
+                String property = System.getProperty("sdis.log.level." + s);
+                return property == null ? DEFAULT_LEVEL : parseLevel(property);
+            });
+        }
+        return level != Level.OFF && level.compareTo(enabled) <= 0;
+    }
+
+    /**
+     * Logs the header of a message, the old "Message sent/received" output
+     *
+     * @param header header of the message, without the trailing CRLF CRLF
+     * @param sent   true if the message is being sent
+     */
+    static void message(String header, boolean sent) {
+        if (!isEnabled(MESSAGE, Level.INFO))
+            return;
+        if (SAMPLE > 1 && HIGH_VOLUME.contains(messageType(header)) && ThreadLocalRandom.current().nextInt(SAMPLE) != 0)
+            return;
+
+        publish(new Event(Level.INFO, MESSAGE, sent ? "sent" : "received", null, header));
+    }
+
+    /**
+     * Logs an event
+     *
+     * @param level     level of the event
+     * @param subsystem subsystem of the event
+     * @param message   what happened, fixed for every event of its kind
+     * @param fields    names and values of the details of the event, alternating; the values must not change afterwards
+     */
+    static void log(Level level, String subsystem, String message, Object... fields) {
+        if (isEnabled(subsystem, level))
+            publish(new Event(level, subsystem, message, fields, null));
+    }
+
+    /**
+     * Logs an event of level INFO, see log
+     */
+    static void info(String subsystem, String message, Object... fields) {
+        log(Level.INFO, subsystem, message, fields);
+    }
+
+    /**
+     * Logs an event of level DEBUG, see log
+     */
+    static void debug(String subsystem, String message, Object... fields) {
+        log(Level.DEBUG, subsystem, message, fields);
+    }
+
+    /**
+     * Logs an event of level WARN, see log
+     */
+    static void warn(String subsystem, String message, Object... fields) {
+        log(Level.WARN, subsystem, message, fields);
+    }
+
+    /**
+     * @return number of events put on the ring
+     */
+    static long getLogged() {
+        return logged.sum();
+    }
+
+    /**
+     * @return number of events dropped because the ring was full
+     */
+    static long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Waits for the events logged so far to be written to the output
+     *
+     * @param timeout maximum time to wait, in milliseconds
+     */
+    static void flush(long timeout) {
+        long target = head.get();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        while (written < target && System.nanoTime() < deadline)
+            LockSupport.parkNanos(IDLE_NANOS / 10);
+    }
+
+    private static void publish(Event event) {
+        long sequence;
+        do {
+            sequence = head.get();
+            if (sequence - tail >= CAPACITY) {
+                dropped.increment();
+                return;
+            }
+        } while (!head.compareAndSet(sequence, sequence + 1));
+
+        ring.lazySet(index(sequence), event);
+        logged.increment();
+    }
+
+    /**
+     * Takes the events off the ring in order, and writes them whenever the ring is empty or the batch is full
+     */
+    private static void writeLoop() {
+        TimeFormat time = new TimeFormat();
+        StringBuilder batch = new StringBuilder(BATCH_SIZE);
+        while (true) {
+            long next = tail;
+            Event event = ring.get(index(next));
+            if (event == null) {
+                if (batch.length() > 0) {
+                    write(batch);
+                    written = next;
+                } else if (head.get() == next)
+                    LockSupport.parkNanos(IDLE_NANOS);
+                else    /* claimed by a thread that did not put it yet */
+                    Thread.yield();
+                continue;
+            }
+
+            ring.set(index(next), null);
+            tail = next + 1;
+            try {
+                format(event, time, batch);
+            } catch (RuntimeException e) {
+                batch.append("Unable to format a log event: ").append(e).append('\n');
+            }
+            if (batch.length() >= BATCH_SIZE) {
+                write(batch);
+                written = next + 1;
+            }
+        }
+    }
+
+    private static void write(StringBuilder batch) {
+        PrintStream out = System.out;
+        out.print(batch);
+        out.flush();
+        batch.setLength(0);
+    }
+
+    private static void format(Event event, TimeFormat time, StringBuilder line) {
+        time.append(event.time, line);
+        line.append(' ').append(event.level).append(' ')
+                .append(event.subsystem).append(' ').append(event.message);
+
+        if (event.header != null)
+            formatHeader(event.header, line);
+        if (event.fields != null) {
+            for (int i = 0; i + 1 < event.fields.length; i += 2)
+                appendField(line, String.valueOf(event.fields[i]), event.fields[i + 1]);
+        }
+        line.append('\n');
+    }
+
+    /**
+     * Writes the fields of a header, named after their place on the header of the protocol message
+     */
+    private static void formatHeader(String header, StringBuilder line) {
+        String[] fields = header.split(" ");
+        String[] names;
+        switch (fields[0]) {
+            case "PUTCHUNK":
+                names = PUTCHUNK_FIELDS;
+                break;
+            case "STORED":
+            case "GETCHUNK":
+            case "CHUNK":
+            case "REMOVED":
+            case "DELETED":
+            case "CLAIM":
+                names = CHUNK_FIELDS;
+                break;
+            case "DELETE":
+                names = DELETE_FIELDS;
+                break;
+            case "HOLDINGS":
+                names = HOLDINGS_FIELDS;
+                break;
+            default:
+                names = new String[0];
+        }
+
+        appendField(line, "type", fields[0]);
+        if (fields.length > 1)
+            appendField(line, "version", fields[1]);
+        if (fields.length > 2)
+            appendField(line, "sender", fields[2]);
+        for (int i = 3; i < fields.length; i++)
+            appendField(line, i - 3 < names.length ? names[i - 3] : "arg" + (i - 3), fields[i]);
+        if (SAMPLE > 1 && HIGH_VOLUME.contains(fields[0]))
+            appendField(line, "sample", "1/" + SAMPLE);
+    }
+
+    private static void appendField(StringBuilder line, String name, Object value) {
+        String text = String.valueOf(value);
+        line.append(' ').append(name).append('=');
+        if (text.isEmpty() || text.indexOf(' ') >= 0)
+            line.append('"').append(text.replace("\"", "\\\"")).append('"');
+        else
+            line.append(text);
+    }
+
+    private static String messageType(String header) {
+        int end = header.indexOf(' ');
+        return end < 0 ? header : header.substring(0, end);
+    }
+
+    private static int index(long sequence) {
+        return (int) sequence & (CAPACITY - 1);
+    }
+
+    private static Level parseLevel(String level) {
+        try {
+            return Level.valueOf(level.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown log level " + level + ", using INFO");
+            return Level.INFO;
+        }
+    }
+
+    private static int powerOfTwo(int size) {
+        int capacity = Integer.highestOneBit(Math.max(2, size));
+        return capacity < size ? capacity << 1 : capacity;
+    }
+}
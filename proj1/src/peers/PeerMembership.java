@@ -0,0 +1,367 @@
+package peers;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+class PeerMembership {
+
+    /**
+     * Interval between two AHOY heartbeats, in milliseconds
+     */
+    static final long HEARTBEAT_INTERVAL = Long.getLong("sdis.heartbeat.interval", 5000);
+    /**
+     * Time without hearing from a peer after which it is considered failed, in milliseconds
+     */
+    static final long FAILURE_TIMEOUT = Long.getLong("sdis.heartbeat.timeout", 3 * HEARTBEAT_INTERVAL);
+    /**
+     * Weight given to a new response time sample
+     */
+    private static final double RTT_WEIGHT = 0.2;
+
+    private final int serverId;
+    private final long startTime;
+    private final Random random;
+    /**
+     * registers the peers this peer has heard from
+     * key = peer id
+     * value = last known information about the peer
+     */
+    private final ConcurrentHashMap<Integer, PeerInfo> members;
+    /**
+     * registers the time a request was sent, used to measure response times
+     * key = <MessageType>_<fileID>_<chunkNo>
+     * value = time the request was sent, in nanoseconds
+     */
+    private final ConcurrentHashMap<String, Long> pendingRequests;
+
+    /**
+     * Peer Membership - keeps track of the peers that are alive, how full they are
+     * and how fast they respond
+     *
+     * @param serverId id of the peer this membership table belongs to
+     */
+    PeerMembership(String serverId) {
+        this.serverId = Integer.parseInt(serverId);
+        startTime = System.currentTimeMillis();
+        random = new Random();
+        members = new ConcurrentHashMap<>();
+        pendingRequests = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Called when any message is received from a peer, refreshes its liveness
+     *
+     * @param senderID        id of the sender
+     * @param protocolVersion protocol version used by the sender
+     * @return true if the peer was unknown or considered failed until now
+     */
+    boolean touch(String senderID, String protocolVersion) {
+        int sender = Integer.parseInt(senderID);
+        long now = System.currentTimeMillis();
+        boolean[] joined = {false};
+
+        members.compute(sender, (id, info) -> {
+            if (info == null || !info.isAlive(now)) {
+                joined[0] = true;
+                return info == null ? new PeerInfo(id, protocolVersion, -1, -1, 0, -1, now)
+                        : info.seen(protocolVersion, now);
+            }
+            return info.seen(protocolVersion, now);
+        });
+
+        return joined[0];
+    }
+
+    /**
+     * Called when an AHOY heartbeat is received
+     *
+     * @param senderID        id of the sender
+     * @param protocolVersion protocol version used by the sender
+     * @param capacity        maximum space the sender has to store chunks, in bytes
+     * @param used            space the sender is using to store chunks, in bytes
+     * @param load            number of messages the sender is handling
+     * @return true if the peer was unknown or considered failed until now
+     */
+    boolean heartbeat(String senderID, String protocolVersion, long capacity, long used, int load) {
+        boolean joined = touch(senderID, protocolVersion);
+        members.computeIfPresent(Integer.parseInt(senderID), (id, info) -> info.withLoad(capacity, used, load));
+        return joined;
+    }
+
+    /**
+     * Checks if a peer has been heard from within the failure timeout
+     * This peer is always considered alive
+     *
+     * @param peerID id of the peer
+     * @return true if the peer is alive
+     */
+    boolean isAlive(String peerID) {
+        int peer = Integer.parseInt(peerID);
+        if (peer == serverId)
+            return true;
+
+        PeerInfo info = members.get(peer);
+        return info != null && info.isAlive(System.currentTimeMillis());
+    }
+
+    /**
+     * Checks if this peer has been running long enough to have received
+     * a heartbeat from every peer that is alive
+     *
+     * @return true if the membership table can be trusted
+     */
+    boolean isWarm() {
+        return System.currentTimeMillis() - startTime > FAILURE_TIMEOUT;
+    }
+
+    /**
+     * @return information about the peers that are currently alive
+     */
+    List<PeerInfo> getSnapshot() {
+        long now = System.currentTimeMillis();
+        List<PeerInfo> snapshot = new ArrayList<>();
+
+        for (PeerInfo info : members.values()) {
+            if (info.isAlive(now))
+                snapshot.add(info);
+        }
+
+        return Collections.unmodifiableList(snapshot);
+    }
+
+    /**
+     * Returns the ids of the peers that stopped answering since the last call
+     *
+     * @return ids of the failed peers
+     */
+    List<Integer> detectFailures() {
+        long now = System.currentTimeMillis();
+        List<Integer> failed = new ArrayList<>();
+
+        for (PeerInfo info : members.values()) {
+            if (!info.isAlive(now) && !info.reportedFailed) {
+                members.computeIfPresent(info.peerId, (id, current) -> current.failed());
+                failed.add(info.peerId);
+            }
+        }
+
+        return failed;
+    }
+
+    /**
+     * Counts the peers that do not hold a chunk yet and may still store it
+     * Peers whose capacity is unknown are assumed to have space, and peers that do not send heartbeats,
+     * like the peers on the version 1.0, are counted even if they have not been heard from lately
+     *
+     * @param chunkSize size of the chunk
+     * @param holders   ids of the peers that hold the chunk, null if none is known
+     * @return number of peers that may still store the chunk
+     */
+    int countEligible(int chunkSize, List<Integer> holders) {
+        long now = System.currentTimeMillis();
+        int eligible = 0;
+
+        for (PeerInfo info : members.values()) {
+            if (info.peerId == serverId || (holders != null && holders.contains(info.peerId)))
+                continue;
+            if (!info.sendsHeartbeats())
+                eligible++;
+            else if (info.isAlive(now) && (info.capacity < 0 || info.capacity - info.used >= chunkSize))
+                eligible++;
+        }
+
+        return eligible;
+    }
+
+    /**
+     * Computes how long this peer should wait before storing a chunk,
+     * so that the peers with more free space answer first
+     *
+     * @param freeSpace free space this peer has, in bytes
+     * @param maxDelay  maximum delay, in milliseconds
+     * @return time to wait, in milliseconds
+     */
+    long placementDelay(long freeSpace, int maxDelay) {
+        List<PeerInfo> snapshot = getSnapshot();
+        int rank = 0;
+
+        for (PeerInfo info : snapshot) {
+            if (info.capacity >= 0 && info.capacity - info.used > freeSpace)
+                rank++;
+        }
+
+        return rankedDelay(rank, snapshot.size() + 1, maxDelay);
+    }
+
+    /**
+     * Computes how long this peer should wait before sending a chunk it holds,
+     * so that the least loaded and fastest holder answers first
+     *
+     * @param holders ids of the peers that hold the chunk
+     * @param load    number of messages this peer is handling
+     * @param maxDelay maximum delay, in milliseconds
+     * @return time to wait, in milliseconds
+     */
+    long sourceDelay(List<Integer> holders, int load, int maxDelay) {
+        if (holders == null)
+            return random.nextInt(maxDelay);
+
+        long now = System.currentTimeMillis();
+        int rank = 0, alive = 1;
+
+        for (Integer holder : holders) {
+            PeerInfo info = members.get(holder);
+            if (holder == serverId || info == null || !info.isAlive(now))
+                continue;
+
+            alive++;
+            if (info.load < load || (info.load == load && holder < serverId))
+                rank++;
+        }
+
+        return rankedDelay(rank, alive, maxDelay);
+    }
+
+    /**
+     * Checks if every one of the given peers is known to have failed
+     * Only the peers that send heartbeats can be known to have failed: the others,
+     * like the peers on the version 1.0, may be alive even if they have not been heard from lately
+     *
+     * @param holders ids of the peers
+     * @return true if none of them can be alive
+     */
+    boolean allFailed(List<Integer> holders) {
+        if (holders == null || holders.isEmpty())
+            return false;
+
+        long now = System.currentTimeMillis();
+        for (Integer holder : holders) {
+            PeerInfo info = members.get(holder);
+            if (holder == serverId || info == null || !info.sendsHeartbeats() || info.isAlive(now))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Registers the time a request was sent
+     *
+     * @param key request identifier
+     */
+    void requestSent(String key) {
+        pendingRequests.putIfAbsent(key, System.nanoTime());
+    }
+
+    /**
+     * Registers a response to a request, updating the sender's response time
+     *
+     * @param key      request identifier
+     * @param senderID id of the peer that responded
+     */
+    void responseReceived(String key, String senderID) {
+        Long sentTime = pendingRequests.get(key);
+        if (sentTime == null)
+            return;
+
+        long elapsed = (System.nanoTime() - sentTime) / 1000;
+        members.computeIfPresent(Integer.parseInt(senderID), (id, info) -> info.withResponseTime(elapsed));
+    }
+
+    /**
+     * Stops waiting for responses to a request
+     *
+     * @param key request identifier
+     */
+    void requestCompleted(String key) {
+        pendingRequests.remove(key);
+    }
+
+    /**
+     * Spreads the delays in slots, the peer with rank 0 answers first
+     *
+     * @param rank     position of this peer
+     * @param slots    number of peers competing
+     * @param maxDelay maximum delay, in milliseconds
+     * @return time to wait, in milliseconds
+     */
+    private long rankedDelay(int rank, int slots, int maxDelay) {
+        int slot = Math.max(1, maxDelay / slots);
+        return Math.min(maxDelay - 1, (long) rank * slot + random.nextInt(slot));
+    }
+
+    /**
+     * Information known about another peer, updates create a new instance
+     */
+    static final class PeerInfo {
+        final int peerId;
+        final String protocolVersion;
+        /**
+         * maximum space to store chunks, in bytes, -1 if unknown
+         */
+        final long capacity;
+        /**
+         * space used to store chunks, in bytes, -1 if unknown
+         */
+        final long used;
+        final int load;
+        /**
+         * smoothed response time, in microseconds, -1 if unknown
+         */
+        final long responseTime;
+        final long lastSeen;
+        private final boolean reportedFailed;
+
+        private PeerInfo(int peerId, String protocolVersion, long capacity, long used, int load, long responseTime, long lastSeen) {
+            this(peerId, protocolVersion, capacity, used, load, responseTime, lastSeen, false);
+        }
+
+        private PeerInfo(int peerId, String protocolVersion, long capacity, long used, int load, long responseTime,
+                         long lastSeen, boolean reportedFailed) {
+            this.peerId = peerId;
+            this.protocolVersion = protocolVersion;
+            this.capacity = capacity;
+            this.used = used;
+            this.load = load;
+            this.responseTime = responseTime;
+            this.lastSeen = lastSeen;
+            this.reportedFailed = reportedFailed;
+        }
+
+        boolean isAlive(long now) {
+            return now - lastSeen <= FAILURE_TIMEOUT;
+        }
+
+        /**
+         * @return true if an AHOY heartbeat was received from the peer
+         */
+        boolean sendsHeartbeats() {
+            return used >= 0;
+        }
+
+        private PeerInfo seen(String protocolVersion, long now) {
+            return new PeerInfo(peerId, protocolVersion, capacity, used, load, responseTime, now);
+        }
+
+        private PeerInfo withLoad(long capacity, long used, int load) {
+            return new PeerInfo(peerId, protocolVersion, capacity, used, load, responseTime, lastSeen);
+        }
+
+        private PeerInfo withResponseTime(long sample) {
+            long smoothed = responseTime < 0 ? sample : (long) (RTT_WEIGHT * sample + (1 - RTT_WEIGHT) * responseTime);
+            return new PeerInfo(peerId, protocolVersion, capacity, used, load, smoothed, lastSeen, reportedFailed);
+        }
+
+        private PeerInfo failed() {
+            return new PeerInfo(peerId, protocolVersion, capacity, used, load, responseTime, lastSeen, true);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Peer %d (v%s): capacity = %d Kb; used = %d Kb; load = %d; response time = %d ms",
+                    peerId, protocolVersion, capacity / 1000, used / 1000, load, responseTime / 1000);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package peers;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of a peer
+ * Recording is lock-free: counters are striped (LongAdder) and only created
+ * the first time a name is used
+ */
+class PeerMetrics implements PeerMetricsMXBean {
+
+    static final String MESSAGES_RECEIVED = "messages.received.";
+    static final String MESSAGES_SENT = "messages.sent.";
+    static final String HANDLER_LATENCY = "handler.";
+    static final String DISK_READ = "disk.read";
+    static final String DISK_WRITE = "disk.write";
+    static final String DISK_SYNC = "disk.sync";
+    static final String DISK_CHECKPOINT = "disk.checkpoint";
+    static final String TIME_TO_REPLICATION = "backup.time_to_replication";
+    static final String RESTORE_TIME = "restore.completion";
+    static final String PUTCHUNK_RETRANSMITS = "backup.retransmits";
+    static final String GETCHUNK_RETRANSMITS = "restore.retransmits";
+    static final String REPAIR_TIME = "repair.time";
+
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+    private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p999"};
+
+    private final ConcurrentHashMap<String, LongAdder> counters;
+    private final ConcurrentHashMap<String, LatencyHistogram> histograms;
+    private final LongAdder messagesReceived;
+    private final LongAdder messagesSent;
+
+    PeerMetrics() {
+        counters = new ConcurrentHashMap<>();
+        histograms = new ConcurrentHashMap<>();
+        messagesReceived = new LongAdder();
+        messagesSent = new LongAdder();
+    }
+
+    /**
+     * Adds to a counter
+     *
+     * @param name  name of the counter
+     * @param delta value to add
+     */
+    void increment(String name, long delta) {
+        LongAdder counter = counters.get(name);
+        if (counter == null)
+            counter = counters.computeIfAbsent(name, k -> new LongAdder());
+        counter.add(delta);
+    }
+
+    /**
+     * Adds one to a counter
+     *
+     * @param name name of the counter
+     */
+    void increment(String name) {
+        increment(name, 1);
+    }
+
+    /**
+     * Get a latency histogram, creating it if needed
+     *
+     * @param name name of the histogram
+     * @return the histogram
+     */
+    LatencyHistogram histogram(String name) {
+        LatencyHistogram histogram = histograms.get(name);
+        if (histogram == null)
+            histogram = histograms.computeIfAbsent(name, k -> new LatencyHistogram());
+        return histogram;
+    }
+
+    /**
+     * Registers a received message
+     *
+     * @param messageType type of the message
+     * @param startNanos  instant the handling started, as returned by System.nanoTime()
+     */
+    void messageHandled(String messageType, long startNanos) {
+        messagesReceived.increment();
+        increment(MESSAGES_RECEIVED + messageType);
+        histogram(HANDLER_LATENCY + messageType).recordSince(startNanos);
+    }
+
+    /**
+     * Registers a sent message
+     *
+     * @param message message, starting with its type
+     */
+    void messageSent(byte[] message) {
+        messagesSent.increment();
+        increment(MESSAGES_SENT + messageType(message));
+    }
+
+    /**
+     * Registers the bytes that went through a channel
+     *
+     * @param channel name of the channel
+     * @param bytes   number of bytes
+     * @param in      true if the bytes were received
+     */
+    void channelTraffic(String channel, int bytes, boolean in) {
+        String direction = in ? ".in" : ".out";
+        increment("channel." + channel + ".bytes" + direction, bytes);
+        increment("channel." + channel + ".packets" + direction);
+    }
+
+    @Override
+    public Map<String, Long> getSnapshot() {
+        Map<String, Long> snapshot = new TreeMap<>();
+
+        counters.forEach((name, counter) -> snapshot.put(name, counter.sum()));
+        histograms.forEach((name, histogram) -> {
+            snapshot.put(name + ".count", histogram.getCount());
+            snapshot.put(name + ".mean_us", histogram.getMean());
+            snapshot.put(name + ".max_us", histogram.getMax());
+            for (int i = 0; i < PERCENTILES.length; i++)
+                snapshot.put(name + '.' + PERCENTILE_NAMES[i] + "_us", histogram.getPercentile(PERCENTILES[i]));
+        });
+
+        return snapshot;
+    }
+
+    @Override
+    public long getMessagesReceived() {
+        return messagesReceived.sum();
+    }
+
+    @Override
+    public long getMessagesSent() {
+        return messagesSent.sum();
+    }
+
+    /**
+     * Reads the type of a message, i.e. its first header field, without decoding the whole header
+     *
+     * @param message message
+     * @return message type
+     */
+    static String messageType(byte[] message) {
+        int end = 0;
+        while (end < message.length && end < 16 && message[end] != ' ')
+            end++;
+        return new String(message, 0, end);
+    }
+}
@@ -0,0 +1,24 @@
+package peers;
+
+import java.util.Map;
+
+/**
+ * Management interface of the peer metrics, exposed through JMX
+ */
+public interface PeerMetricsMXBean {
+
+    /**
+     * @return every counter and latency percentile, by name
+     */
+    Map<String, Long> getSnapshot();
+
+    /**
+     * @return number of messages received by the peer
+     */
+    long getMessagesReceived();
+
+    /**
+     * @return number of messages sent by the peer
+     */
+    long getMessagesSent();
+}
@@ -1,17 +1,30 @@
 package peers;
 
 
+import common.PeerState;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 class PeerService {
 
@@ -21,7 +34,47 @@ class PeerService {
     private static final byte CR = 0xD;
     private static final byte LF = 0xA;
     private static final String CRLF = "\r\n";
+    /**
+     * Legacy list of the files backed up, imported into the file catalog
+     */
     private static final String MYFILES_FILENAME = "my_files_names";
+    private static final String CATALOG_FILENAME = "file_catalog";
+    /**
+     * Maximum time a peer waits for the initiator of a backup to finish it, in milliseconds
+     */
+    private static final long BACKUP_TRACKING_TIME = 35000;
+    /**
+     * Interval between two digests of the chunks this peer holds, in milliseconds
+     */
+    private static final long ANTI_ENTROPY_INTERVAL = Long.getLong("sdis.antientropy.interval", 60000);
+    /**
+     * Maximum number of chunks being backed up or restored at once by this peer, shared by every file
+     */
+    private static final int MAX_INFLIGHT_CHUNKS = Integer.getInteger("sdis.inflight.chunks", 64);
+    /**
+     * Maximum rate of the PUTCHUNK messages sent by this peer, in bytes per second, 0 for no limit
+     */
+    private static final long BACKUP_BANDWIDTH = Long.getLong("sdis.backup.bandwidth", 0);
+    /**
+     * Minimum interval between two HOLDINGS messages for the same file, in milliseconds
+     */
+    private static final long HOLDINGS_INTERVAL = 1000;
+    /**
+     * Minimum interval between two resends of the pending deletions to the same peer, in milliseconds
+     */
+    private static final long DELETE_RESEND_INTERVAL = Long.getLong("sdis.delete.resend", 30000);
+    /**
+     * Chunks covered by each HOLDINGS message, so its body fits in a datagram
+     */
+    static final int HOLDINGS_RANGE = CHUNK_SIZE * 8;
+    /**
+     * Maximum number of under replicated chunks backed up again at once
+     */
+    private static final int REPAIR_CONCURRENCY = Integer.getInteger("sdis.repair.concurrency", 4);
+    /**
+     * Maximum bytes per second sent to repair under replicated chunks, 0 for no limit
+     */
+    private static final long REPAIR_BANDWIDTH = Long.getLong("sdis.repair.bandwidth", 0);
     private final String serverId;
     /**
      * Port used on restore enhancement
@@ -63,78 +116,209 @@ class PeerService {
      */
     private ConcurrentHashMap<String, Integer> markedForBackup;
 
-    private ArrayList<String> myFileIDs;
+    /**
+     * Files backed up by this peer
+     */
+    private FileCatalog catalog;
 
-    private ArrayList<String> myFileNames;
+    /**
+     * Keeps track of the peers that are alive, used on the enhanced protocols
+     */
+    private final PeerMembership membership;
 
-    public PeerService(String serverId, String protocolVersion, String serviceAccessPoint, InetAddress mcAddr, int mcPort, InetAddress mdbAddr, int mdbPort,
-                       InetAddress mdrAddr, int mdrPort) throws IOException {
+    /**
+     * Counters and latency histograms of every subprotocol
+     */
+    private final PeerMetrics metrics;
 
-        this.serverId = serverId;
-        this.protocolVersion = protocolVersion;
+    /**
+     * Time the backup of a chunk started, removed when the desired replication degree is reached
+     * key = <fileID>_<chunkNo>
+     * value = time the first PUTCHUNK message was sent, in nanoseconds
+     */
+    private final ConcurrentHashMap<String, Long> backupStartTimes;
 
-        controlChannel = new PeerChannel(mcAddr, mcPort, this);
-        System.out.println("Control Channel ready! Listening...");
-        dataBackupChannel = new PeerChannel(mdbAddr, mdbPort, this);
-        System.out.println("Data Backup Channel ready! Listening...");
-        dataRestoreChannel = new PeerChannel(mdrAddr, mdrPort, this);
-        System.out.println("Restore Channel ready! Listening...");
+    /**
+     * Backups of chunks waiting for STORED messages, woken on every one received
+     * key = <fileID>_<chunkNo>
+     */
+    private final ConcurrentHashMap<String, Object> backupWaits;
 
-        System.out.println("Multicast channel addr: " + mcAddr + " port: " + mcPort);
-        System.out.println("Multicast data backup addr: " + mdbAddr + " port: " + mdbPort);
-        System.out.println("Multicast data restore addr: " + mdrAddr + " port: " + mdrPort);
+    /**
+     * Sends the periodic heartbeats
+     */
+    private final ScheduledExecutorService scheduler;
 
-        System.out.println("Server ID: " + serverId);
+    /**
+     * Number of messages being handled, announced on the heartbeats
+     */
+    private final AtomicInteger activeHandlers;
 
-        PeerClientLink initiatorPeer = new PeerClientLink(this);
+    /**
+     * Number of the last digest sent by this peer
+     */
+    private final AtomicInteger digestRound;
+
+    /**
+     * Digests being received from other peers
+     * key = id of the sender
+     * value = files received on the parts of the digest so far
+     */
+    private final ConcurrentHashMap<String, HoldingsDigest.Round> digestRounds;
+
+    /**
+     * Time the chunks held of a file were last sent
+     * key = <fileID>
+     * value = time the HOLDINGS message was sent, in milliseconds
+     */
+    private final ConcurrentHashMap<String, Long> holdingsSent;
+    /**
+     * Time the pending deletions were last sent again for a peer
+     * key = id of the peer
+     * value = time the DELETE messages were sent, in milliseconds
+     */
+    private final ConcurrentHashMap<String, Long> deletionsResent;
+
+    /**
+     * Handles the received messages
+     */
+    private final ExecutorService handlers;
+
+    /**
+     * Backups and restores started by the clients of this peer
+     */
+    private final JobTracker jobs;
+
+    /**
+     * Runs the chunk backups and restores, while they hold a permit of the transfer budget
+     */
+    private final ExecutorService transfers;
+    private final Semaphore transferBudget;
+    private final TokenBucket backupBandwidth;
+
+    /**
+     * Drops the copies of the idempotent messages received lately
+     */
+    private final DuplicateFilter duplicates;
+
+    /**
+     * Backs up again the chunks of this peer that fell under their desired replication degree
+     */
+    private RepairScheduler repairs;
+
+    /**
+     * Peer Service, implements the subprotocols on top of the three channels
+     *
+     * @param serverId           id of the peer
+     * @param protocolVersion    version of the protocols
+     * @param serviceAccessPoint name the peer is bound to on the RMI registry, null to not bind it
+     * @param mcTransport        transport of the control channel
+     * @param mdbTransport       transport of the data backup channel
+     * @param mdrTransport       transport of the data restore channel
+     * @param dataRestorePort    port used by the restore enhancement
+     * @throws IOException if the channels cannot be listened to
+     */
+    public PeerService(String serverId, String protocolVersion, String serviceAccessPoint, Transport mcTransport,
+                       Transport mdbTransport, Transport mdrTransport, int dataRestorePort) throws IOException {
+
+        this.serverId = serverId;
+        this.protocolVersion = protocolVersion;
+
+        membership = new PeerMembership(serverId);
+        metrics = new PeerMetrics();
+        backupStartTimes = new ConcurrentHashMap<>();
+        backupWaits = new ConcurrentHashMap<>();
+        activeHandlers = new AtomicInteger();
+        digestRound = new AtomicInteger();
+        digestRounds = new ConcurrentHashMap<>();
+        holdingsSent = new ConcurrentHashMap<>();
+        deletionsResent = new ConcurrentHashMap<>();
+        jobs = new JobTracker(serverId);
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable);
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        handlers = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable);
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        transfers = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable);
+            thread.setDaemon(true);
+            return thread;
+        });
+        transferBudget = new Semaphore(MAX_INFLIGHT_CHUNKS, true);
+        backupBandwidth = new TokenBucket(BACKUP_BANDWIDTH, Math.max(BACKUP_BANDWIDTH / 10, 2 * CHUNK_SIZE));
+        duplicates = new DuplicateFilter(DuplicateFilter.WINDOW);
+
+        controlChannel = new PeerChannel(mcTransport, this, "MC", handlers);
+        PeerLog.info(PeerLog.PEER, "channel ready", "channel", "MC");
+        dataBackupChannel = new PeerChannel(mdbTransport, this, "MDB", handlers);
+        PeerLog.info(PeerLog.PEER, "channel ready", "channel", "MDB");
+        dataRestoreChannel = new PeerChannel(mdrTransport, this, "MDR", handlers);
+        PeerLog.info(PeerLog.PEER, "channel ready", "channel", "MDR");
 
         try {
-            Registry registry = LocateRegistry.getRegistry();
-            registry.rebind(serviceAccessPoint, initiatorPeer);
-        } catch (Exception e) {
-            System.out.println("Peer error: " + e.getMessage());
-            e.printStackTrace();
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics,
+                    new ObjectName("peers:type=PeerMetrics,id=" + serverId));
+        } catch (JMException e) {
+            System.err.println("Unable to register the peer metrics: " + e.getMessage());
         }
 
-
         String chunksPath = PEER_DIRECTORY + serverId + "/chunks";
         myFilesPath = PEER_DIRECTORY + serverId + "/my_files";
         restoredFilesPath = PEER_DIRECTORY + serverId + "/restored_files";
 
-        myFileIDs = new ArrayList<>();
-        myFileNames = new ArrayList<>();
-
         createDir(PEER_DIRECTORY + serverId);
         createDir(myFilesPath);
         createDir(chunksPath);
         createDir(restoredFilesPath);
 
-        controlChannel.receiveMessage();
-        dataBackupChannel.receiveMessage();
-        dataRestoreChannel.receiveMessage();
+        catalog = new FileCatalog(new File(PEER_DIRECTORY + serverId + '/' + CATALOG_FILENAME));
 
         restoredChunksObjects = new ConcurrentHashMap<>();
 
-        chunkManager = new ChunkManager(serverId, chunksPath);
+        chunkManager = new ChunkManager(serverId, chunksPath, metrics);
+        repairs = new RepairScheduler(this, chunkManager, membership, metrics, serverId, protocolVersion.equals("2.0"),
+                REPAIR_CONCURRENCY, REPAIR_BANDWIDTH);
+        importMyFiles();
 
         //6 400 000 bytes (100 full chunks, ~6MB)
         availableSpace = 6400;
 
         // for restore enhancement
-        dataRestorePort = mdrPort;
+        this.dataRestorePort = dataRestorePort;
 
         markedForBackup = new ConcurrentHashMap<>();
 
-        if (protocolVersion.equals("2.0")) {
+        /* messages and client requests are only taken once everything they use is built */
+        controlChannel.receiveMessage();
+        dataBackupChannel.receiveMessage();
+        dataRestoreChannel.receiveMessage();
+
+        PeerLog.info(PeerLog.PEER, "peer started", "id", serverId, "version", protocolVersion);
+
+        PeerClientLink initiatorPeer = new PeerClientLink(this);
+
+        if (serviceAccessPoint != null) {
             try {
-                Thread.sleep(500);
-                sendGreeting();
-            } catch (InterruptedException e) {
+                Registry registry = LocateRegistry.getRegistry();
+                registry.rebind(serviceAccessPoint, initiatorPeer);
+            } catch (Exception e) {
+                System.err.println("Peer error: " + e.getMessage());
                 e.printStackTrace();
             }
         }
 
-        loadMyFiles();
+        if (protocolVersion.equals("2.0")) {
+            scheduler.scheduleAtFixedRate(this::sendHeartbeat, 500, PeerMembership.HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+            scheduler.schedule(this::requestSync, 1000, TimeUnit.MILLISECONDS);
+            scheduler.scheduleAtFixedRate(this::sendDigest, ANTI_ENTROPY_INTERVAL, ANTI_ENTROPY_INTERVAL, TimeUnit.MILLISECONDS);
+        }
     }
 
     /**
@@ -145,12 +329,139 @@ class PeerService {
     }
 
     /**
-     * Sends the AHOY message, called when the peer goes online
+     * Sends the AHOY message, called when the peer goes online and then periodically
+     * Besides announcing the peer, it carries its capacity, used space and load
+     */
+    private void sendHeartbeat() {
+        long capacity = availableSpace * 1000;
+        long used = chunkManager.getOccupiedSpace();
+
+        String header = makeHeader("AHOY", protocolVersion, serverId, Long.toString(capacity),
+                Long.toString(used), Integer.toString(activeHandlers.get()));
+        controlChannel.sendMessage(header.getBytes());
+
+        for (Integer failedPeer : membership.detectFailures())
+            PeerLog.info(PeerLog.MEMBERSHIP, "peer stopped responding", "peer", failedPeer);
+    }
+
+    /**
+     * Anti-entropy protocol
+     * Sends the SYNC message, asking the other peers to send their digests,
+     * together with the digest of this peer, called when the peer goes online
      */
-    private void sendGreeting() {
-        String header = makeHeader("AHOY", protocolVersion, serverId);
+    private void requestSync() {
+        String header = makeHeader("SYNC", protocolVersion, serverId);
         controlChannel.sendMessage(header.getBytes());
-        printHeader(header, true);
+        PeerLog.message(header, true);
+
+        sendDigest();
+    }
+
+    /**
+     * Anti-entropy protocol
+     * Sends the digest of the chunks this peer holds, split in as many DIGEST messages as needed
+     */
+    private void sendDigest() {
+        List<byte[]> parts = HoldingsDigest.encode(chunkManager.getHoldingsDigest(), CHUNK_SIZE);
+        String round = Integer.toString(digestRound.incrementAndGet());
+
+        for (byte[] part : parts) {
+            String header = makeHeader("DIGEST", protocolVersion, serverId, round, Integer.toString(parts.size()));
+            controlChannel.sendMessage(makeMessage(header, part));
+            PeerLog.message(header, true);
+        }
+    }
+
+    /**
+     * Anti-entropy protocol
+     * Compares a part of the digest of another peer with the chunks this peer believes it holds
+     * and requests the chunks held of the files that differ
+     * When the whole digest is received, the files the peer no longer holds are cleared
+     *
+     * @param senderID id of the peer that sent the digest
+     * @param roundNo  number of the digest
+     * @param parts    number of DIGEST messages the digest was split in
+     * @param body     body of the DIGEST message
+     */
+    private void reconcileDigest(String senderID, int roundNo, int parts, byte[] body) {
+        List<HoldingsDigest.Entry> entries;
+        try {
+            entries = HoldingsDigest.decode(body);
+        } catch (IOException e) {
+            System.err.println("Malformed DIGEST message");
+            return;
+        }
+
+        HashMap<String, BitSet> registered = chunkManager.getPeerHoldings(senderID);
+        for (HoldingsDigest.Entry entry : entries) {
+            if (!chunkManager.knowsFile(entry.fileID))
+                continue;
+
+            /* desired replication degree of a file whose chunks were recovered from disk */
+            if (entry.desiredReplicationDegree > 0 && chunkManager.getDesiredReplicationDegree(entry.fileID) < 0)
+                chunkManager.registerFile(entry.fileID, entry.desiredReplicationDegree);
+
+            if (!entry.matches(registered.get(entry.fileID))) {
+                String header = makeHeader("GETHOLDINGS", protocolVersion, serverId, entry.fileID, senderID);
+                controlChannel.sendMessage(header.getBytes());
+                PeerLog.message(header, true);
+            }
+        }
+
+        HoldingsDigest.Round round = digestRounds.compute(senderID, (id, current) ->
+                current == null || current.roundNo != roundNo ? new HoldingsDigest.Round(roundNo, parts) : current);
+        if (!round.addPart(entries))
+            return;
+
+        digestRounds.remove(senderID, round);
+        for (String fileID : registered.keySet()) {
+            if (!round.files.contains(fileID) && chunkManager.reconcileHoldings(senderID, fileID, new BitSet()) > 0)
+                PeerLog.info(PeerLog.MEMBERSHIP, "peer no longer holds file", "peer", senderID, "file", fileID);
+        }
+    }
+
+    /**
+     * Anti-entropy protocol
+     * Sends the chunk numbers of the chunks this peer holds of a file,
+     * split in ranges of HOLDINGS_RANGE chunks, one HOLDINGS message each, so no message exceeds a datagram
+     * The message is multicast, so a single answer serves every peer that requested it
+     *
+     * @param fileID id of the file
+     */
+    private void sendHoldings(String fileID) {
+        long now = System.currentTimeMillis();
+        Long lastSent = holdingsSent.put(fileID, now);
+        if (lastSent != null && now - lastSent < HOLDINGS_INTERVAL)
+            return;
+
+        BitSet stored = chunkManager.getStoredChunks(fileID);
+        int from = 0;
+        do {
+            int to = (int) Math.min((long) from + HOLDINGS_RANGE, Integer.MAX_VALUE);
+            String header = makeHeader("HOLDINGS", protocolVersion, serverId, fileID, Integer.toString(from),
+                    Integer.toString(to));
+            controlChannel.sendMessage(makeMessage(header, stored.get(from, to).toByteArray()));
+            PeerLog.message(header, true);
+            from = to;
+        } while (from < stored.length());
+    }
+
+    /**
+     * @return counters and latency histograms of the peer
+     */
+    JobTracker getJobs() {
+        return jobs;
+    }
+
+    PeerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return information about the peers known to be alive
+     */
+    PeerMembership getMembership() {
+        return membership;
     }
 
     /**
@@ -163,7 +474,7 @@ class PeerService {
         File file = new File(path);
 
         if (file.mkdir()) {
-            System.out.println("Directory: " + path + " created");
+            PeerLog.info(PeerLog.PEER, "directory created", "path", path);
         }
     }
 
@@ -173,7 +484,7 @@ class PeerService {
      * @param fields header fields
      * @return message header
      */
-    private String makeHeader(String... fields) {
+    static String makeHeader(String... fields) {
 
         String header = "";
 
@@ -186,6 +497,23 @@ class PeerService {
         return header;
     }
 
+    /**
+     * Concatenates the header and body of a message
+     *
+     * @param header message header
+     * @param body   message body
+     * @return message
+     */
+    private byte[] makeMessage(String header, byte[] body) {
+        byte[] headerBytes = header.getBytes();
+        byte[] buf = new byte[headerBytes.length + body.length];
+
+        System.arraycopy(headerBytes, 0, buf, 0, headerBytes.length);
+        System.arraycopy(body, 0, buf, headerBytes.length, body.length);
+
+        return buf;
+    }
+
     /**
      * Verifies if restoredChunksObjects contains fileID
      *
@@ -214,57 +542,184 @@ class PeerService {
      * @param chunk             chunk data
      */
     public void requestChunkBackup(String fileId, int chunkNo, int replicationDegree, byte[] chunk) {
+        requestChunkBackup(fileId, chunkNo, replicationDegree, chunk, null);
+    }
 
-        Runnable task = () -> {
-            int counter = 1, multiplier = 1;
-            String version;
-            String header = makeHeader("PUTCHUNK", protocolVersion, serverId, fileId,
-                    Integer.toString(chunkNo), Integer.toString(replicationDegree));
+    /**
+     * Backs up a chunk, reporting its progress to a job
+     *
+     * @param fileId            file ID for the file that the chunk belongs to
+     * @param chunkNo           number of the chunk to be backed up
+     * @param replicationDegree desired replication degree of the chunk
+     * @param chunk             chunk data
+     * @param job               job the chunk belongs to, null if none
+     */
+    void requestChunkBackup(String fileId, int chunkNo, int replicationDegree, byte[] chunk, Job job) {
+        Runnable task = () -> backupChunk(fileId, chunkNo, replicationDegree, chunk, job, null);
 
-            byte[] headerBytes = header.getBytes();
-            byte[] buf = new byte[headerBytes.length + chunk.length];
+        if (!startTransfer(task)) {
+            System.err.format("Backup of chunk %d of file %s was not started\n", chunkNo, fileId);
+            if (job != null)
+                job.chunkFinished(chunkNo, chunkManager.getReplicationDegree(fileId, Integer.toString(chunkNo)));
+        }
+    }
 
-            //concatenate contents of header and body
-            System.arraycopy(headerBytes, 0, buf, 0, headerBytes.length);
-            System.arraycopy(chunk, 0, buf, headerBytes.length, chunk.length);
+    /**
+     * Sends the PUTCHUNK messages of a chunk, waiting for its desired replication degree to be reached
+     *
+     * @param fileId            file ID for the file that the chunk belongs to
+     * @param chunkNo           number of the chunk to be backed up
+     * @param replicationDegree desired replication degree of the chunk
+     * @param chunk             chunk data
+     * @param job               job the chunk belongs to, null if none
+     * @param limit             bandwidth limit besides the one of every backup, null if none
+     * @return bytes sent
+     */
+    private long backupChunk(String fileId, int chunkNo, int replicationDegree, byte[] chunk, Job job, TokenBucket limit) {
+        int counter = 1, multiplier = 1, attempts = 0;
+        long sent = 0;
+        String header = makeHeader("PUTCHUNK", protocolVersion, serverId, fileId,
+                Integer.toString(chunkNo), Integer.toString(replicationDegree));
 
-            do {
-                counter++;
-                if (dataBackupChannel.sendMessage(buf))
-                    printHeader(header, true);
+        byte[] headerBytes = header.getBytes();
+        byte[] buf = new byte[headerBytes.length + chunk.length];
+        String requestKey = "PUTCHUNK_" + fileId + '_' + chunkNo;
 
-                else {
-                    System.err.println("IOException :: PeerService :: Failed to send PUTCHUNK message");
+        //concatenate contents of header and body
+        System.arraycopy(headerBytes, 0, buf, 0, headerBytes.length);
+        System.arraycopy(chunk, 0, buf, headerBytes.length, chunk.length);
 
-                    counter++;
-                    multiplier *= 2;
+        backupStartTimes.putIfAbsent(fileId + '_' + chunkNo, System.nanoTime());
+        Object replicated = backupWaits.computeIfAbsent(fileId + '_' + chunkNo, k -> new Object());
+        do {
+            counter++;
+            if (attempts++ > 0)
+                metrics.increment(PeerMetrics.PUTCHUNK_RETRANSMITS);
+            try {
+                backupBandwidth.acquire(buf.length);
+                if (limit != null)
+                    limit.acquire(buf.length);
+            } catch (InterruptedException e) {
+                System.err.println("InterruptedException :: PeerService :: Backup of chunk interrupted");
+                break;
+            }
+            membership.requestSent(requestKey);
+            if (dataBackupChannel.sendMessage(buf)) {
+                PeerLog.message(header, true);
+                sent += buf.length;
+                if (job != null)
+                    job.transferred(buf.length);
+            }
 
-                    if (counter > 5)
-                        break;
-                    else continue;
-                }
+            else {
+                System.err.println("IOException :: PeerService :: Failed to send PUTCHUNK message");
 
-                // wait and process response
-                try {
-                    Thread.sleep(1000 * multiplier);
-                } catch (InterruptedException e) {
-                    System.err.println("InterruptedException :: PeerService :: Retrying");
-                    continue;
-                }
+                counter++;
                 multiplier *= 2;
+
+                if (counter > 5)
+                    break;
+                else continue;
             }
-            while (counter <= 5 && chunkManager.getReplicationDegree(fileId, Integer.toString(chunkNo)) < replicationDegree);
-
-            int achievedRepDeg = chunkManager.getReplicationDegree(fileId, Integer.toString(chunkNo));
-            if (counter > 5) {
-                System.out.println("Timed out!");
-                System.out.format("Achieved replication degree: %d\n", achievedRepDeg);
-            } else if (achievedRepDeg >= replicationDegree) {
-                System.out.format("Successfully backed up chunk %s of file %s\n", chunkNo, fileId);
+
+            // wait and process response
+            try {
+                awaitReplication(replicated, fileId, chunkNo, replicationDegree, 1000 * multiplier);
+            } catch (InterruptedException e) {
+                System.err.println("InterruptedException :: PeerService :: Retrying");
+                continue;
             }
-        };
+            multiplier *= 2;
+        }
+        while (counter <= 5 && chunkManager.getReplicationDegree(fileId, Integer.toString(chunkNo)) < replicationDegree
+                && !placementExhausted(fileId, chunkNo, chunk.length));
+
+        membership.requestCompleted(requestKey);
+        backupStartTimes.remove(fileId + '_' + chunkNo);
+        backupWaits.remove(fileId + '_' + chunkNo, replicated);
+        int achievedRepDeg = chunkManager.getReplicationDegree(fileId, Integer.toString(chunkNo));
+        metrics.increment(achievedRepDeg >= replicationDegree ? "backup.chunks.replicated" : "backup.chunks.under_replicated");
+        if (job != null)
+            job.chunkFinished(chunkNo, achievedRepDeg);
+        if (achievedRepDeg < replicationDegree && placementExhausted(fileId, chunkNo, chunk.length)) {
+            PeerLog.info(PeerLog.BACKUP, "no more peers available to store chunk", "file", fileId, "chunk", chunkNo,
+                    "degree", achievedRepDeg, "desired", replicationDegree);
+        } else if (counter > 5) {
+            PeerLog.info(PeerLog.BACKUP, "chunk backup timed out", "file", fileId, "chunk", chunkNo,
+                    "degree", achievedRepDeg, "desired", replicationDegree);
+        } else if (achievedRepDeg >= replicationDegree) {
+            PeerLog.info(PeerLog.BACKUP, "chunk backed up", "file", fileId, "chunk", chunkNo, "degree", achievedRepDeg,
+                    "attempts", attempts);
+        }
+        return sent;
+    }
 
-        new Thread(task).start();
+    /**
+     * Waits for the STORED messages of a chunk, until its replication degree is reached or the time runs out,
+     * so a chunk stored by enough peers is done in a round trip instead of a whole retransmission interval
+     *
+     * @param replicated        object notified on every STORED message of the chunk
+     * @param fileId            file ID for the file that the chunk belongs to
+     * @param chunkNo           number of the chunk
+     * @param replicationDegree desired replication degree of the chunk
+     * @param timeout           maximum time to wait, in milliseconds
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    private void awaitReplication(Object replicated, String fileId, int chunkNo, int replicationDegree, long timeout)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (replicated) {
+            long remaining;
+            while (chunkManager.getReplicationDegree(fileId, Integer.toString(chunkNo)) < replicationDegree
+                    && (remaining = deadline - System.currentTimeMillis()) > 0)
+                replicated.wait(remaining);
+        }
+    }
+
+    /**
+     * Runs the transfer of a chunk once there is room for it in the transfer budget,
+     * blocking the caller until then, so files are read only as fast as their chunks are sent
+     *
+     * @param task transfer of the chunk
+     * @return true if the transfer was started
+     */
+    private boolean startTransfer(Runnable task) {
+        try {
+            transferBudget.acquire();
+        } catch (InterruptedException e) {
+            return false;
+        }
+
+        try {
+            transfers.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    transferBudget.release();
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            transferBudget.release();
+            return false;
+        }
+    }
+
+    /**
+     * Checks, on the enhanced version, if no peer that does not hold a chunk may have room for it,
+     * so there is no point in waiting for the replication degree to be reached
+     *
+     * @param fileId    file ID for the file that the chunk belongs to
+     * @param chunkNo   number of the chunk
+     * @param chunkSize size of the chunk
+     * @return true if no other peer can store the chunk
+     */
+    private boolean placementExhausted(String fileId, int chunkNo, int chunkSize) {
+        if (!protocolVersion.equals("2.0") || !membership.isWarm())
+            return false;
+
+        ArrayList<Integer> holders = chunkManager.getChunkPeers(fileId, Integer.toString(chunkNo));
+        return membership.countEligible(chunkSize, holders) == 0;
     }
 
     /**
@@ -276,34 +731,49 @@ class PeerService {
         availableSpace = maxSpace;
         ArrayList<String> deletedChunks = chunkManager.reclaimSpace(availableSpace * 1000);
         if (deletedChunks.isEmpty()) { //no chunks were deleted
-            System.out.println("No chunks were deleted");
+            PeerLog.info(PeerLog.RECLAIM, "no chunks deleted", "space", maxSpace);
             return;
         }
 
-        System.out.format("%d chunks were deleted\n", deletedChunks.size());
+        PeerLog.info(PeerLog.RECLAIM, "chunks deleted", "space", maxSpace, "chunks", deletedChunks.size());
         for (String deletedChunk : deletedChunks) {
-            System.out.println(deletedChunk);
+            PeerLog.debug(PeerLog.RECLAIM, "chunk deleted", "chunk", deletedChunk);
             String[] deletedChunkInfo = deletedChunk.split("_");
             String fileID = deletedChunkInfo[0];
             String chunkNo = deletedChunkInfo[1];
 
             String header = makeHeader("REMOVED", protocolVersion, serverId, fileID, chunkNo);
             controlChannel.sendMessage(header.getBytes());
-            printHeader(header, true);
+            PeerLog.message(header, true);
         }
     }
 
     /**
      * Called when a message is received,
-     * checks the instruction and calls the appropriate protocol
+     * keeps track of the number of messages being handled
      *
      * @param message received message
-     * @param address
+     * @param address address of the sender
      */
     public void messageHandler(byte[] message, InetAddress address) {
+        long startTime = System.nanoTime();
+        activeHandlers.incrementAndGet();
+        try {
+            String messageType = handleMessage(message, address);
+            if (messageType != null)
+                metrics.messageHandled(messageType, startTime);
+        } finally {
+            activeHandlers.decrementAndGet();
+        }
+    }
 
-        ByteArrayInputStream input = new ByteArrayInputStream(message);
-
+    /**
+     * Reads the header of a message, leaving the input at the start of the body
+     *
+     * @param input message
+     * @return header, without the trailing CRLF CRLF
+     */
+    static String readHeader(ByteArrayInputStream input) {
         byte character;
         String header = "";
 
@@ -313,10 +783,24 @@ class PeerService {
         } while (character != -1 && character != CR);
 
         if (input.read() != LF || input.read() != CR || input.read() != LF) {
-            System.out.println("Bad header");
+            PeerLog.warn(PeerLog.MESSAGE, "bad header", "header", header.trim());
         }
 
-        header = header.trim();
+        return header.trim();
+    }
+
+    /**
+     * Checks the instruction of a received message and calls the appropriate protocol
+     *
+     * @param message received message
+     * @param address address of the sender
+     * @return type of the message, null if it was sent by this peer or dropped as a duplicate
+     */
+    private String handleMessage(byte[] message, InetAddress address) {
+
+        ByteArrayInputStream input = new ByteArrayInputStream(message);
+
+        String header = readHeader(input);
         String messageHeader[] = header.split(" ");
 
         //check message type
@@ -325,7 +809,15 @@ class PeerService {
         String senderID = messageHeader[2];
 
         if (senderID.equals(this.serverId))// message sent from this peer, ignore
-            return;
+            return null;
+
+        boolean joined = membership.touch(senderID, protocolVersion);
+
+        if (duplicates.isDuplicate(messageHeader)) {
+            metrics.increment("duplicates.dropped");
+            metrics.increment("duplicates." + messageType.toLowerCase());
+            return null;
+        }
 
         switch (messageType) {
             case "PUTCHUNK": {
@@ -333,36 +825,46 @@ class PeerService {
                     System.err.println("Not enough fields on header for PUTCHUNK");
                     break;
                 }
-                printHeader(header, false);
+                PeerLog.message(header, false);
                 String fileID = messageHeader[3];
-
-                /* File the chunk belongs to belongs to this peer, ignore */
-                if (myFileIDs.contains(fileID))
-                    break;
-
                 String chunkNo = messageHeader[4];
                 String replicationDegree = messageHeader[5];
+                repairs.claimed(fileID, chunkNo, senderID);
+                /* the file is backed up again, so a new deletion of it is not a copy of the last one */
+                duplicates.forget("DELETE", senderID, fileID, null);
 
-                /* Check if there is space to store the chunk */
-                byte[] chunk = new byte[input.available()];
-                if (chunkManager.getOccupiedSpace() + chunk.length > availableSpace * 1000) {
+                Admission admission = admitChunk(fileID, chunkNo, replicationDegree, input.available());
+                metrics.increment("putchunk." + admission.name().toLowerCase());
+                if (admission == Admission.OWNED)
+                    break;
+                if (admission == Admission.NO_SPACE) {
                     System.err.format("No space available to store chunks. Space occupied = %d\n", chunkManager.getOccupiedSpace());
                     break;
                 }
 
-                input.read(chunk, 0, input.available());
-                if (chunkManager.storeChunk(protocolVersion, fileID, chunkNo, replicationDegree, chunk)) {
+                boolean stored = admission == Admission.HELD;
+                int chunkSize = input.available();
+                if (admission == Admission.ACCEPTED) {
+                    byte[] chunk = new byte[chunkSize];
+                    input.read(chunk, 0, chunk.length);
+                    long waitTime = protocolVersion.equals("2.0") ?
+                            membership.placementDelay(availableSpace * 1000 - chunkManager.getOccupiedSpace(), ChunkManager.MAX_SLEEP_TIME)
+                            : new Random().nextInt(ChunkManager.MAX_SLEEP_TIME);
+                    stored = chunkManager.storeChunk(protocolVersion, fileID, chunkNo, replicationDegree, chunk, waitTime);
+                }
+
+                if (stored) {
                     String response = makeHeader("STORED", protocolVersion, serverId, fileID, chunkNo);
-                    chunkManager.registerChunk(fileID, chunkNo, replicationDegree);
+                    chunkManager.registerChunk(fileID, chunkNo, replicationDegree, chunkSize);
                     controlChannel.sendMessage(response.getBytes());
                     chunkManager.registerStorage(protocolVersion, this.serverId, fileID, chunkNo);
-                    printHeader(response, true);
+                    PeerLog.message(response, true);
                 }
 
                 if (!isMarkedForBackup(fileID, chunkNo) ) {
                     markForBackup(fileID, chunkNo);
                     if (protocolVersion.equals("2.0") && chunkManager.hasChunk(fileID,Integer.parseInt(chunkNo)))
-                        trackBackup(fileID, chunkNo);
+                        repairs.track(fileID, Integer.parseInt(chunkNo), senderID, BACKUP_TRACKING_TIME);
                 } else {
                     incrementBackupRequests(fileID, chunkNo);
                 }
@@ -375,12 +877,28 @@ class PeerService {
                     System.err.println("Not enough fields on header for STORED");
                     break;
                 }
-                printHeader(header, false);
+                PeerLog.message(header, false);
                 String fileID = messageHeader[3];
                 String chunkNo = messageHeader[4];
+                membership.responseReceived("PUTCHUNK_" + fileID + '_' + chunkNo, senderID);
+                duplicates.forget("REMOVED", senderID, fileID, chunkNo);
                 chunkManager.registerStorage(protocolVersion, senderID, fileID, chunkNo);
-                if (chunkManager.getReplicationDegree(fileID, chunkNo) >= chunkManager.getDesiredReplicationDegree(fileID))
+                Object replicated = backupWaits.get(fileID + '_' + chunkNo);
+                if (replicated != null) {
+                    synchronized (replicated) {
+                        replicated.notifyAll();
+                    }
+                }
+                Job job = jobs.getBackup(fileID);
+                if (job != null)
+                    job.chunkReplicated(Integer.parseInt(chunkNo), chunkManager.getReplicationDegree(fileID, chunkNo));
+                if (chunkManager.getReplicationDegree(fileID, chunkNo) >= chunkManager.getDesiredReplicationDegree(fileID)) {
                     unmarkForBackup(fileID, chunkNo);
+
+                    Long backupStartTime = backupStartTimes.remove(fileID + '_' + chunkNo);
+                    if (backupStartTime != null)
+                        metrics.histogram(PeerMetrics.TIME_TO_REPLICATION).recordSince(backupStartTime);
+                }
                 break;
             }
             case "GETCHUNK": {
@@ -388,7 +906,7 @@ class PeerService {
                     System.err.println("Not enough fields on header for GETCHUNK");
                     break;
                 }
-                printHeader(header, false);
+                PeerLog.message(header, false);
 
                 String fileID = messageHeader[3];
                 String chunkNo = messageHeader[4];
@@ -405,17 +923,32 @@ class PeerService {
                     System.err.println("Not enough fields on header for GETCHUNK");
                     break;
                 }
-                printHeader(header, false);
+                PeerLog.message(header, false);
 
                 String fileID = messageHeader[3];
                 String chunkNo = messageHeader[4];
 
                 if (requestedRestore(fileID)) {
+                    membership.responseReceived("GETCHUNK_" + fileID + '_' + chunkNo, senderID);
                     byte[] chunk = new byte[input.available()];
                     input.read(chunk, 0, input.available());
 
+                    /* a chunk that does not match the manifest is dropped, so it is requested again */
                     FileRestorer fileRestorer = restoredChunksObjects.get(fileID);
-                    fileRestorer.processRestoredChunks(chunkNo, chunk);
+                    if (fileRestorer != null && !fileRestorer.matchesManifest(Integer.parseInt(chunkNo), chunk)) {
+                        PeerLog.warn(PeerLog.RESTORE, "chunk does not match the manifest, ignoring it", "file", fileID,
+                                "chunk", chunkNo, "peer", senderID);
+                        break;
+                    }
+
+                    Job job = jobs.getRestore(fileID);
+                    if (job != null) {
+                        job.transferred(chunk.length);
+                        job.chunkReplicated(Integer.parseInt(chunkNo), 1);
+                    }
+
+                    if (fileRestorer != null)
+                        fileRestorer.processRestoredChunks(chunkNo, chunk);
                 } else {
                     chunkManager.registerChunkMessage(fileID, chunkNo);
                 }
@@ -427,14 +960,14 @@ class PeerService {
                     System.err.println("Not enough fields on header for DELETE");
                     break;
                 }
-                printHeader(header, false);
+                PeerLog.message(header, false);
                 String fileID = messageHeader[3];
                 ArrayList<String> deletedChunks = chunkManager.deleteFile(fileID);
 
                 if (protocolVersion.equals("2.0") && deletedChunks != null) {
                     for (String chunkNo : deletedChunks) {
                         String response = makeHeader("DELETED", protocolVersion, serverId, fileID, chunkNo);
-                        printHeader(response, true);
+                        PeerLog.message(response, true);
                         controlChannel.sendMessage(response.getBytes());
                     }
                 }
@@ -448,7 +981,7 @@ class PeerService {
                 }
                 String fileID = messageHeader[3];
                 String chunkNo = messageHeader[4];
-                printHeader(header, false);
+                PeerLog.message(header, false);
 
                 if (!chunkManager.registerRemoval(protocolVersion, senderID, fileID, chunkNo)
                         | !chunkManager.hasChunk(fileID, Integer.parseInt(chunkNo))) //file not registered on the peer
@@ -458,111 +991,188 @@ class PeerService {
                 int perceivedReplicationDegree = chunkManager.getReplicationDegree(fileID, chunkNo);
 
                 if (perceivedReplicationDegree < desiredReplicationDegree && chunkManager.hasChunk(fileID, Integer.parseInt(chunkNo))) {
-                    System.out.format("Replication degree for chunk %s of file %s is under the desired level.\n" +
-                            "Desired = %d; Perceived = %d\n", chunkNo, fileID, desiredReplicationDegree, perceivedReplicationDegree
-                    );
-                    try {
-                        byte[] chunk = chunkManager.getChunkData(fileID, chunkNo);
-                        Random random = new Random();
-                        Thread.sleep((long) random.nextInt(400));
-                        if (!isMarkedForBackup(fileID, chunkNo)) {
-                            requestChunkBackup(fileID, Integer.parseInt(chunkNo), desiredReplicationDegree, chunk);
-
-                            if (protocolVersion.equals("2.0")) {
-                                trackBackup(fileID, chunkNo);
-                            }
-                        }
-                    } catch (IOException | InterruptedException e) {
-                        e.printStackTrace();
-                    }
+                    PeerLog.info(PeerLog.REPAIR, "chunk under replicated", "file", fileID, "chunk", chunkNo,
+                            "degree", perceivedReplicationDegree, "desired", desiredReplicationDegree);
+                    repairs.schedule(fileID, Integer.parseInt(chunkNo));
                 } else { // Desired replication degree has been satisfied
                     if (isMarkedForBackup(fileID, chunkNo))
                         unmarkForBackup(fileID, chunkNo);
                 }
                 break;
             }
+            case "CLAIM": {
+                if (messageHeader.length < 5) {
+                    System.err.println("Not enough fields on header for CLAIM");
+                    break;
+                }
+                PeerLog.message(header, false);
+                repairs.claimed(messageHeader[3], messageHeader[4], senderID);
+                break;
+            }
             case "DELETED": {
                 String fileID = messageHeader[3];
                 String chunkNo = messageHeader[4];
-                printHeader(header, false);
+                PeerLog.message(header, false);
                 chunkManager.registerDeletion(senderID, fileID, chunkNo);
                 break;
             }
             case "AHOY": {
                 if (!protocolVersion.equals("2.0"))
                     break;
+
+                if (messageHeader.length >= 6) {
+                    joined |= membership.heartbeat(senderID, protocolVersion, Long.parseLong(messageHeader[3]),
+                            Long.parseLong(messageHeader[4]), Integer.parseInt(messageHeader[5]));
+                }
+
+                /*
+                 * A peer that restarted may have missed DELETE messages, even if it was back before being considered
+                 * failed or its first message was not an AHOY, so its pending deletions are checked on every AHOY,
+                 * sent again right away when it (re)joined and at most once per DELETE_RESEND_INTERVAL otherwise
+                 */
                 ArrayList<String> filesToDelete = chunkManager.checkDeletion(senderID);
                 if (filesToDelete == null)
                     break;
 
+                long now = System.currentTimeMillis();
+                Long lastResent = deletionsResent.get(senderID);
+                if (!joined && lastResent != null && now - lastResent < DELETE_RESEND_INTERVAL)
+                    break;
+                deletionsResent.put(senderID, now);
+
+                PeerLog.message(header, false);
                 for (String file : filesToDelete)
                     requestFileDeletion(file);
                 break;
             }
-            default: {
-                System.out.format("Unrecognized operation: %s\n", messageType);
+            case "SYNC": {
+                if (!protocolVersion.equals("2.0"))
+                    break;
+                PeerLog.message(header, false);
+                scheduler.schedule(this::sendDigest, new Random().nextInt(ChunkManager.MAX_SLEEP_TIME), TimeUnit.MILLISECONDS);
                 break;
             }
-        }
-    }
+            case "DIGEST": {
+                if (messageHeader.length < 5) {
+                    System.err.println("Not enough fields on header for DIGEST");
+                    break;
+                }
+                PeerLog.message(header, false);
 
-    private void trackBackup(String fileID, String chunkNo) {
-        Runnable task = () -> {
-            try {
-                Thread.sleep(35000);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+                byte[] body = new byte[input.available()];
+                input.read(body, 0, body.length);
+                reconcileDigest(senderID, Integer.parseInt(messageHeader[3]), Integer.parseInt(messageHeader[4]), body);
+                break;
             }
-
-            if (isMarkedForBackup(fileID, chunkNo) && getNumBackupRequests(fileID, chunkNo) >= 5) {
-                unmarkForBackup(fileID, chunkNo);
-                System.out.format("Backup Timed out normally, no action to be taken\n");
-                return;
+            case "GETHOLDINGS": {
+                if (messageHeader.length < 5) {
+                    System.err.println("Not enough fields on header for GETHOLDINGS");
+                    break;
+                }
+                /* Request addressed to another peer, ignore */
+                if (!messageHeader[4].equals(serverId))
+                    break;
+                PeerLog.message(header, false);
+                sendHoldings(messageHeader[3]);
+                break;
             }
+            case "HOLDINGS": {
+                if (messageHeader.length < 4) {
+                    System.err.println("Not enough fields on header for HOLDINGS");
+                    break;
+                }
+                String fileID = messageHeader[3];
+                if (!chunkManager.knowsFile(fileID))
+                    break;
+                PeerLog.message(header, false);
+
+                /* chunks covered by the message, the whole file if it has no range */
+                int from = 0, to = Integer.MAX_VALUE;
+                if (messageHeader.length >= 6) {
+                    from = Integer.parseInt(messageHeader[4]);
+                    to = Integer.parseInt(messageHeader[5]);
+                    if (from < 0 || to < from) {
+                        System.err.println("Invalid chunk range on HOLDINGS");
+                        break;
+                    }
+                }
 
-            int desiredReplicationDegree = chunkManager.getDesiredReplicationDegree(fileID);
-            int perceivedReplicationDegree = chunkManager.getReplicationDegree(fileID, chunkNo);
-
-            if (desiredReplicationDegree > perceivedReplicationDegree) {
-                /*
-                   Check if the initiator peer made 5 backup requests
-                   if not, it indicates something went wrong with the initiator
-                   peer during the backup
-                 */
-                System.out.format("Replication degree for chunk %s of file %s is under the desired level.\n" +
-                        "Desired = %d; Perceived = %d\n", chunkNo, fileID, desiredReplicationDegree, perceivedReplicationDegree
-                );
-
-                if (getNumBackupRequests(fileID, chunkNo) < 5) {
-                    unmarkForBackup(fileID, chunkNo);
-
-                    try {
-                        Random random = new Random();
-                        long waitTime = (long) random.nextInt(400);
-                        System.out.println(waitTime);
-                        Thread.sleep(waitTime);
+                byte[] body = new byte[input.available()];
+                input.read(body, 0, body.length);
+                BitSet range = BitSet.valueOf(body);
+                BitSet held = new BitSet();
+                for (int i = range.nextSetBit(0); i >= 0 && i < to - from; i = range.nextSetBit(i + 1))
+                    held.set(from + i);
+                int changed = chunkManager.reconcileHoldings(senderID, fileID, held, from, to);
+                if (changed > 0)
+                    PeerLog.info(PeerLog.MEMBERSHIP, "replication degrees updated", "peer", senderID, "file", fileID,
+                            "chunks", changed);
+                break;
+            }
+            default: {
+                PeerLog.warn(PeerLog.MESSAGE, "unrecognized operation", "type", messageType);
+                break;
+            }
+        }
+        return messageType;
+    }
 
-                        if (isMarkedForBackup(fileID, chunkNo)) { // Other peer took the responsibility
-                            return;
-                        }
+    /**
+     * Repairs a chunk of this peer, sending PUTCHUNK messages until its desired replication degree is reached
+     * or the retransmissions run out
+     * Called by the repair scheduler, which limits how many run at once
+     *
+     * @param fileID            file ID of the file the chunk belongs to
+     * @param chunkNo           chunk number
+     * @param replicationDegree desired replication degree of the chunk
+     * @param bandwidth         limit of the repairs, besides the one of every backup
+     * @return bytes sent, -1 if the chunk could not be read
+     */
+    long repairChunk(String fileID, int chunkNo, int replicationDegree, TokenBucket bandwidth) {
+        byte[] chunk;
+        try {
+            chunk = chunkManager.getChunkData(fileID, Integer.toString(chunkNo));
+        } catch (IOException e) {
+            System.err.format("Unable to read chunk %d of file %s\n", chunkNo, fileID);
+            return -1;
+        }
+        return backupChunk(fileID, chunkNo, replicationDegree, chunk, null, bandwidth);
+    }
 
-                        byte[] chunk = chunkManager.getChunkData(fileID, chunkNo);
-                        requestChunkBackup(fileID, Integer.parseInt(chunkNo), desiredReplicationDegree, chunk);
+    /**
+     * Announces that this peer is about to repair a chunk, so the other peers that store it do not
+     *
+     * @param fileID  file ID of the file the chunk belongs to
+     * @param chunkNo chunk number
+     */
+    void sendClaim(String fileID, int chunkNo) {
+        String header = makeHeader("CLAIM", protocolVersion, serverId, fileID, Integer.toString(chunkNo));
+        controlChannel.sendMessage(header.getBytes());
+        PeerLog.message(header, true);
+    }
 
-                    } catch (IOException | InterruptedException e) {
-                        System.err.println("Unable to read chunk data");
-                    }
-                } else {
-                    unmarkForBackup(fileID, chunkNo);
-                }
-            } else {
-                System.out.println("Chunk Backup request successfully complete! No action to take!");
-                unmarkForBackup(fileID, chunkNo);
-            }
-        };
-        new Thread(task).start();
+    /**
+     * Checks if the initiator of the backup of a chunk sent all its PUTCHUNK messages,
+     * in which case the backup ended normally even if the desired replication degree was not reached
+     *
+     * @param fileID  file ID of the file the chunk belongs to
+     * @param chunkNo chunk number
+     * @return true if the initiator gave up on the chunk
+     */
+    boolean backupAbandoned(String fileID, int chunkNo) {
+        String chunk = Integer.toString(chunkNo);
+        return isMarkedForBackup(fileID, chunk) && getNumBackupRequests(fileID, chunk) >= 5;
     }
 
+    /**
+     * Stops tracking the backup of a chunk initiated by another peer
+     *
+     * @param fileID  file ID of the file the chunk belongs to
+     * @param chunkNo chunk number
+     */
+    void backupTracked(String fileID, int chunkNo) {
+        unmarkForBackup(fileID, Integer.toString(chunkNo));
+    }
 
     /**
      * Constructs and sends a DELETE message for a given file, identified
@@ -571,10 +1181,9 @@ class PeerService {
      * @param fileID file ID of the file to be deleted
      */
     public void requestFileDeletion(String fileID) {
-        myFileNames.remove(myFileIDs.indexOf(fileID));
-        saveMyFiles();
+        boolean owned = catalog.remove(fileID) != null;
 
-        if (myFileIDs.remove(fileID) || (protocolVersion.equals("2.0") && chunkManager.isMarkedForDeletion(fileID))) {
+        if (owned || (protocolVersion.equals("2.0") && chunkManager.isMarkedForDeletion(fileID))) {
             if(protocolVersion.equals("2.0"))
                 chunkManager.markForDeletion(fileID);
 
@@ -582,7 +1191,7 @@ class PeerService {
             for (int i = 0; i < 5; i++) {
                 String message = makeHeader("DELETE", protocolVersion, serverId, fileID);
                 controlChannel.sendMessage(message.getBytes());
-                printHeader(message, true);
+                PeerLog.message(message, true);
                 try {
                     Thread.sleep(500);
                 } catch (InterruptedException e) {
@@ -590,21 +1199,11 @@ class PeerService {
                 }
             }
         } else {
-            System.out.format("File %s does not belong to this peer\n", fileID);
+            PeerLog.info(PeerLog.DELETE, "file does not belong to this peer", "file", fileID);
         }
     }
 
 
-    /**
-     * Prints the header fields
-     *
-     * @param header the header string
-     * @param sent   true if the message is being sent
-     */
-    private void printHeader(String header, boolean sent) {
-        System.out.println("Message " + (sent ? "sent:" : "received:") + "\n" + header);
-    }
-
     /**
      * Creates and sends a GETCHUNK message
      *
@@ -614,18 +1213,29 @@ class PeerService {
     public void requestChunkRestore(String fileId, int chunkNo) {
 
         Runnable task = () -> {
-            int counter = 1, multiplier = 1;
+            int counter = 1, multiplier = 1, attempts = 0;
 
             FileRestorer fileRestorer = restoredChunksObjects.get(fileId);
+            if (fileRestorer == null)
+                return;
 
             String header = makeHeader("GETCHUNK", protocolVersion, serverId, fileId,
                     Integer.toString(chunkNo));
+            String requestKey = "GETCHUNK_" + fileId + '_' + chunkNo;
 
             byte[] headerBytes = header.getBytes();
 
             do {
+                if (noLiveSource(fileId, chunkNo)) {
+                    System.err.format("No peer alive holds chunk %d of file %s\n", chunkNo, fileId);
+                    break;
+                }
+
+                if (attempts++ > 0)
+                    metrics.increment(PeerMetrics.GETCHUNK_RETRANSMITS);
+                membership.requestSent(requestKey);
                 if (controlChannel.sendMessage(headerBytes))
-                    printHeader(header, true);
+                    PeerLog.message(header, true);
 
                 else {
                     System.err.println("IOException :: PeerService :: Failed to send GETCHUNK message");
@@ -648,10 +1258,40 @@ class PeerService {
                 counter++;
                 multiplier *= 2;
             }
-            while (!fileRestorer.getRestoredChunks().containsKey(Integer.toString(chunkNo)) && restoredChunksObjects.containsKey(fileId));
+            while (counter <= 5 && !fileRestorer.getRestoredChunks().containsKey(Integer.toString(chunkNo))
+                    && restoredChunksObjects.containsKey(fileId));
+
+            membership.requestCompleted(requestKey);
+            if (!fileRestorer.getRestoredChunks().containsKey(Integer.toString(chunkNo))
+                    && restoredChunksObjects.remove(fileId, fileRestorer)) {
+                System.err.format("Unable to restore chunk %d of file %s\n", chunkNo, fileId);
+                Job job = jobs.getRestore(fileId);
+                if (job != null)
+                    job.fail("Chunk " + chunkNo + " could not be restored");
+            }
         };
 
-        new Thread(task).start();
+        if (!startTransfer(task) && restoredChunksObjects.remove(fileId) != null) {
+            Job job = jobs.getRestore(fileId);
+            if (job != null)
+                job.fail("Restore of chunk " + chunkNo + " was not started");
+        }
+    }
+
+    /**
+     * Checks, on the enhanced version, if every peer known to hold a chunk sent heartbeats and stopped,
+     * in which case requesting the chunk is pointless
+     *
+     * @param fileId  id of the file the chunk belongs to
+     * @param chunkNo chunk number
+     * @return true if no peer that holds the chunk can be alive
+     */
+    private boolean noLiveSource(String fileId, int chunkNo) {
+        if (!protocolVersion.equals("2.0") || !membership.isWarm())
+            return false;
+
+        ArrayList<Integer> holders = chunkManager.getChunkPeers(fileId, Integer.toString(chunkNo));
+        return membership.allFailed(holders);
     }
 
     /**
@@ -698,8 +1338,12 @@ class PeerService {
         System.arraycopy(headerBytes, 0, buf, 0, headerBytes.length);
         System.arraycopy(chunkData, 0, buf, headerBytes.length, chunkData.length);
 
-        Random random = new Random();
-        long waitTime = random.nextInt(400);
+        long waitTime;
+        if (this.protocolVersion.equals("2.0"))
+            waitTime = membership.sourceDelay(chunkManager.getChunkPeers(fileID, chunkNo), activeHandlers.get(),
+                    ChunkManager.MAX_SLEEP_TIME);
+        else
+            waitTime = new Random().nextInt(ChunkManager.MAX_SLEEP_TIME);
         try {
             Thread.sleep(waitTime);
         } catch (InterruptedException e) {
@@ -708,7 +1352,7 @@ class PeerService {
 
         if (chunkManager.canSendChunkMessage(fileID, chunkNo)) {
 
-            if (protocolVersion.equals("2.0")) {
+            if (protocolVersion.equals("2.0") && usesDirectRestore()) {
                 try {
                     Socket restoreSocket = new Socket(address, dataRestorePort);
 
@@ -716,13 +1360,15 @@ class PeerService {
 
                     output.write(buf, 0, buf.length);
                     output.flush();
+                    metrics.messageSent(buf);
+                    metrics.channelTraffic("TCP", buf.length, false);
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
             } else {
                 dataRestoreChannel.sendMessage(buf);
             }
-            printHeader(header, true);
+            PeerLog.message(header, true);
         }
 
     }
@@ -736,11 +1382,13 @@ class PeerService {
      * @param replicationDegree desired replication degree of the file to backup
      * @param numChunks         number of chunks in the file to backup
      * @param filepath          file to register
+     * @param size              size of the file
+     * @param modified          last modification of the file, in milliseconds since the epoch
+     * @param checksums         CRC32 of every chunk of the file, null if unknown
      */
-    void registerFile(String fileId, int replicationDegree, int numChunks, String filepath) {
-        myFileIDs.add(fileId);
-        myFileNames.add(filepath);
-        saveMyFiles();
+    void registerFile(String fileId, int replicationDegree, long numChunks, String filepath, long size, long modified,
+                      int[] checksums) {
+        catalog.add(fileId, filepath, size, numChunks, replicationDegree, modified, checksums);
 
         chunkManager.registerFile(fileId, replicationDegree);
         chunkManager.registerNumChunks(fileId, numChunks);
@@ -748,13 +1396,10 @@ class PeerService {
     }
 
     /**
-     * Get the number of chunks a file has
-     *
-     * @param fileID file ID
-     * @return number of chunks the file has
+     * @return files backed up by this peer
      */
-    int getNumChunks(String fileID) {
-        return chunkManager.getNumChunks(fileID);
+    FileCatalog getCatalog() {
+        return catalog;
     }
 
     /**
@@ -763,7 +1408,13 @@ class PeerService {
      * @param fileID file ID
      */
     void markRestored(String fileID) {
-        restoredChunksObjects.remove(fileID);
+        FileRestorer fileRestorer = restoredChunksObjects.remove(fileID);
+        if (fileRestorer != null)
+            metrics.histogram(PeerMetrics.RESTORE_TIME).recordSince(fileRestorer.getStartTime());
+
+        Job job = jobs.getRestore(fileID);
+        if (job != null)
+            job.complete();
     }
 
     /**
@@ -775,6 +1426,37 @@ class PeerService {
         return protocolVersion;
     }
 
+    /**
+     * Checks if the enhanced restore sends the chunks straight to the initiator, over TCP
+     * Peers sharing the same process have no address of their own, so the chunks go on the restore channel
+     * On the TCP mesh the restore channel already listens on the restore port, and its connections carry the chunks
+     *
+     * @return true if the chunks are sent over TCP
+     */
+    boolean usesDirectRestore() {
+        return dataRestoreChannel.isNetworked() && !dataRestoreChannel.isMesh();
+    }
+
+    /**
+     * Stops the peer, closing its channels
+     */
+    void shutdown() {
+        scheduler.shutdownNow();
+        controlChannel.close();
+        dataBackupChannel.close();
+        dataRestoreChannel.close();
+        handlers.shutdownNow();
+        transfers.shutdownNow();
+        repairs.close();
+        chunkManager.close();
+        try {
+            if (restoreTCPSocket != null)
+                restoreTCPSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     /**
      * Function used to create the tcp socket and to listen for messages
      *
@@ -785,19 +1467,20 @@ class PeerService {
             restoreTCPSocket.close();
         }
 
-        restoreTCPSocket = new ServerSocket(dataRestorePort);
+        ServerSocket serverSocket = new ServerSocket(dataRestorePort);
+        restoreTCPSocket = serverSocket;
 
         Runnable task = () -> {
             Socket dataSocket;
 
-            //noinspection InfiniteLoopStatement
-            while (true) {
+            while (!serverSocket.isClosed()) {
 
                 try {
-                    dataSocket = restoreTCPSocket.accept();
+                    dataSocket = serverSocket.accept();
                     processRestoreMessage(dataSocket);
                 } catch (IOException e) {
-                    e.printStackTrace();
+                    if (!serverSocket.isClosed())
+                        e.printStackTrace();
                 }
             }
         };
@@ -820,6 +1503,7 @@ class PeerService {
                 byte[] chunkData = new byte[input.available()];
 
                 input.readFully(chunkData);
+                metrics.channelTraffic("TCP", chunkData.length, true);
 
                 messageHandler(chunkData, dataSocket.getInetAddress());
 
@@ -829,9 +1513,55 @@ class PeerService {
 
         };
 
-        ExecutorService service = Executors.newFixedThreadPool(10);
+        handlers.execute(task);
+    }
 
-        service.execute(task);
+    /**
+     * Decision on a received PUTCHUNK, taken from its header only
+     */
+    private enum Admission {
+        /**
+         * the chunk is stored
+         */
+        ACCEPTED,
+        /**
+         * the chunk was already stored, STORED is sent again
+         */
+        HELD,
+        /**
+         * the chunk belongs to a file backed up by this peer
+         */
+        OWNED,
+        /**
+         * storing the chunk would exceed the space available
+         */
+        NO_SPACE,
+        /**
+         * enough other peers are known to store the chunk
+         */
+        REPLICATED
+    }
+
+    /**
+     * Decides if a chunk announced on a PUTCHUNK message is stored, before its body is read,
+     * so the PUTCHUNK messages that are turned down cost no copy of the chunk nor disk access
+     *
+     * @param fileID            file ID of the file the chunk belongs to
+     * @param chunkNo           chunk number
+     * @param replicationDegree desired replication degree on the header
+     * @param size              size of the chunk
+     * @return the decision
+     */
+    private Admission admitChunk(String fileID, String chunkNo, String replicationDegree, int size) {
+        if (catalog.owns(fileID))
+            return Admission.OWNED;
+        if (chunkManager.hasChunk(fileID, Integer.parseInt(chunkNo)))
+            return Admission.HELD;
+        if (chunkManager.getOccupiedSpace() + size > availableSpace * 1000)
+            return Admission.NO_SPACE;
+        if (chunkManager.getReplicationDegree(fileID, chunkNo) >= Integer.parseInt(replicationDegree))
+            return Admission.REPLICATED;
+        return Admission.ACCEPTED;
     }
 
     /**
@@ -895,56 +1625,72 @@ class PeerService {
 
     /**
      * Get the state of the peer
+     * The counters are kept up to date as messages arrive, so only the requested page is built
      *
-     * @return
+     * @param file   only return the state of this file, given by name or file ID, or of all files if null
+     * @param offset number of files and of chunks to skip
+     * @param limit  maximum number of files and of chunks to return
+     * @return state of the peer
      */
-    String getCurrentState() {
-
-        String currentState = "\t\t============ FILES ============\n\n";
-
-        for (int i = 0; i < myFileIDs.size(); i++) {
-            currentState += "File number " + i + "\n";
-            currentState += "\tFilename: " + myFileNames.get(i) + ";\n";
-            currentState += "\tFile backup service id: " + myFileIDs.get(i) + ";\n";
-            currentState += chunkManager.getFileCurrentState(myFileIDs.get(i));
+    PeerState getState(String file, int offset, int limit) {
+        List<PeerState.FileState> files = new ArrayList<>();
+        String fileFilter = null;
+        int totalFiles = 0;
+
+        for (FileCatalog.Entry entry : catalog.getEntries()) {
+            String fileID = entry.fileID;
+            String filename = entry.name;
+            if (file != null && !file.equals(fileID) && !file.equals(filename))
+                continue;
+
+            fileFilter = fileID;
+            if (totalFiles++ >= offset && files.size() < limit)
+                files.add(chunkManager.getFileState(fileID, filename));
         }
 
-        currentState += "\n\t\t============ CHUNKS ============\n\n";
-        currentState += chunkManager.getChunksState();
-
-        currentState += "\n\t\t============ SIZE ============\n\n";
-        currentState += "\tMaximum Amount to store chunks: " + availableSpace + " Kb\n";
-        currentState += "\tStorage used to backup chunks: " + (chunkManager.getOccupiedSpace() / 1000) + " Kb\n";
-        currentState += "\tSpace available: " + (availableSpace - (chunkManager.getOccupiedSpace() / 1000)) + " Kb\n";
+        if (file != null && fileFilter == null)
+            fileFilter = file;
 
-        return currentState;
-    }
+        ReplicationStatistics statistics = chunkManager.getStatistics();
+        long totalChunks = file == null ? statistics.getChunksHeld() : chunkManager.getNumStoredChunks(fileFilter);
 
-    /**
-     * Save the state of the peer files
-     */
-    private void saveMyFiles() {
-        try {
-            ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(PEER_DIRECTORY + serverId + '/' + MYFILES_FILENAME));
-            oos.writeObject(myFileIDs);
-            oos.writeObject(myFileNames);
-        } catch (IOException e) {
-            System.err.println("Unable to save peer filenames");
+        List<String> peers = new ArrayList<>();
+        if (protocolVersion.equals("2.0")) {
+            for (PeerMembership.PeerInfo peerInfo : membership.getSnapshot())
+                peers.add(peerInfo.toString());
         }
+
+        return new PeerState(files, chunkManager.getChunkStates(file == null ? null : fileFilter, offset, limit),
+                totalFiles, totalChunks, availableSpace * 1000, statistics.getBytesUsed(), statistics.getChunksHeld(),
+                statistics.getUnderReplicatedFiles(), statistics.getReplicationHistogram(), peers);
     }
 
     /**
-     * Load the state of the peer files
+     * Imports the list of files backed up kept by older versions of the peer into the file catalog
      */
-    private void loadMyFiles() {
-        try {
-            ObjectInputStream ois = new ObjectInputStream(new FileInputStream(PEER_DIRECTORY + serverId + '/' + MYFILES_FILENAME));
+    private void importMyFiles() {
+        File myFiles = new File(PEER_DIRECTORY + serverId + '/' + MYFILES_FILENAME);
+        if (!myFiles.exists())
+            return;
+
+        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(myFiles))) {
             //noinspection unchecked
-            myFileIDs = (ArrayList<String>) ois.readObject();
+            ArrayList<String> myFileIDs = (ArrayList<String>) ois.readObject();
             //noinspection unchecked
-            myFileNames = (ArrayList<String>) ois.readObject();
+            ArrayList<String> myFileNames = (ArrayList<String>) ois.readObject();
+
+            for (int i = 0; i < myFileIDs.size(); i++) {
+                String fileID = myFileIDs.get(i);
+                if (!catalog.owns(fileID))
+                    catalog.add(fileID, myFileNames.get(i), -1, chunkManager.getNumChunks(fileID),
+                            chunkManager.getDesiredReplicationDegree(fileID), 0, null);
+            }
         } catch (IOException | ClassNotFoundException e) {
             System.err.println("Unable to load peer filenames");
+            return;
         }
+
+        if (!myFiles.delete())
+            System.err.println("Unable to remove the imported peer filenames");
     }
 }
@@ -0,0 +1,377 @@
+package peers;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Queues the chunks stored on this peer that fell under their desired replication degree and backs them up again,
+ * a few at a time and within a bandwidth limit
+ * The chunks with fewest copies left go first, then the ones missing the most copies
+ * Before a repair, the peer multicasts a CLAIM message; peers that hear it, or a PUTCHUNK of the chunk,
+ * leave the chunk alone until the claim expires, and then only repair it if it is still under replicated
+ */
+class RepairScheduler {
+
+    /**
+     * Time a claim keeps the other peers from repairing a chunk, in milliseconds
+     */
+    static final long CLAIM_TTL = Long.getLong("sdis.repair.claim.ttl", 10000);
+    /**
+     * Time to wait for competing claims after sending one, in milliseconds
+     */
+    private static final long CLAIM_GRACE = 100;
+    /**
+     * Interval between checks of the waiting chunks, in milliseconds
+     */
+    private static final long TICK = 100;
+
+    private static class Task {
+        final String fileID;
+        final int chunkNo;
+        final String key;
+        /**
+         * peer that initiated the backup being tracked, null for a repair
+         */
+        volatile String initiatorID;
+        /**
+         * true if the task started as the tracking of a backup, even if it became a repair
+         */
+        final boolean tracked;
+        final long queuedAt;
+        final long sequence;
+        /**
+         * instant the chunk may be repaired, in milliseconds
+         */
+        volatile long notBefore;
+        long lastChecked;
+        int perceived;
+        int desired;
+
+        Task(String fileID, int chunkNo, String initiatorID, long notBefore, long sequence) {
+            this.fileID = fileID;
+            this.chunkNo = chunkNo;
+            this.initiatorID = initiatorID;
+            tracked = initiatorID != null;
+            this.notBefore = notBefore;
+            this.sequence = sequence;
+            key = fileID + '_' + chunkNo;
+            queuedAt = System.nanoTime();
+        }
+    }
+
+    private static class Claim {
+        final int peerID;
+        final long claimedAt;
+        final long expiresAt;
+
+        Claim(int peerID, long expiresAt) {
+            this.peerID = peerID;
+            this.expiresAt = expiresAt;
+            claimedAt = System.nanoTime();
+        }
+    }
+
+    private final PeerService peer;
+    private final ChunkManager chunkManager;
+    private final PeerMembership membership;
+    private final PeerMetrics metrics;
+    private final int serverId;
+    private final boolean sendsClaims;
+    private final TokenBucket bandwidth;
+    private final Random random;
+
+    /**
+     * every chunk queued, waiting or ready
+     * key = <fileID>_<ChunkNo>
+     */
+    private final HashMap<String, Task> tasks;
+    private final HashMap<String, Task> waiting;
+    private final PriorityQueue<Task> ready;
+    /**
+     * latest claim of another peer on every chunk
+     * key = <fileID>_<ChunkNo>
+     */
+    private final ConcurrentHashMap<String, Claim> claims;
+    private final List<Thread> threads;
+    private long nextSequence;
+
+    /**
+     * @param peer         peer the chunks are repaired for
+     * @param chunkManager chunk manager of the peer
+     * @param membership   membership table of the peer
+     * @param metrics      metrics of the peer, where the repairs are recorded
+     * @param serverId     id of the peer
+     * @param sendsClaims  true to send CLAIM messages, on the enhanced version
+     * @param concurrency  maximum number of chunks repaired at once
+     * @param bandwidth    maximum bytes per second sent by the repairs, 0 for no limit
+     */
+    RepairScheduler(PeerService peer, ChunkManager chunkManager, PeerMembership membership, PeerMetrics metrics,
+                    String serverId, boolean sendsClaims, int concurrency, long bandwidth) {
+        this.peer = peer;
+        this.chunkManager = chunkManager;
+        this.membership = membership;
+        this.metrics = metrics;
+        this.serverId = Integer.parseInt(serverId);
+        this.sendsClaims = sendsClaims;
+        this.bandwidth = new TokenBucket(bandwidth, Math.max(bandwidth / 10, PeerService.CHUNK_SIZE));
+        random = new Random();
+        tasks = new HashMap<>();
+        waiting = new HashMap<>();
+        ready = new PriorityQueue<>((a, b) -> {
+            if (a.perceived != b.perceived)
+                return Integer.compare(a.perceived, b.perceived);
+            if (a.desired - a.perceived != b.desired - b.perceived)
+                return Integer.compare(b.desired - b.perceived, a.desired - a.perceived);
+            if (a.desired != b.desired)
+                return Integer.compare(b.desired, a.desired);
+            return Long.compare(a.sequence, b.sequence);
+        });
+        claims = new ConcurrentHashMap<>();
+        threads = new ArrayList<>();
+
+        startThread(this::dispatch, "repair-dispatcher");
+        for (int i = 0; i < Math.max(1, concurrency); i++)
+            startThread(this::work, "repair-" + i);
+    }
+
+    private void startThread(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        threads.add(thread);
+        thread.start();
+    }
+
+    /**
+     * Queues a chunk of this peer whose perceived replication degree fell under the desired one
+     *
+     * @param fileID  file ID of the file the chunk belongs to
+     * @param chunkNo chunk number
+     */
+    void schedule(String fileID, int chunkNo) {
+        add(fileID, chunkNo, null, System.currentTimeMillis());
+    }
+
+    /**
+     * Watches the backup of a chunk stored on this peer, initiated by another peer,
+     * and repairs it if the initiator fails before the desired replication degree is reached
+     *
+     * @param fileID      file ID of the file the chunk belongs to
+     * @param chunkNo     chunk number
+     * @param initiatorID id of the peer that initiated the backup
+     * @param timeout     time given to the initiator, in milliseconds
+     */
+    void track(String fileID, int chunkNo, String initiatorID, long timeout) {
+        add(fileID, chunkNo, initiatorID, System.currentTimeMillis() + timeout);
+    }
+
+    /**
+     * Queues a chunk, or, if it is queued already, moves its time forward to the given one,
+     * so a chunk being tracked that needs a repair right away is not left waiting for its initiator
+     */
+    private synchronized void add(String fileID, int chunkNo, String initiatorID, long notBefore) {
+        String key = fileID + '_' + chunkNo;
+        Task existing = tasks.get(key);
+        if (existing != null) {
+            if (notBefore < existing.notBefore)
+                existing.notBefore = notBefore;
+            if (initiatorID == null)
+                existing.initiatorID = null;
+            return;
+        }
+
+        Task task = new Task(fileID, chunkNo, initiatorID, notBefore, nextSequence++);
+        tasks.put(key, task);
+        waiting.put(key, task);
+        metrics.increment("repair.queued");
+        metrics.increment("repair.pending", 1);
+    }
+
+    /**
+     * Registers that another peer is backing up a chunk, on a CLAIM or a PUTCHUNK message
+     *
+     * @param fileID   file ID of the file the chunk belongs to
+     * @param chunkNo  chunk number
+     * @param senderID id of the peer
+     */
+    void claimed(String fileID, String chunkNo, String senderID) {
+        claims.put(fileID + '_' + chunkNo, new Claim(Integer.parseInt(senderID), System.currentTimeMillis() + CLAIM_TTL));
+    }
+
+    /**
+     * Stops the repairs
+     */
+    void close() {
+        for (Thread thread : threads)
+            thread.interrupt();
+    }
+
+    /**
+     * Moves the waiting chunks whose time came, or whose initiator failed, to the ready queue,
+     * and drops the ones that no longer need a repair
+     */
+    private void dispatch() {
+        long lastExpiry = System.currentTimeMillis();
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Thread.sleep(TICK);
+                long now = System.currentTimeMillis();
+                if (now - lastExpiry >= CLAIM_TTL) {
+                    expireClaims();
+                    lastExpiry = now;
+                }
+
+                List<Task> due = new ArrayList<>();
+                synchronized (this) {
+                    for (Task task : waiting.values()) {
+                        if (now >= task.notBefore
+                                || task.initiatorID != null && now - task.lastChecked >= PeerMembership.HEARTBEAT_INTERVAL)
+                            due.add(task);
+                    }
+                }
+
+                for (Task task : due) {
+                    task.lastChecked = now;
+                    String initiatorID = task.initiatorID;
+                    boolean repair = now >= task.notBefore || initiatorID == null || !membership.isAlive(initiatorID);
+                    if (!needsRepair(task)) {
+                        finish(task, "repair.skipped");
+                        continue;
+                    }
+                    if (!repair)
+                        continue;
+
+                    task.perceived = chunkManager.getReplicationDegree(task.fileID, Integer.toString(task.chunkNo));
+                    task.desired = chunkManager.getDesiredReplicationDegree(task.fileID);
+                    synchronized (this) {
+                        if (waiting.remove(task.key) != null) {
+                            ready.add(task);
+                            notify();
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            /* closed */
+        }
+    }
+
+    private void work() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Task task;
+                synchronized (this) {
+                    while (ready.isEmpty())
+                        wait();
+                    task = ready.poll();
+                }
+                repair(task);
+            }
+        } catch (InterruptedException e) {
+            /* closed */
+        }
+    }
+
+    private void repair(Task task) throws InterruptedException {
+        if (!needsRepair(task)) {
+            finish(task, "repair.skipped");
+            return;
+        }
+        if (task.initiatorID != null && peer.backupAbandoned(task.fileID, task.chunkNo)) {
+            PeerLog.info(PeerLog.REPAIR, "backup timed out normally, no action to be taken", "file", task.fileID,
+                    "chunk", task.chunkNo);
+            finish(task, "repair.skipped");
+            return;
+        }
+
+        /* a random delay, so only one of the peers holding the chunk repairs it */
+        Thread.sleep(random.nextInt(ChunkManager.MAX_SLEEP_TIME));
+        if (yieldTo(task, Integer.MAX_VALUE))
+            return;
+
+        if (sendsClaims) {
+            peer.sendClaim(task.fileID, task.chunkNo);
+            Thread.sleep(CLAIM_GRACE);
+            /* of two peers claiming the chunk at once, the one with the lowest id repairs it */
+            if (yieldTo(task, serverId))
+                return;
+        }
+
+        int desired = chunkManager.getDesiredReplicationDegree(task.fileID);
+        PeerLog.info(PeerLog.REPAIR, "repairing chunk", "file", task.fileID, "chunk", task.chunkNo,
+                "degree", chunkManager.getReplicationDegree(task.fileID, Integer.toString(task.chunkNo)), "desired", desired);
+
+        long sent = peer.repairChunk(task.fileID, task.chunkNo, desired, bandwidth);
+        if (sent < 0) {
+            finish(task, "repair.failed");
+            return;
+        }
+
+        metrics.increment("repair.bytes", sent);
+        metrics.histogram(PeerMetrics.REPAIR_TIME).recordSince(task.queuedAt);
+        finish(task, chunkManager.getReplicationDegree(task.fileID, Integer.toString(task.chunkNo)) >= desired ?
+                "repair.replicated" : "repair.under_replicated");
+    }
+
+    /**
+     * Puts a chunk back to wait, until the claim expires, if another peer claimed it
+     * Claims older than the task belong to an earlier backup of the chunk, and the initiator of a tracked backup
+     * is already watched through the membership table, so neither is yielded to
+     *
+     * @param maxPeerID only claims of peers with a lower id are yielded to
+     * @return true if the chunk is left to the other peer
+     */
+    private boolean yieldTo(Task task, int maxPeerID) {
+        Claim claim = claims.get(task.key);
+        if (claim == null || claim.expiresAt < System.currentTimeMillis() || claim.peerID >= maxPeerID
+                || claim.claimedAt < task.queuedAt || Integer.toString(claim.peerID).equals(task.initiatorID))
+            return false;
+
+        metrics.increment("repair.yielded");
+        synchronized (this) {
+            task.notBefore = claim.expiresAt;
+            waiting.put(task.key, task);
+        }
+        return true;
+    }
+
+    /**
+     * @return true if this peer stores the chunk and fewer peers than desired are known to store it
+     */
+    private boolean needsRepair(Task task) {
+        if (!chunkManager.hasChunk(task.fileID, task.chunkNo))
+            return false;
+
+        int desired = chunkManager.getDesiredReplicationDegree(task.fileID);
+        return chunkManager.getReplicationDegree(task.fileID, Integer.toString(task.chunkNo)) < desired;
+    }
+
+    private void finish(Task task, String outcome) {
+        synchronized (this) {
+            if (tasks.remove(task.key) == null)
+                return;
+            waiting.remove(task.key);
+        }
+
+        metrics.increment(outcome);
+        metrics.increment("repair.pending", -1);
+        if (task.tracked)
+            peer.backupTracked(task.fileID, task.chunkNo);
+    }
+
+    /**
+     * Forgets the expired claims
+     */
+    private void expireClaims() {
+        long now = System.currentTimeMillis();
+        Iterator<Claim> iterator = claims.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().expiresAt < now)
+                iterator.remove();
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package peers;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Aggregate counters about the chunks of a peer, kept up to date as the chunks
+ * are stored and their perceived replication degrees change, so they can be read
+ * without going through the chunk maps
+ */
+class ReplicationStatistics {
+
+    /**
+     * Replication degrees from this value up share the last histogram bucket
+     */
+    static final int MAX_DEGREE = 10;
+
+    private final AtomicLong chunksHeld;
+    private final AtomicLong bytesUsed;
+    /**
+     * number of tracked chunks with each perceived replication degree
+     */
+    private final AtomicLongArray replicationHistogram;
+    /**
+     * number of chunks under the desired replication degree, for every file that has some
+     * key = <fileID>
+     */
+    private final ConcurrentHashMap<String, AtomicInteger> underReplicatedChunks;
+
+    ReplicationStatistics() {
+        chunksHeld = new AtomicLong();
+        bytesUsed = new AtomicLong();
+        replicationHistogram = new AtomicLongArray(MAX_DEGREE + 1);
+        underReplicatedChunks = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Called when a chunk is written to this peer
+     *
+     * @param bytes size of the chunk
+     */
+    void chunkStored(long bytes) {
+        chunksHeld.incrementAndGet();
+        bytesUsed.addAndGet(bytes);
+    }
+
+    /**
+     * Called when a chunk is deleted from this peer
+     *
+     * @param bytes size of the chunk
+     */
+    void chunkRemoved(long bytes) {
+        chunksHeld.decrementAndGet();
+        bytesUsed.addAndGet(-bytes);
+    }
+
+    /**
+     * Sets the counters of the stored chunks, used when the state is loaded
+     *
+     * @param chunks number of chunks held
+     * @param bytes  space used by them
+     */
+    void resetStorage(long chunks, long bytes) {
+        chunksHeld.set(chunks);
+        bytesUsed.set(bytes);
+    }
+
+    /**
+     * Called when the perceived replication degree of a chunk changes
+     *
+     * @param fileID    file the chunk belongs to
+     * @param oldDegree previous perceived replication degree, -1 if the chunk was not tracked
+     * @param newDegree new perceived replication degree, -1 if the chunk is no longer tracked
+     * @param desired   desired replication degree of the file, -1 if unknown
+     */
+    void degreeChanged(String fileID, int oldDegree, int newDegree, int desired) {
+        if (oldDegree == newDegree)
+            return;
+
+        if (oldDegree >= 0)
+            replicationHistogram.decrementAndGet(Math.min(oldDegree, MAX_DEGREE));
+        if (newDegree >= 0)
+            replicationHistogram.incrementAndGet(Math.min(newDegree, MAX_DEGREE));
+
+        if (desired < 0)
+            return;
+
+        boolean wasUnder = oldDegree >= 0 && oldDegree < desired;
+        boolean isUnder = newDegree >= 0 && newDegree < desired;
+        if (wasUnder == isUnder)
+            return;
+
+        underReplicatedChunks.compute(fileID, (k, count) -> {
+            if (count == null)
+                count = new AtomicInteger();
+            return count.addAndGet(isUnder ? 1 : -1) > 0 ? count : null;
+        });
+    }
+
+    /**
+     * Recounts the under replicated chunks of a file, used when
+     * the desired replication degree of the file changes
+     *
+     * @param fileID  file ID
+     * @param degrees perceived replication degrees of the tracked chunks of the file
+     * @param desired new desired replication degree of the file
+     */
+    void recountFile(String fileID, Iterable<Integer> degrees, int desired) {
+        int count = 0;
+        for (Integer degree : degrees) {
+            if (degree < desired)
+                count++;
+        }
+
+        if (count > 0)
+            underReplicatedChunks.put(fileID, new AtomicInteger(count));
+        else
+            underReplicatedChunks.remove(fileID);
+    }
+
+    /**
+     * Stops counting the under replicated chunks of a file, used when the file is forgotten
+     *
+     * @param fileID file ID
+     */
+    void resetFile(String fileID) {
+        underReplicatedChunks.remove(fileID);
+    }
+
+    long getChunksHeld() {
+        return chunksHeld.get();
+    }
+
+    long getBytesUsed() {
+        return bytesUsed.get();
+    }
+
+    /**
+     * @return number of files with at least one chunk under the desired replication degree
+     */
+    int getUnderReplicatedFiles() {
+        return underReplicatedChunks.size();
+    }
+
+    /**
+     * @return number of tracked chunks with each perceived replication degree,
+     * the last position counts the chunks with MAX_DEGREE or more
+     */
+    long[] getReplicationHistogram() {
+        long[] histogram = new long[replicationHistogram.length()];
+        for (int i = 0; i < histogram.length; i++)
+            histogram[i] = replicationHistogram.get(i);
+        return histogram;
+    }
+}
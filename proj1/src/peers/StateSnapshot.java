@@ -0,0 +1,294 @@
+package peers;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * State of a chunk manager, saved in a compact binary format that loads much faster than Java serialization
+ * Every file ID is written once and then referred to by its index, chunk keys are split in the index of
+ * their file and their number, and every number is written as a primitive
+ * <p>
+ * Layout: magic, version, occupied space (from version 2), then one section per map, each a list of entries ended by END,
+ * and the CRC32 of everything before it
+ * A file reference is the index of a file ID already written, or NEW_FILE followed by the ID
+ */
+class StateSnapshot {
+
+    static final int MAGIC = 0x53444953;
+    static final int VERSION = 2;
+    private static final int END = -1;
+    private static final int NEW_FILE = -2;
+    /**
+     * Snapshots are read through a memory mapping, instead of being copied to the heap
+     */
+    private static final boolean MAP_STATE = Boolean.parseBoolean(System.getProperty("sdis.state.mmap", "true"));
+
+    ConcurrentHashMap<String, Long> numChunksFile;
+    ConcurrentHashMap<String, ArrayList<Integer>> chunkMap;
+    ConcurrentHashMap<String, String> perceivedChunkRepDeg;
+    ConcurrentHashMap<String, Integer> desiredFileReplicationDegrees;
+    ConcurrentHashMap<String, ArrayList<Integer>> storedChunks;
+    ArrayList<String> restoredChunkList;
+    DeletionTracker deletionTracker;
+    /**
+     * bytes of the stored chunks, -1 if the snapshot does not have them (version 1)
+     */
+    long occupiedSpace = -1;
+
+    /**
+     * @param file state file
+     * @return true if the file holds a snapshot in this format, false if it is missing or in another format
+     */
+    static boolean isSnapshot(File file) {
+        try (DataInputStream input = new DataInputStream(new FileInputStream(file))) {
+            return input.readInt() == MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Writes the snapshot to a temporary file, which then replaces the state file,
+     * so a crash while saving leaves the previous state
+     *
+     * @param file state file
+     * @throws IOException if the snapshot could not be written
+     */
+    void write(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fileOutput = new FileOutputStream(temp)) {
+            CheckedOutputStream checked = new CheckedOutputStream(fileOutput, new CRC32());
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(checked, 1 << 16));
+            Map<String, Integer> files = new HashMap<>();
+
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeLong(occupiedSpace);
+
+            for (Map.Entry<String, Long> entry : numChunksFile.entrySet()) {
+                writeFile(output, files, entry.getKey());
+                output.writeLong(entry.getValue());
+            }
+            output.writeInt(END);
+
+            for (Map.Entry<String, ArrayList<Integer>> entry : chunkMap.entrySet()) {
+                writeChunkKey(output, files, entry.getKey());
+                writeNumbers(output, entry.getValue());
+            }
+            output.writeInt(END);
+
+            for (Map.Entry<String, String> entry : perceivedChunkRepDeg.entrySet()) {
+                writeChunkKey(output, files, entry.getKey());
+                output.writeInt(Integer.parseInt(entry.getValue()));
+            }
+            output.writeInt(END);
+
+            for (Map.Entry<String, Integer> entry : desiredFileReplicationDegrees.entrySet()) {
+                writeFile(output, files, entry.getKey());
+                output.writeInt(entry.getValue());
+            }
+            output.writeInt(END);
+
+            for (Map.Entry<String, ArrayList<Integer>> entry : storedChunks.entrySet()) {
+                writeFile(output, files, entry.getKey());
+                writeNumbers(output, entry.getValue());
+            }
+            output.writeInt(END);
+
+            for (Object chunkKey : restoredChunkList.toArray())
+                writeChunkKey(output, files, (String) chunkKey);
+            output.writeInt(END);
+
+            deletionTracker.forEachTombstone((fileID, peers, expiresAt) -> {
+                writeFile(output, files, fileID);
+                output.writeLong(expiresAt);
+                long[] words = peers.toLongArray();
+                output.writeInt(words.length);
+                for (long word : words)
+                    output.writeLong(word);
+            });
+            output.writeInt(END);
+
+            output.flush();
+            long checksum = checked.getChecksum().getValue();
+            output.writeLong(checksum);
+            output.flush();
+        }
+
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Reads a snapshot
+     *
+     * @param file    state file
+     * @param onChunk called with the file ID and chunk number of every entry of the chunk map, as it is read
+     * @return the snapshot
+     * @throws IOException if the file could not be read, is not a snapshot or is corrupted
+     */
+    static StateSnapshot read(File file, BiConsumer<String, Integer> onChunk) throws IOException {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("State file too large: " + size + " bytes");
+
+            if (MAP_STATE)
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            else {
+                buffer = ByteBuffer.allocate((int) size);
+                while (buffer.hasRemaining() && channel.read(buffer) >= 0)
+                    ;
+                buffer.flip();
+            }
+        }
+
+        if (buffer.remaining() < 16 || buffer.getInt(0) != MAGIC)
+            throw new IOException("Not a state snapshot");
+        int version = buffer.getInt(4);
+        if (version < 1 || version > VERSION)
+            throw new IOException("Unknown state snapshot version " + version);
+
+        int end = buffer.limit() - 8;
+        CRC32 checksum = new CRC32();
+        ByteBuffer checked = buffer.duplicate();
+        checked.limit(end);
+        checksum.update(checked);
+        if (checksum.getValue() != buffer.getLong(end))
+            throw new IOException("Corrupted state snapshot");
+
+        buffer.position(8);
+        buffer.limit(end);
+        try {
+            long occupiedSpace = version >= 2 ? buffer.getLong() : -1;
+            StateSnapshot snapshot = decode(buffer, onChunk);
+            snapshot.occupiedSpace = occupiedSpace;
+            return snapshot;
+        } catch (RuntimeException e) {
+            throw new IOException("Malformed state snapshot", e);
+        }
+    }
+
+    private static StateSnapshot decode(ByteBuffer buffer, BiConsumer<String, Integer> onChunk) {
+        StateSnapshot snapshot = new StateSnapshot();
+        List<String> files = new ArrayList<>();
+        String fileID;
+
+        snapshot.numChunksFile = new ConcurrentHashMap<>();
+        while ((fileID = readFile(buffer, files)) != null)
+            snapshot.numChunksFile.put(fileID, buffer.getLong());
+
+        snapshot.chunkMap = new ConcurrentHashMap<>();
+        while ((fileID = readFile(buffer, files)) != null) {
+            int chunkNo = buffer.getInt();
+            snapshot.chunkMap.put(fileID + '_' + chunkNo, readNumbers(buffer));
+            onChunk.accept(fileID, chunkNo);
+        }
+
+        snapshot.perceivedChunkRepDeg = new ConcurrentHashMap<>();
+        while ((fileID = readFile(buffer, files)) != null) {
+            int chunkNo = buffer.getInt();
+            snapshot.perceivedChunkRepDeg.put(fileID + '_' + chunkNo, Integer.toString(buffer.getInt()));
+        }
+
+        snapshot.desiredFileReplicationDegrees = new ConcurrentHashMap<>();
+        while ((fileID = readFile(buffer, files)) != null)
+            snapshot.desiredFileReplicationDegrees.put(fileID, buffer.getInt());
+
+        snapshot.storedChunks = new ConcurrentHashMap<>();
+        while ((fileID = readFile(buffer, files)) != null)
+            snapshot.storedChunks.put(fileID, readNumbers(buffer));
+
+        snapshot.restoredChunkList = new ArrayList<>();
+        while ((fileID = readFile(buffer, files)) != null)
+            snapshot.restoredChunkList.add(fileID + '_' + buffer.getInt());
+
+        snapshot.deletionTracker = new DeletionTracker();
+        while ((fileID = readFile(buffer, files)) != null) {
+            long expiresAt = buffer.getLong();
+            long[] words = new long[buffer.getInt()];
+            for (int i = 0; i < words.length; i++)
+                words[i] = buffer.getLong();
+            snapshot.deletionTracker.restoreTombstone(fileID, BitSet.valueOf(words), expiresAt);
+        }
+        return snapshot;
+    }
+
+    private static void writeFile(DataOutputStream output, Map<String, Integer> files, String fileID) throws IOException {
+        Integer index = files.get(fileID);
+        if (index != null) {
+            output.writeInt(index);
+            return;
+        }
+
+        files.put(fileID, files.size());
+        byte[] bytes = fileID.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(NEW_FILE);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    /**
+     * Writes a key of the form <fileID>_<ChunkNo> as the reference to the file and the chunk number
+     */
+    private static void writeChunkKey(DataOutputStream output, Map<String, Integer> files, String chunkKey) throws IOException {
+        int separator = chunkKey.lastIndexOf('_');
+        writeFile(output, files, chunkKey.substring(0, separator));
+        output.writeInt(Integer.parseInt(chunkKey.substring(separator + 1)));
+    }
+
+    /**
+     * Writes a list of numbers, copying it first as other threads may be changing it
+     */
+    private static void writeNumbers(DataOutputStream output, ArrayList<Integer> numbers) throws IOException {
+        Object[] copy = numbers.toArray();
+        int count = 0;
+        for (Object number : copy)
+            if (number != null)
+                count++;
+
+        output.writeInt(count);
+        for (Object number : copy)
+            if (number != null)
+                output.writeInt((Integer) number);
+    }
+
+    /**
+     * @return the file ID referred to, null at the end of a section
+     */
+    private static String readFile(ByteBuffer buffer, List<String> files) {
+        int index = buffer.getInt();
+        if (index == END)
+            return null;
+        if (index != NEW_FILE)
+            return files.get(index);
+
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        String fileID = new String(bytes, StandardCharsets.UTF_8);
+        files.add(fileID);
+        return fileID;
+    }
+
+    private static ArrayList<Integer> readNumbers(ByteBuffer buffer) {
+        int count = buffer.getInt();
+        ArrayList<Integer> numbers = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            numbers.add(buffer.getInt());
+        return numbers;
+    }
+}
@@ -0,0 +1,178 @@
+package peers;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * Channel on a mesh of TCP connections, one to every other peer
+ * Used where multicast is not available, every message is written to all the peers,
+ * prefixed by its length
+ */
+class TcpMeshTransport implements Transport {
+
+    /**
+     * Time to wait before trying to connect again to a peer that could not be reached, in milliseconds
+     */
+    private static final long RECONNECT_INTERVAL = 1000;
+    private static final int CONNECT_TIMEOUT = 1000;
+    private static final int MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+
+    private final ServerSocket serverSocket;
+    private final List<InetSocketAddress> peers;
+    /**
+     * open connections to the other peers
+     */
+    private final ConcurrentHashMap<InetSocketAddress, Socket> connections;
+    /**
+     * time of the last failed connection to a peer, in milliseconds
+     */
+    private final ConcurrentHashMap<InetSocketAddress, Long> failedConnections;
+
+    /**
+     * Listens for the connections of the other peers
+     *
+     * @param port  port where this peer listens
+     * @param peers addresses where the other peers listen
+     * @throws IOException if the port cannot be listened to
+     */
+    TcpMeshTransport(int port, List<InetSocketAddress> peers) throws IOException {
+        this.peers = peers;
+        connections = new ConcurrentHashMap<>();
+        failedConnections = new ConcurrentHashMap<>();
+        serverSocket = new ServerSocket(port);
+    }
+
+    @Override
+    public void start(BiConsumer<byte[], InetAddress> receiver) {
+        Runnable task = () -> {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    new Thread(() -> readMessages(socket, receiver)).start();
+                } catch (IOException e) {
+                    if (!serverSocket.isClosed())
+                        e.printStackTrace();
+                }
+            }
+        };
+
+        new Thread(task).start();
+    }
+
+    /**
+     * Reads the messages sent by a peer until its connection is closed
+     *
+     * @param socket   connection to the peer
+     * @param receiver called with every message
+     */
+    private void readMessages(Socket socket, BiConsumer<byte[], InetAddress> receiver) {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            while (!serverSocket.isClosed()) {
+                int length = input.readInt();
+                if (length < 0 || length > MAX_MESSAGE_SIZE)
+                    throw new IOException("Invalid message length " + length);
+
+                byte[] message = new byte[length];
+                input.readFully(message);
+                receiver.accept(message, socket.getInetAddress());
+            }
+        } catch (EOFException e) {
+            // peer closed the connection
+        } catch (IOException e) {
+            if (!serverSocket.isClosed())
+                System.err.println("Connection from " + socket.getInetAddress() + " lost: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Sends a message to every peer that can be reached
+     *
+     * @param message message to send
+     * @return true if the message was written to some peer, or there are no other peers
+     */
+    @Override
+    public boolean send(byte[] message) {
+        boolean sent = peers.isEmpty();
+
+        for (InetSocketAddress peer : peers) {
+            Socket socket = connect(peer);
+            if (socket == null)
+                continue;
+
+            try {
+                synchronized (socket) {
+                    DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+                    output.writeInt(message.length);
+                    output.write(message);
+                    output.flush();
+                }
+                sent = true;
+            } catch (IOException e) {
+                connections.remove(peer, socket);
+                closeQuietly(socket);
+            }
+        }
+        return sent;
+    }
+
+    /**
+     * Gets the connection to a peer, opening it if needed
+     *
+     * @param peer address of the peer
+     * @return connection to the peer, null if the peer cannot be reached
+     */
+    private Socket connect(InetSocketAddress peer) {
+        Socket socket = connections.get(peer);
+        if (socket != null)
+            return socket;
+
+        Long failedAt = failedConnections.get(peer);
+        if (failedAt != null && System.currentTimeMillis() - failedAt < RECONNECT_INTERVAL)
+            return null;
+
+        synchronized (this) {
+            socket = connections.get(peer);
+            if (socket != null)
+                return socket;
+
+            try {
+                socket = new Socket();
+                socket.setTcpNoDelay(true);
+                socket.connect(peer, CONNECT_TIMEOUT);
+            } catch (IOException e) {
+                failedConnections.put(peer, System.currentTimeMillis());
+                return null;
+            }
+            failedConnections.remove(peer);
+            connections.put(peer, socket);
+            return socket;
+        }
+    }
+
+    @Override
+    public boolean isNetworked() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+        closeQuietly(serverSocket);
+        for (Socket socket : connections.values())
+            closeQuietly(socket);
+        connections.clear();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+}
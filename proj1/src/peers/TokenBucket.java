@@ -0,0 +1,66 @@
+package peers;
+
+/**
+ * Limits the rate at which bytes are sent, shared by all the threads sending them
+ * Tokens are reserved up front, so a thread that takes more tokens than available
+ * waits for the debt to be paid, and the threads after it wait in turn
+ */
+class TokenBucket {
+
+    private final long rate;
+    private final long burst;
+    private long available;
+    private long lastRefill;
+
+    /**
+     * @param rate  tokens added per second, 0 for no limit
+     * @param burst maximum number of tokens accumulated while idle
+     */
+    TokenBucket(long rate, long burst) {
+        this.rate = rate;
+        this.burst = burst;
+        available = burst;
+        lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Takes tokens from the bucket, waiting until they are available
+     *
+     * @param tokens number of tokens
+     * @throws InterruptedException if interrupted while waiting
+     */
+    void acquire(long tokens) throws InterruptedException {
+        if (rate <= 0)
+            return;
+
+        long waitNanos;
+        synchronized (this) {
+            refill(System.nanoTime());
+            available -= tokens;
+            waitNanos = available >= 0 ? 0 : (long) Math.ceil(-available * 1e9 / rate);
+        }
+
+        if (waitNanos > 0)
+            Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+    }
+
+    /**
+     * Adds the tokens earned since the last refill
+     * The arithmetic is done in doubles, as the elapsed time times the rate overflows a long after a long idle period,
+     * and the refill instant only moves by the time turned into whole tokens, so the fractions are kept for the next one
+     *
+     * @param now current instant, in nanoseconds
+     */
+    private void refill(long now) {
+        double elapsed = now - lastRefill;
+        if (elapsed * rate >= (burst - (double) available) * 1e9) {
+            available = burst;
+            lastRefill = now;
+            return;
+        }
+
+        long added = (long) (elapsed * rate / 1e9);
+        available += added;
+        lastRefill += (long) (added * 1e9 / rate);
+    }
+}
@@ -0,0 +1,40 @@
+package peers;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.function.BiConsumer;
+
+/**
+ * Carries the messages of one of the channels between the peers
+ * Every message sent is delivered, on a best effort basis, to all the peers on the channel
+ */
+interface Transport {
+
+    /**
+     * Starts listening to the channel
+     *
+     * @param receiver called with every received message and the address of its sender,
+     *                 must return quickly
+     * @throws IOException if the channel cannot be listened to
+     */
+    void start(BiConsumer<byte[], InetAddress> receiver) throws IOException;
+
+    /**
+     * Sends a message to the peers on the channel
+     *
+     * @param message message to send
+     * @return true if the message was sent
+     */
+    boolean send(byte[] message);
+
+    /**
+     * @return true if the peers can be reached on their address,
+     * false if they all share the same process
+     */
+    boolean isNetworked();
+
+    /**
+     * Stops listening to the channel and releases its resources
+     */
+    void close();
+}